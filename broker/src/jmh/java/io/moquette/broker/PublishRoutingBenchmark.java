@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Routing throughput of a burst of publishes on many topics, matched on the IO thread (0 workers) against
+ * dispatched to the routing workers, that should scale up to the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PublishRoutingBenchmark {
+
+    private static final int TOPICS = 4096;
+    private static final int BURST = 1024;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int workers;
+
+    @Param({"100000"})
+    public int subscriptions;
+
+    private CTrieSubscriptionDirectory directory;
+    private PublishDispatcher dispatcher;
+    private Topic[] topics;
+    private ByteBuf payload;
+    private final LongAdder matched = new LongAdder();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        directory = new CTrieSubscriptionDirectory();
+        directory.init(new MemorySubscriptionsRepository());
+        final Random random = new Random(17);
+        for (int i = 0; i < subscriptions; i++) {
+            final int building = random.nextInt(100);
+            final String filter = random.nextInt(100) < 5
+                ? "building/" + building + "/floor/+/sensor/" + random.nextInt(1000)
+                : "building/" + building + "/floor/" + random.nextInt(10) + "/sensor/" + random.nextInt(1000);
+            directory.add(new Subscription("client-" + i, asTopic(filter), MqttQoS.AT_LEAST_ONCE));
+        }
+        topics = new Topic[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = asTopic("building/" + random.nextInt(100) + "/floor/" + random.nextInt(10) + "/sensor/"
+                                + random.nextInt(1000));
+        }
+        dispatcher = new PublishDispatcher(workers);
+        payload = Unpooled.wrappedBuffer(new byte[64]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long routeBurst() throws InterruptedException {
+        final CountDownLatch routed = new CountDownLatch(BURST);
+        for (int i = 0; i < BURST; i++) {
+            final Topic topic = topics[next++ & (TOPICS - 1)];
+            dispatcher.dispatch(topic, payload, routedPayload -> {
+                directory.matchQosSharpening(topic, sub -> matched.increment());
+                routed.countDown();
+            });
+        }
+        routed.await();
+        return matched.sum();
+    }
+}
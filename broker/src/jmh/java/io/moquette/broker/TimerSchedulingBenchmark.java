@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving the deadline of a connection timer, as a keep alive or a resend one, against the number of
+ * connections of the event loop: the scheduler of the event loop, a heap where a cancel is a linear removal,
+ * against the timing wheel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TimerSchedulingBenchmark {
+
+    private static final Runnable NOOP = () -> { };
+
+    private static final class NoopTimeout extends TimingWheel.Timeout {
+        @Override
+        void expired() {
+        }
+    }
+
+    @Param({"1000", "10000", "100000"})
+    public int connections;
+
+    private EmbeddedChannel channel;
+    private EventLoop eventLoop;
+    private ScheduledFuture<?>[] futures;
+    private TimingWheel wheel;
+    private NoopTimeout[] timeouts;
+    private long[] delays;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // the embedded event loop is run by the benchmark thread, so the scheduling is never a cross thread task
+        channel = new EmbeddedChannel();
+        eventLoop = channel.eventLoop();
+        wheel = new TimingWheel();
+        futures = new ScheduledFuture<?>[connections];
+        timeouts = new NoopTimeout[connections];
+        delays = new long[connections];
+        final Random random = new Random(17);
+        for (int i = 0; i < connections; i++) {
+            // keep alive deadlines spread over a minute
+            delays[i] = TimeUnit.SECONDS.toNanos(1 + random.nextInt(60));
+            futures[i] = eventLoop.schedule(NOOP, delays[i], TimeUnit.NANOSECONDS);
+            timeouts[i] = new NoopTimeout();
+            wheel.schedule(timeouts[i], delays[i], TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public ScheduledFuture<?> rescheduleOnEventLoopScheduler() {
+        final int i = nextConnection();
+        futures[i].cancel(false);
+        futures[i] = eventLoop.schedule(NOOP, delays[i], TimeUnit.NANOSECONDS);
+        return futures[i];
+    }
+
+    @Benchmark
+    public TimingWheel.Timeout rescheduleOnTimingWheel() {
+        final int i = nextConnection();
+        wheel.schedule(timeouts[i], delays[i], TimeUnit.NANOSECONDS);
+        return timeouts[i];
+    }
+
+    private int nextConnection() {
+        final int i = next;
+        next = i + 1 == connections ? 0 : i + 1;
+        return i;
+    }
+}
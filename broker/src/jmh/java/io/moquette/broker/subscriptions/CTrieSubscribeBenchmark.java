@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Subscribe and unsubscribe throughput on a hot node, a topic filter already subscribed by many clients.
+ * Every change of the node copies its CNode, so this measures the cost of the copy-on-write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CTrieSubscribeBenchmark {
+
+    private static final Topic HOT_TOPIC = asTopic("sensors/+/temperature");
+
+    @Param({"100", "10000", "100000"})
+    public int hotNodeSubscribers;
+
+    private CTrie trie;
+    private final AtomicInteger clientIds = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Subscription subscription;
+
+        @Setup(Level.Iteration)
+        public void setUp(CTrieSubscribeBenchmark benchmark) {
+            final String clientId = "bench-client-" + benchmark.clientIds.incrementAndGet();
+            subscription = new Subscription(clientId, HOT_TOPIC, MqttQoS.AT_LEAST_ONCE);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trie = new CTrie();
+        for (int i = 0; i < hotNodeSubscribers; i++) {
+            trie.addToTree(new Subscription("client-" + i, HOT_TOPIC, MqttQoS.AT_MOST_ONCE));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void subscribeAndUnsubscribe(Client client) {
+        trie.addToTree(client.subscription);
+        trie.removeFromTree(HOT_TOPIC, client.subscription.clientId);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedSubscribeAndUnsubscribe(Client client) {
+        trie.addToTree(client.subscription);
+        trie.removeFromTree(HOT_TOPIC, client.subscription.clientId);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Publish matching on a mostly literal workload: one CTrie with all the filters against the literal filters in
+ * a hash index and only the wildcard ones in the CTrie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LiteralFiltersMatchBenchmark {
+
+    private static final int TOPICS = 4096;
+
+    @Param({"100000"})
+    public int subscriptions;
+
+    @Param({"5"})
+    public int wildcardPercentage;
+
+    private CTrie singleTrie;
+    private CTrie wildcardTrie;
+    private LiteralFiltersIndex literalFilters;
+    private CTrieSubscriptionDirectory directory;
+    private Topic[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        singleTrie = new CTrie();
+        wildcardTrie = new CTrie();
+        literalFilters = new LiteralFiltersIndex();
+        directory = new CTrieSubscriptionDirectory();
+        directory.init(new MemorySubscriptionsRepository());
+
+        final Random random = new Random(17);
+        for (int i = 0; i < subscriptions; i++) {
+            final int building = random.nextInt(100);
+            final int sensor = random.nextInt(1000);
+            final boolean wildcard = random.nextInt(100) < wildcardPercentage;
+            final String filter = wildcard
+                ? "building/" + building + "/floor/+/sensor/" + sensor
+                : "building/" + building + "/floor/" + random.nextInt(10) + "/sensor/" + sensor;
+            final Subscription sub = new Subscription("client-" + i, asTopic(filter), MqttQoS.AT_LEAST_ONCE);
+            singleTrie.addToTree(sub);
+            if (wildcard) {
+                wildcardTrie.addToTree(sub);
+            } else {
+                literalFilters.add(sub);
+            }
+            directory.add(sub);
+        }
+
+        topics = new Topic[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = asTopic("building/" + random.nextInt(100) + "/floor/" + random.nextInt(10)
+                                + "/sensor/" + random.nextInt(1000));
+            topics[i].getTokens();
+        }
+    }
+
+    private Topic nextTopic() {
+        next = (next + 1) & (TOPICS - 1);
+        return topics[next];
+    }
+
+    @Benchmark
+    public void matchOnSingleTrie(Blackhole blackhole) {
+        singleTrie.recursiveMatch(nextTopic(), blackhole::consume);
+    }
+
+    @Benchmark
+    public void matchOnLiteralIndexAndWildcardTrie(Blackhole blackhole) {
+        final Topic topic = nextTopic();
+        wildcardTrie.recursiveMatch(topic, blackhole::consume);
+        literalFilters.match(topic.getTokens(), blackhole::consume);
+    }
+
+    @Benchmark
+    public void matchQosSharpeningOnDirectory(Blackhole blackhole) {
+        directory.matchQosSharpening(nextTopic(), blackhole::consume);
+    }
+}
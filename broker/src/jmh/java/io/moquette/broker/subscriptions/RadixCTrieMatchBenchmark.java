@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Publish matching on deep and sparse topic hierarchies, org/site/building/floor/room/device/sensor, where
+ * most of the levels have a single child: the CTrie against the path compressed RadixCTrie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RadixCTrieMatchBenchmark {
+
+    private static final int TOPICS = 4096;
+
+    @Param({"100000"})
+    public int subscriptions;
+
+    private CTrie ctrie;
+    private RadixCTrie radixTrie;
+    private Topic[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ctrie = new CTrie();
+        radixTrie = new RadixCTrie();
+        final Random random = new Random(17);
+        topics = new Topic[TOPICS];
+        for (int i = 0; i < subscriptions; i++) {
+            final String topic = deepTopic(random);
+            final Subscription sub = new Subscription("client-" + i, asTopic(topic), MqttQoS.AT_LEAST_ONCE);
+            ctrie.addToTree(sub);
+            radixTrie.addToTree(sub);
+            if (i < TOPICS) {
+                topics[i] = asTopic(topic);
+                topics[i].getTokens();
+            }
+        }
+    }
+
+    private static String deepTopic(Random random) {
+        return "org/site" + random.nextInt(4) + "/building" + random.nextInt(100) + "/floor/room"
+            + random.nextInt(1000) + "/device/sensor" + random.nextInt(10);
+    }
+
+    private Topic nextTopic() {
+        next = (next + 1) & (TOPICS - 1);
+        return topics[next];
+    }
+
+    @Benchmark
+    public void matchOnCTrie(Blackhole blackhole) {
+        ctrie.recursiveMatch(nextTopic(), blackhole::consume);
+    }
+
+    @Benchmark
+    public void matchOnRadixCTrie(Blackhole blackhole) {
+        radixTrie.recursiveMatch(nextTopic(), blackhole::consume);
+    }
+}
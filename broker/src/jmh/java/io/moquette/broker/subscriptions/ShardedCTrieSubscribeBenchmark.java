@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Concurrent subscribes and unsubscribes of filters with distinct first tokens, as in a reconnect storm of
+ * clients subscribing their own topics: every change CASes the root of the trie. Compares a single CTrie
+ * against the CTries sharded by first token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class ShardedCTrieSubscribeBenchmark {
+
+    private CTrie trie;
+    private ShardedCTrie shardedTrie;
+    private final AtomicInteger clientIds = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Subscription subscription;
+
+        @Setup(Level.Iteration)
+        public void setUp(ShardedCTrieSubscribeBenchmark benchmark) {
+            final String clientId = "bench-client-" + benchmark.clientIds.incrementAndGet();
+            subscription = new Subscription(clientId, asTopic(clientId + "/+/commands"), MqttQoS.AT_LEAST_ONCE);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trie = new CTrie();
+        shardedTrie = new ShardedCTrie(ShardedCTrie.defaultShardsCount());
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribeOnSingleTrie(Client client) {
+        trie.addToTree(client.subscription);
+        trie.removeFromTree(client.subscription.topicFilter, client.subscription.clientId);
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribeOnShardedTrie(Client client) {
+        shardedTrie.addToTree(client.subscription);
+        shardedTrie.removeFromTree(client.subscription.topicFilter, client.subscription.clientId);
+    }
+}
@@ -71,6 +71,24 @@ public final class BrokerConstants {
     public static final String NETTY_EPOLL_PROPERTY_NAME = "netty.epoll";
     public static final String NETTY_MAX_BYTES_PROPERTY_NAME = "netty.mqtt.message_size";
     public static final int DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE = 8092;
+    // the groups of a single listener are sized by netty.<listener>.boss_threads and netty.<listener>.worker_threads
+    public static final String NETTY_BOSS_THREADS_PROPERTY_NAME = "netty.boss_threads";
+    public static final int DEFAULT_NETTY_BOSS_THREADS = 1;
+    public static final String NETTY_WORKER_THREADS_PROPERTY_NAME = "netty.worker_threads";
+    public static final int DEFAULT_NETTY_WORKER_THREADS = 0;
+    public static final String NETTY_LISTENER_TCP = "tcp";
+    public static final String NETTY_LISTENER_SSL = "ssl";
+    public static final String NETTY_LISTENER_WS = "websocket";
+    public static final String NETTY_LISTENER_WSS = "secure_websocket";
+    public static final String NETTY_ALLOCATOR_PROPERTY_NAME = "netty.allocator";
+    public static final String DEFAULT_NETTY_ALLOCATOR = "pooled";
+    public static final String NETTY_ALLOCATOR_PREFER_DIRECT_PROPERTY_NAME = "netty.allocator.prefer_direct";
+    public static final String NETTY_ALLOCATOR_ARENAS_PROPERTY_NAME = "netty.allocator.arenas";
+    public static final int DEFAULT_NETTY_ALLOCATOR_ARENAS = 0;
+    public static final String NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME = "netty.write_buffer.low_water_mark";
+    public static final int DEFAULT_NETTY_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+    public static final String NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME = "netty.write_buffer.high_water_mark";
+    public static final int DEFAULT_NETTY_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
     public static final String IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME = "immediate_buffer_flush";
     public static final String METRICS_ENABLE_PROPERTY_NAME = "use_metrics";
     public static final String METRICS_LIBRATO_EMAIL_PROPERTY_NAME = "metrics.librato.email";
@@ -82,6 +100,47 @@ public final class BrokerConstants {
 
     public static final String STORAGE_CLASS_NAME = "storage_class";
 
+    public static final String SUBSCRIPTIONS_DIRECTORY_PROPERTY_NAME = "subscriptions.directory";
+    public static final String DEFAULT_SUBSCRIPTIONS_DIRECTORY = "ctrie";
+    public static final String RADIX_SUBSCRIPTIONS_DIRECTORY = "radix";
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE_PROPERTY_NAME = "subscriptions.match_cache.size";
+    public static final int DEFAULT_SUBSCRIPTIONS_MATCH_CACHE_SIZE = 0;
+    public static final String SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME = "subscriptions.compaction.interval";
+    public static final int DEFAULT_SUBSCRIPTIONS_COMPACTION_INTERVAL = 0;
+    public static final String SUBSCRIPTIONS_COMPACTION_MAX_NODES_PROPERTY_NAME = "subscriptions.compaction.max_nodes";
+    public static final int DEFAULT_SUBSCRIPTIONS_COMPACTION_MAX_NODES = 10_000;
+    public static final String FAN_OUT_INLINE_THRESHOLD_PROPERTY_NAME = "fan_out.inline_threshold";
+    public static final int DEFAULT_FAN_OUT_INLINE_THRESHOLD = 1_000;
+    public static final String FAN_OUT_CHUNK_SIZE_PROPERTY_NAME = "fan_out.chunk_size";
+    public static final int DEFAULT_FAN_OUT_CHUNK_SIZE = 256;
+    public static final String ROUTING_WORKERS_PROPERTY_NAME = "routing.workers";
+    public static final int DEFAULT_ROUTING_WORKERS = 0;
+    public static final String OUTBOUND_BUFFER_MAX_MESSAGES_PROPERTY_NAME = "outbound_buffer.max_messages";
+    public static final int DEFAULT_OUTBOUND_BUFFER_MAX_MESSAGES = 1_000;
+    public static final String OUTBOUND_BUFFER_MAX_BYTES_PROPERTY_NAME = "outbound_buffer.max_bytes";
+    public static final int DEFAULT_OUTBOUND_BUFFER_MAX_BYTES = 1024 * 1024;
+    public static final String OUTBOUND_BUFFER_OVERFLOW_POLICY_PROPERTY_NAME = "outbound_buffer.overflow_policy";
+    public static final String DEFAULT_OUTBOUND_BUFFER_OVERFLOW_POLICY = "spill";
+    public static final String INFLIGHT_WINDOW_SIZE_PROPERTY_NAME = "inflight_window.size";
+    public static final int DEFAULT_INFLIGHT_WINDOW_SIZE = 10;
+    public static final String INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME = "inflight_window.clients";
+    public static final String INFLIGHT_WINDOW_USERS_PROPERTY_NAME = "inflight_window.users";
+    public static final String INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME = "inflight_window.adaptive";
+    public static final String INFLIGHT_WINDOW_MIN_PROPERTY_NAME = "inflight_window.min";
+    public static final int DEFAULT_INFLIGHT_WINDOW_MIN = 1;
+    public static final String INFLIGHT_WINDOW_MAX_PROPERTY_NAME = "inflight_window.max";
+    public static final int DEFAULT_INFLIGHT_WINDOW_MAX = 1_000;
+    public static final String RESEND_INTERVAL_PROPERTY_NAME = "resend.interval_ms";
+    public static final int DEFAULT_RESEND_INTERVAL_MS = 1_000;
+    public static final String RESEND_INITIAL_DELAY_PROPERTY_NAME = "resend.initial_delay_ms";
+    public static final int DEFAULT_RESEND_INITIAL_DELAY_MS = 5_000;
+    public static final String RESEND_MAX_DELAY_PROPERTY_NAME = "resend.max_delay_ms";
+    public static final int DEFAULT_RESEND_MAX_DELAY_MS = 60_000;
+    public static final String RESEND_JITTER_PERCENT_PROPERTY_NAME = "resend.jitter_percent";
+    public static final int DEFAULT_RESEND_JITTER_PERCENT = 20;
+    public static final String RESEND_MAX_PER_CHECK_PROPERTY_NAME = "resend.max_per_check";
+    public static final int DEFAULT_RESEND_MAX_PER_CHECK = 64;
+
     private BrokerConstants() {
     }
 }
@@ -18,17 +18,16 @@ package io.moquette.broker;
 
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Auto-flush data on channel after a read timeout. It's inspired by IdleStateHandler but it's
  * specialized version, just flushing data after no read is done on the channel after a period. It's
- * used to avoid aggressively flushing from the ProtocolProcessor.
+ * used to avoid aggressively flushing from the ProtocolProcessor. The timeout is driven by the {@link TimingWheel} of
+ * the event loop.
  */
 public class AutoFlushHandler extends ChannelDuplexHandler {
 
@@ -36,7 +35,8 @@ public class AutoFlushHandler extends ChannelDuplexHandler {
     private static final long MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
     private final long writerIdleTimeNanos;
-    volatile ScheduledFuture<?> writerIdleTimeout;
+    private TimingWheel wheel;
+    private WriterIdleTimeoutTask writerIdleTimeout;
     volatile long lastWriteTime;
     // private boolean firstWriterIdleEvent = true;
 
@@ -105,17 +105,17 @@ public class AutoFlushHandler extends ChannelDuplexHandler {
 
         state = 1;
 
-        EventExecutor loop = ctx.executor();
-
         lastWriteTime = System.nanoTime();
-        writerIdleTimeout = loop.schedule(new WriterIdleTimeoutTask(ctx), writerIdleTimeNanos, TimeUnit.NANOSECONDS);
+        wheel = TimingWheel.of(ctx.executor());
+        writerIdleTimeout = new WriterIdleTimeoutTask(ctx);
+        wheel.schedule(writerIdleTimeout, writerIdleTimeNanos, TimeUnit.NANOSECONDS);
     }
 
     private void destroy() {
         state = 2;
 
         if (writerIdleTimeout != null) {
-            writerIdleTimeout.cancel(false);
+            wheel.cancel(writerIdleTimeout);
             writerIdleTimeout = null;
         }
     }
@@ -133,7 +133,7 @@ public class AutoFlushHandler extends ChannelDuplexHandler {
         ctx.channel().flush();
     }
 
-    private final class WriterIdleTimeoutTask implements Runnable {
+    private final class WriterIdleTimeoutTask extends TimingWheel.Timeout {
 
         private final ChannelHandlerContext ctx;
 
@@ -142,7 +142,7 @@ public class AutoFlushHandler extends ChannelDuplexHandler {
         }
 
         @Override
-        public void run() {
+        void expired() {
             if (!ctx.channel().isOpen()) {
                 return;
             }
@@ -152,7 +152,7 @@ public class AutoFlushHandler extends ChannelDuplexHandler {
             long nextDelay = writerIdleTimeNanos - (System.nanoTime() - lastWriteTime);
             if (nextDelay <= 0) {
                 // Writer is idle - set a new timeout and notify the callback.
-                writerIdleTimeout = ctx.executor().schedule(this, writerIdleTimeNanos, TimeUnit.NANOSECONDS);
+                wheel.schedule(this, writerIdleTimeNanos, TimeUnit.NANOSECONDS);
                 try {
                     /*
                      * IdleStateEvent event; if (firstWriterIdleEvent) { firstWriterIdleEvent =
@@ -165,7 +165,7 @@ public class AutoFlushHandler extends ChannelDuplexHandler {
                 }
             } else {
                 // Write occurred before the timeout - set a new timeout with shorter delay.
-                writerIdleTimeout = ctx.executor().schedule(this, nextDelay, TimeUnit.NANOSECONDS);
+                wheel.schedule(this, nextDelay, TimeUnit.NANOSECONDS);
             }
         }
     }
@@ -17,27 +17,120 @@ package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
 import io.moquette.broker.config.IConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 class BrokerConfiguration {
 
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerConfiguration.class);
+
     private final boolean allowAnonymous;
     private final boolean allowZeroByteClientId;
     private final boolean reauthorizeSubscriptionsOnConnect;
     private final boolean immediateBufferFlush;
+    private final int outboundBufferMaxMessages;
+    private final long outboundBufferMaxBytes;
+    private final OutboundBuffer.OverflowPolicy outboundOverflowPolicy;
+    private final InflightWindow.Sizing inflightWindowSizing;
+    private final ResendPolicy resendPolicy;
 
     BrokerConfiguration(IConfig props) {
         allowAnonymous = props.boolProp(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, true);
         allowZeroByteClientId = props.boolProp(BrokerConstants.ALLOW_ZERO_BYTE_CLIENT_ID_PROPERTY_NAME, false);
         reauthorizeSubscriptionsOnConnect = props.boolProp(BrokerConstants.REAUTHORIZE_SUBSCRIPTIONS_ON_CONNECT, false);
         immediateBufferFlush = props.boolProp(BrokerConstants.IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME, false);
+        outboundBufferMaxMessages = props.intProp(BrokerConstants.OUTBOUND_BUFFER_MAX_MESSAGES_PROPERTY_NAME,
+                                                  BrokerConstants.DEFAULT_OUTBOUND_BUFFER_MAX_MESSAGES);
+        outboundBufferMaxBytes = props.intProp(BrokerConstants.OUTBOUND_BUFFER_MAX_BYTES_PROPERTY_NAME,
+                                               BrokerConstants.DEFAULT_OUTBOUND_BUFFER_MAX_BYTES);
+        final String policyName = props.getProperty(BrokerConstants.OUTBOUND_BUFFER_OVERFLOW_POLICY_PROPERTY_NAME,
+                                                    BrokerConstants.DEFAULT_OUTBOUND_BUFFER_OVERFLOW_POLICY);
+        final OutboundBuffer.OverflowPolicy policy = OutboundBuffer.OverflowPolicy.of(policyName);
+        if (policy == null) {
+            LOG.warn("Unknown outbound buffer overflow policy {}, using {}", policyName,
+                     BrokerConstants.DEFAULT_OUTBOUND_BUFFER_OVERFLOW_POLICY);
+            outboundOverflowPolicy =
+                OutboundBuffer.OverflowPolicy.of(BrokerConstants.DEFAULT_OUTBOUND_BUFFER_OVERFLOW_POLICY);
+        } else {
+            outboundOverflowPolicy = policy;
+        }
+        inflightWindowSizing = new InflightWindow.Sizing(
+            props.intProp(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME,
+                          BrokerConstants.DEFAULT_INFLIGHT_WINDOW_SIZE),
+            parseWindowSizes(props.getProperty(BrokerConstants.INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME)),
+            parseWindowSizes(props.getProperty(BrokerConstants.INFLIGHT_WINDOW_USERS_PROPERTY_NAME)),
+            props.boolProp(BrokerConstants.INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME, false),
+            props.intProp(BrokerConstants.INFLIGHT_WINDOW_MIN_PROPERTY_NAME,
+                          BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MIN),
+            props.intProp(BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME,
+                          BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MAX));
+        resendPolicy = parseResendPolicy(props);
+    }
+
+    private static ResendPolicy parseResendPolicy(IConfig props) {
+        try {
+            return new ResendPolicy(
+                props.intProp(BrokerConstants.RESEND_INTERVAL_PROPERTY_NAME,
+                              BrokerConstants.DEFAULT_RESEND_INTERVAL_MS),
+                props.intProp(BrokerConstants.RESEND_INITIAL_DELAY_PROPERTY_NAME,
+                              BrokerConstants.DEFAULT_RESEND_INITIAL_DELAY_MS),
+                props.intProp(BrokerConstants.RESEND_MAX_DELAY_PROPERTY_NAME,
+                              BrokerConstants.DEFAULT_RESEND_MAX_DELAY_MS),
+                props.intProp(BrokerConstants.RESEND_JITTER_PERCENT_PROPERTY_NAME,
+                              BrokerConstants.DEFAULT_RESEND_JITTER_PERCENT),
+                props.intProp(BrokerConstants.RESEND_MAX_PER_CHECK_PROPERTY_NAME,
+                              BrokerConstants.DEFAULT_RESEND_MAX_PER_CHECK));
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Invalid resend configuration, using the default one. {}", ex.getMessage());
+            return ResendPolicy.DEFAULT;
+        }
+    }
+
+    /**
+     * @param value comma separated list of name:size, as sensor-1:100,sensor-2:50
+     */
+    private static Map<String, Integer> parseWindowSizes(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> sizes = new HashMap<>();
+        for (String entry : value.split(",")) {
+            // the size follows the last colon, client ids can contain colons
+            final int separatorIdx = entry.lastIndexOf(':');
+            try {
+                sizes.put(entry.substring(0, separatorIdx).trim(),
+                          Integer.parseInt(entry.substring(separatorIdx + 1).trim()));
+            } catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                LOG.warn("Invalid inflight window size {}, expected name:size", entry.trim());
+            }
+        }
+        return sizes;
     }
 
     public BrokerConfiguration(boolean allowAnonymous, boolean allowZeroByteClientId,
                                boolean reauthorizeSubscriptionsOnConnect, boolean immediateBufferFlush) {
+        this(allowAnonymous, allowZeroByteClientId, reauthorizeSubscriptionsOnConnect, immediateBufferFlush,
+             BrokerConstants.DEFAULT_OUTBOUND_BUFFER_MAX_MESSAGES, BrokerConstants.DEFAULT_OUTBOUND_BUFFER_MAX_BYTES,
+             OutboundBuffer.OverflowPolicy.of(BrokerConstants.DEFAULT_OUTBOUND_BUFFER_OVERFLOW_POLICY));
+    }
+
+    BrokerConfiguration(boolean allowAnonymous, boolean allowZeroByteClientId,
+                        boolean reauthorizeSubscriptionsOnConnect, boolean immediateBufferFlush,
+                        int outboundBufferMaxMessages, long outboundBufferMaxBytes,
+                        OutboundBuffer.OverflowPolicy outboundOverflowPolicy) {
         this.allowAnonymous = allowAnonymous;
         this.allowZeroByteClientId = allowZeroByteClientId;
         this.reauthorizeSubscriptionsOnConnect = reauthorizeSubscriptionsOnConnect;
         this.immediateBufferFlush = immediateBufferFlush;
+        this.outboundBufferMaxMessages = outboundBufferMaxMessages;
+        this.outboundBufferMaxBytes = outboundBufferMaxBytes;
+        this.outboundOverflowPolicy = outboundOverflowPolicy;
+        this.inflightWindowSizing = InflightWindow.Sizing.DEFAULT;
+        this.resendPolicy = ResendPolicy.DEFAULT;
     }
 
     public boolean isAllowAnonymous() {
@@ -55,4 +148,24 @@ class BrokerConfiguration {
     public boolean isImmediateBufferFlush() {
         return immediateBufferFlush;
     }
+
+    public int getOutboundBufferMaxMessages() {
+        return outboundBufferMaxMessages;
+    }
+
+    public long getOutboundBufferMaxBytes() {
+        return outboundBufferMaxBytes;
+    }
+
+    OutboundBuffer.OverflowPolicy getOutboundOverflowPolicy() {
+        return outboundOverflowPolicy;
+    }
+
+    InflightWindow.Sizing getInflightWindowSizing() {
+        return inflightWindowSizing;
+    }
+
+    ResendPolicy getResendPolicy() {
+        return resendPolicy;
+    }
 }
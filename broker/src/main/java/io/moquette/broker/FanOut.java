@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivery of a publish to the sessions of its subscribers. Up to the inline threshold the sessions are served
+ * by the thread processing the publish, beyond it they are grouped by the event loop of their connection, in
+ * chunks executed by those loops. A publish on a crowded topic then doesn't hold the publisher's loop, and all
+ * the other connections it serves, for the whole fan out, and the PUBACK to the publisher doesn't wait for it.
+ *
+ * A session joins a chunk only if it reserves the delivery (see {@link Session#reserveQueuedPublish()}), granted
+ * when nothing is waiting in its mailbox. Until the chunk delivers it, the session queues in its mailbox every
+ * other publish, even one sent inline by its own loop, and the drain of the mailbox runs after the chunk. So for
+ * every subscriber the publishes of a topic keep their order, whichever way each one is delivered.
+ */
+class FanOut {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FanOut.class);
+
+    /**
+     * Every subscriber served by the thread processing the publish.
+     */
+    static final FanOut INLINE = new FanOut(Integer.MAX_VALUE, 1);
+
+    private final int inlineThreshold;
+    private final int chunkSize;
+
+    /**
+     * @param inlineThreshold number of subscribers of a publish served directly by the publishing thread.
+     * @param chunkSize max number of subscribers served by a single task submitted to an event loop.
+     */
+    FanOut(int inlineThreshold, int chunkSize) {
+        if (inlineThreshold < 0) {
+            throw new IllegalArgumentException("Inline threshold can't be negative, was " + inlineThreshold);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive, was " + chunkSize);
+        }
+        this.inlineThreshold = inlineThreshold;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param payload      the payload of the publish, retained by the batch as long as it needs it.
+     * @param encodedTopic the topic encoded for all the subscribers, retained by the batch as long as it needs it.
+     */
+    Batch begin(Topic topic, ByteBuf payload, ByteBuf encodedTopic) {
+        return new Batch(topic, payload, encodedTopic);
+    }
+
+    /**
+     * Fan out of a single publish, not thread safe, it's used only by the thread processing the publish.
+     */
+    final class Batch {
+
+        private final Topic topic;
+        private final ByteBuf payload;
+        private final ByteBuf encodedTopic;
+        private int delivered;
+        private Map<EventLoop, Chunk> pending;
+
+        private Batch(Topic topic, ByteBuf payload, ByteBuf encodedTopic) {
+            this.topic = topic;
+            this.payload = payload;
+            this.encodedTopic = encodedTopic;
+        }
+
+        void deliver(Session session, MqttQoS qos) {
+            final EventLoop eventLoop = delivered++ < inlineThreshold ? null : session.reserveQueuedPublish();
+            if (eventLoop == null) {
+                // we need to retain because duplicate only copy r/w indexes and don't retain() causing refCnt = 0
+                session.sendPublishOnSessionAtQos(topic, qos, payload.retainedDuplicate(), encodedTopic);
+                return;
+            }
+            if (pending == null) {
+                pending = new IdentityHashMap<>();
+            }
+            final Chunk chunk = pending.computeIfAbsent(eventLoop, loop -> new Chunk(chunkSize));
+            chunk.add(session, qos);
+            if (chunk.isFull()) {
+                pending.remove(eventLoop);
+                submit(eventLoop, chunk);
+            }
+        }
+
+        /**
+         * Submits the chunks not yet full, to be invoked once every session has been delivered.
+         */
+        void complete() {
+            if (pending != null) {
+                pending.forEach(this::submit);
+                pending = null;
+            }
+        }
+
+        private void submit(EventLoop eventLoop, Chunk chunk) {
+            final ByteBuf chunkPayload = payload.retainedDuplicate();
+            final ByteBuf chunkTopic = encodedTopic.retainedDuplicate();
+            try {
+                eventLoop.execute(() -> {
+                    try {
+                        chunk.deliver(topic, chunkPayload, chunkTopic);
+                    } finally {
+                        chunkPayload.release();
+                        chunkTopic.release();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                LOG.warn("Event loop is shutting down, dropped PUBLISH on topic {} to {} sessions", topic,
+                         chunk.size, ex);
+                chunk.cancel();
+                chunkPayload.release();
+                chunkTopic.release();
+            }
+        }
+    }
+
+    private static final class Chunk {
+
+        private final Session[] sessions;
+        private final MqttQoS[] qos;
+        private int size;
+
+        Chunk(int capacity) {
+            this.sessions = new Session[capacity];
+            this.qos = new MqttQoS[capacity];
+        }
+
+        void add(Session session, MqttQoS qos) {
+            this.sessions[size] = session;
+            this.qos[size] = qos;
+            size++;
+        }
+
+        boolean isFull() {
+            return size == sessions.length;
+        }
+
+        void deliver(Topic topic, ByteBuf payload, ByteBuf encodedTopic) {
+            for (int i = 0; i < size; i++) {
+                sessions[i].deliverQueuedPublish(topic, qos[i], payload.retainedDuplicate(), encodedTopic);
+            }
+        }
+
+        void cancel() {
+            for (int i = 0; i < size; i++) {
+                sessions[i].cancelQueuedPublish();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces the flushes of a channel. A write not flushed immediately schedules the flush of the channel on its
+ * event loop, after the IO and the tasks already queued, unless a flush is already scheduled. All the writes of
+ * the current run of the loop, e.g. a fan out or the acks of a read batch, are then flushed together, with a
+ * single syscall, and without waiting for the idle flush.
+ */
+final class FlushScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FlushScheduler.class);
+
+    private final Channel channel;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::flush;
+
+    FlushScheduler(Channel channel) {
+        this.channel = channel;
+    }
+
+    void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.eventLoop().execute(flushTask);
+        } catch (RejectedExecutionException ex) {
+            LOG.debug("Event loop is shutting down, flush not scheduled on channel {}", channel);
+            flushScheduled.set(false);
+        }
+    }
+
+    private void flush() {
+        // before the flush, so that a write done while flushing schedules the next one
+        flushScheduled.set(false);
+        channel.flush();
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * The packets of a session sent and not yet acknowledged, keyed by packet id, with the time of their first send, the
+ * time of their next resend and the count of their resends. Kept in a ring in first send order, with an open
+ * addressing index from the packet id to the slot of the ring, all in primitive arrays: adding, looking up and
+ * removing a packet doesn't box nor allocate, except to grow. The oldest packet is at the head of the ring, so the
+ * scan of the packets to resend walks it in order and stops at the first one sent too recently to be due; a resent
+ * packet keeps its place, with its next resend time pushed forward.
+ *
+ * Accessed only by the event loop of the connection, as the rest of the inflight state.
+ */
+final class InflightPackets {
+
+    static final int NO_PACKET = 0;
+    static final long NO_SEND_TIME = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the ring, a slot is free when its packet id is NO_PACKET
+    private int[] packetIds;
+    private SessionRegistry.EnqueuedMessage[] messages;
+    private long[] sentAt;
+    private long[] resendAt;
+    private int[] resends;
+    // head and tail count the packets added since the creation, the slot is the count masked by the capacity
+    private int head;
+    private int tail;
+    private int size;
+
+    // packet id to slot, linear probing with a load of 1/2 at most, keys NO_PACKET are empty
+    private int[] indexKeys;
+    private int[] indexSlots;
+
+    InflightPackets() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        packetIds = new int[capacity];
+        messages = new SessionRegistry.EnqueuedMessage[capacity];
+        sentAt = new long[capacity];
+        resendAt = new long[capacity];
+        resends = new int[capacity];
+        indexKeys = new int[capacity * 2];
+        indexSlots = new int[capacity * 2];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Add the packet at the tail, the packet id must not be already inflight.
+     */
+    void add(int packetId, SessionRegistry.EnqueuedMessage msg, long sentAtNanos, long resendAtNanos) {
+        if (tail - head == packetIds.length) {
+            // the ring is full of packets and of the holes left by the ones acknowledged out of order
+            resize(size * 2 > packetIds.length ? packetIds.length * 2 : packetIds.length);
+        }
+        final int slot = tail & (packetIds.length - 1);
+        packetIds[slot] = packetId;
+        messages[slot] = msg;
+        sentAt[slot] = sentAtNanos;
+        resendAt[slot] = resendAtNanos;
+        resends[slot] = 0;
+        tail++;
+        size++;
+        indexPut(packetId, slot);
+    }
+
+    SessionRegistry.EnqueuedMessage get(int packetId) {
+        final int slot = slotOf(packetId);
+        return slot >= 0 ? messages[slot] : null;
+    }
+
+    /**
+     * @return the time of the send of the packet, for the measure of its round trip, or {@link #NO_SEND_TIME} if
+     *   the packet isn't inflight or has been resent, so that the ack could be of any of its sends.
+     */
+    long firstSendTime(int packetId) {
+        final int slot = slotOf(packetId);
+        return slot >= 0 && resends[slot] == 0 ? sentAt[slot] : NO_SEND_TIME;
+    }
+
+    /**
+     * @return the number of resends of the packet, counting the one in progress, 0 if the packet isn't inflight.
+     */
+    int resends(int packetId) {
+        final int slot = slotOf(packetId);
+        return slot >= 0 ? resends[slot] : 0;
+    }
+
+    /**
+     * @return the removed message, or null if the packet isn't inflight.
+     */
+    SessionRegistry.EnqueuedMessage remove(int packetId) {
+        final int slot = slotOf(packetId);
+        if (slot < 0) {
+            return null;
+        }
+        final SessionRegistry.EnqueuedMessage msg = messages[slot];
+        indexRemove(packetId);
+        clearSlot(slot);
+        size--;
+        // skip the holes, to keep the oldest packet at the head
+        while (head != tail && packetIds[head & (packetIds.length - 1)] == NO_PACKET) {
+            head++;
+        }
+        return msg;
+    }
+
+    private void clearSlot(int slot) {
+        packetIds[slot] = NO_PACKET;
+        messages[slot] = null;
+    }
+
+    /**
+     * Hand to the resender the packets whose resend time is past, in first send order, at most max of them. The
+     * walk stops at the first packet sent after sentBefore, the packets following it can't be due either. The
+     * resender may remove packets, not add them.
+     *
+     * @return the number of packets resent.
+     */
+    int resendDue(long nowNanos, long sentBefore, int max, Resender resender) {
+        final int mask = packetIds.length - 1;
+        int count = 0;
+        for (int i = head; i != tail && count < max; i++) {
+            final int slot = i & mask;
+            final int packetId = packetIds[slot];
+            if (packetId == NO_PACKET) {
+                continue;
+            }
+            if (sentAt[slot] - sentBefore > 0) {
+                break;
+            }
+            if (resendAt[slot] - nowNanos > 0) {
+                continue;
+            }
+            // counted before the resend, the packet is on the wire from then on
+            final long delay = resender.resend(packetId, messages[slot], resends[slot]++);
+            count++;
+            if (packetIds[slot] == packetId) {
+                resendAt[slot] = nowNanos + delay;
+            }
+        }
+        return count;
+    }
+
+    interface Resender {
+
+        /**
+         * Send again the packet, already resent the given number of times.
+         *
+         * @return the delay to its next resend, in nanoseconds.
+         */
+        long resend(int packetId, SessionRegistry.EnqueuedMessage msg, int resends);
+    }
+
+    private void resize(int capacity) {
+        final int[] oldPacketIds = packetIds;
+        final SessionRegistry.EnqueuedMessage[] oldMessages = messages;
+        final long[] oldSentAt = sentAt;
+        final long[] oldResendAt = resendAt;
+        final int[] oldResends = resends;
+        final int oldHead = head;
+        final int oldTail = tail;
+        allocate(capacity);
+        head = 0;
+        tail = 0;
+        for (int i = oldHead; i != oldTail; i++) {
+            final int oldSlot = i & (oldPacketIds.length - 1);
+            if (oldPacketIds[oldSlot] == NO_PACKET) {
+                continue;
+            }
+            packetIds[tail] = oldPacketIds[oldSlot];
+            messages[tail] = oldMessages[oldSlot];
+            sentAt[tail] = oldSentAt[oldSlot];
+            resendAt[tail] = oldResendAt[oldSlot];
+            resends[tail] = oldResends[oldSlot];
+            indexPut(packetIds[tail], tail);
+            tail++;
+        }
+    }
+
+    private static int hash(int packetId) {
+        final int h = packetId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slotOf(int packetId) {
+        if (packetId == NO_PACKET) {
+            return -1;
+        }
+        final int mask = indexKeys.length - 1;
+        for (int i = hash(packetId) & mask; indexKeys[i] != NO_PACKET; i = (i + 1) & mask) {
+            if (indexKeys[i] == packetId) {
+                return indexSlots[i];
+            }
+        }
+        return -1;
+    }
+
+    private void indexPut(int packetId, int slot) {
+        final int mask = indexKeys.length - 1;
+        int i = hash(packetId) & mask;
+        while (indexKeys[i] != NO_PACKET) {
+            i = (i + 1) & mask;
+        }
+        indexKeys[i] = packetId;
+        indexSlots[i] = slot;
+    }
+
+    private void indexRemove(int packetId) {
+        final int mask = indexKeys.length - 1;
+        int i = hash(packetId) & mask;
+        while (indexKeys[i] != packetId) {
+            i = (i + 1) & mask;
+        }
+        // backward shift deletion, the keys following in the run move back if the hole is between them and their
+        // home, so that the lookups need no tombstone
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (indexKeys[j] == NO_PACKET) {
+                break;
+            }
+            final int home = hash(indexKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                indexKeys[i] = indexKeys[j];
+                indexSlots[i] = indexSlots[j];
+                i = j;
+            }
+        }
+        indexKeys[i] = NO_PACKET;
+    }
+}
@@ -18,16 +18,15 @@ package io.moquette.broker;
 
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Resend inflight not ack'ed publish packets (QoS1 PUB and QoS2 PUB/PUBREL). It's inspired by IdleStateHandler but it's
- * specialized version, just invoking Session's resendInflightNotAcked by the channel after a period.
+ * specialized version, just invoking Session's resendInflightNotAcked by the channel after a period. The timeout is
+ * driven by the {@link TimingWheel} of the event loop.
  */
 public class InflightResender extends ChannelDuplexHandler {
 
@@ -37,7 +36,7 @@ public class InflightResender extends ChannelDuplexHandler {
     public static class ResendNotAckedPublishes {
     }
 
-    private final class WriterIdleTimeoutTask implements Runnable {
+    private final class WriterIdleTimeoutTask extends TimingWheel.Timeout {
 
         private final ChannelHandlerContext ctx;
 
@@ -46,14 +45,14 @@ public class InflightResender extends ChannelDuplexHandler {
         }
 
         @Override
-        public void run() {
+        void expired() {
             if (!ctx.channel().isOpen()) {
                 return;
             }
             long nextDelay = resenderTimeNanos - (System.nanoTime() - lastExecutionTime);
             if (nextDelay <= 0) {
                 // Writer is idle - set a new timeout and notify the callback.
-                resenderTimeout = ctx.executor().schedule(this, resenderTimeNanos, TimeUnit.NANOSECONDS);
+                wheel.schedule(this, resenderTimeNanos, TimeUnit.NANOSECONDS);
                 try {
                     resendNotAcked(ctx/* , event */);
                 } catch (Throwable t) {
@@ -61,7 +60,7 @@ public class InflightResender extends ChannelDuplexHandler {
                 }
             } else {
                 // Write occurred before the timeout - set a new timeout with shorter delay.
-                resenderTimeout = ctx.executor().schedule(this, nextDelay, TimeUnit.NANOSECONDS);
+                wheel.schedule(this, nextDelay, TimeUnit.NANOSECONDS);
             }
         }
     }
@@ -70,7 +69,8 @@ public class InflightResender extends ChannelDuplexHandler {
     private static final long MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
     private final long resenderTimeNanos;
-    volatile ScheduledFuture<?> resenderTimeout;
+    private TimingWheel wheel;
+    private WriterIdleTimeoutTask resenderTimeout;
     volatile long lastExecutionTime;
 
     private volatile int state; // 0 - none, 1 - initialized, 2 - destroyed
@@ -137,17 +137,17 @@ public class InflightResender extends ChannelDuplexHandler {
 
         state = 1;
 
-        EventExecutor loop = ctx.executor();
-
         lastExecutionTime = System.nanoTime();
-        resenderTimeout = loop.schedule(new WriterIdleTimeoutTask(ctx), resenderTimeNanos, TimeUnit.NANOSECONDS);
+        wheel = TimingWheel.of(ctx.executor());
+        resenderTimeout = new WriterIdleTimeoutTask(ctx);
+        wheel.schedule(resenderTimeout, resenderTimeNanos, TimeUnit.NANOSECONDS);
     }
 
     private void destroy() {
         state = 2;
 
         if (resenderTimeout != null) {
-            resenderTimeout.cancel(false);
+            wheel.cancel(resenderTimeout);
             resenderTimeout = null;
         }
     }
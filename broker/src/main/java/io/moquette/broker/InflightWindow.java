@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Max number of QoS1 and QoS2 publishes of a session sent and not yet acknowledged. Fixed, or adaptive: grown by
+ * one each window of acks while the round trip time stays close to the lowest seen and the channel is writable,
+ * halved when the round trip time rises, when the channel is not writable or when publishes have to be resent.
+ * Accessed only by the event loop of the connection, as the rest of the inflight state.
+ */
+final class InflightWindow {
+
+    /**
+     * The broker wide configuration of the windows, with the sizes of specific clients and users.
+     */
+    static final class Sizing {
+
+        static final Sizing DEFAULT = new Sizing(BrokerConstants.DEFAULT_INFLIGHT_WINDOW_SIZE, Collections.emptyMap(),
+                                                 Collections.emptyMap(), false,
+                                                 BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MIN,
+                                                 BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MAX);
+
+        private final int size;
+        private final Map<String, Integer> sizeByClient;
+        private final Map<String, Integer> sizeByUser;
+        private final boolean adaptive;
+        private final int min;
+        private final int max;
+
+        /**
+         * @throws IllegalArgumentException if a size is out of the 1..65535 range of the packet ids, or if min is
+         *   greater than max.
+         */
+        Sizing(int size, Map<String, Integer> sizeByClient, Map<String, Integer> sizeByUser, boolean adaptive,
+               int min, int max) {
+            checkSize(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME, size);
+            sizeByClient.forEach((clientId, clientSize) ->
+                checkSize(BrokerConstants.INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME + " of " + clientId, clientSize));
+            sizeByUser.forEach((username, userSize) ->
+                checkSize(BrokerConstants.INFLIGHT_WINDOW_USERS_PROPERTY_NAME + " of " + username, userSize));
+            checkSize(BrokerConstants.INFLIGHT_WINDOW_MIN_PROPERTY_NAME, min);
+            checkSize(BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME, max);
+            if (min > max) {
+                throw new IllegalArgumentException(BrokerConstants.INFLIGHT_WINDOW_MIN_PROPERTY_NAME
+                    + " can't be greater than " + BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME + ", was "
+                    + min + " > " + max);
+            }
+            this.size = size;
+            this.sizeByClient = sizeByClient;
+            this.sizeByUser = sizeByUser;
+            this.adaptive = adaptive;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @return the window of a connection, sized for its client id first, then for its username, an adaptive
+         *   window starts from that size.
+         */
+        InflightWindow windowFor(String clientId, String username) {
+            Integer initial = clientId != null ? sizeByClient.get(clientId) : null;
+            if (initial == null && username != null) {
+                initial = sizeByUser.get(username);
+            }
+            final int windowSize = initial != null ? initial : size;
+            if (!adaptive) {
+                return new InflightWindow(windowSize);
+            }
+            return new InflightWindow(Math.max(min, Math.min(max, windowSize)), min, max, true);
+        }
+    }
+
+    /**
+     * The window can't be empty, nor larger than the packet ids available to the publishes in flight.
+     */
+    private static void checkSize(String name, int size) {
+        if (size < 1 || size > PacketIdAllocator.MAX_PACKET_ID) {
+            throw new IllegalArgumentException(name + " must be in 1.." + PacketIdAllocator.MAX_PACKET_ID + ", was "
+                                               + size);
+        }
+    }
+
+    // the round trip time is considered raised beyond this factor of the lowest one...
+    private static final int RAISED_RTT_FACTOR = 2;
+    // ...and at least this much more, not to take the jitter of a LAN for a congestion
+    private static final long RTT_TOLERANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int min;
+    private final int max;
+    private final boolean adaptive;
+    private int size;
+    private long smoothedRttNanos;
+    private long minRttNanos = Long.MAX_VALUE;
+    private int acksSinceResize;
+
+    InflightWindow(int size) {
+        this(size, size, size, false);
+        checkSize("Inflight window size", size);
+    }
+
+    private InflightWindow(int size, int min, int max, boolean adaptive) {
+        this.size = size;
+        this.min = min;
+        this.max = max;
+        this.adaptive = adaptive;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Account a publish acknowledged, resizing the window once per window of acks.
+     *
+     * @param rttNanos time from the send of the publish to its ack.
+     * @param writable whether the channel of the connection is writable.
+     * @return the change of the size.
+     */
+    int acked(long rttNanos, boolean writable) {
+        if (!adaptive) {
+            return 0;
+        }
+        smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos + (rttNanos - smoothedRttNanos) / 8;
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        acksSinceResize++;
+        if (acksSinceResize < size) {
+            return 0;
+        }
+        if (!writable || isRttRaised()) {
+            return resize(size / 2);
+        }
+        return resize(size + 1);
+    }
+
+    private boolean isRttRaised() {
+        return smoothedRttNanos > minRttNanos * RAISED_RTT_FACTOR
+            && smoothedRttNanos - minRttNanos > RTT_TOLERANCE_NANOS;
+    }
+
+    /**
+     * Account publishes not acknowledged in time.
+     *
+     * @return the change of the size.
+     */
+    int resent() {
+        return adaptive ? resize(size / 2) : 0;
+    }
+
+    private int resize(int newSize) {
+        final int bounded = Math.max(min, Math.min(max, newSize));
+        final int delta = bounded - size;
+        size = bounded;
+        acksSinceResize = 0;
+        return delta;
+    }
+
+    @Override
+    public String toString() {
+        return "InflightWindow{size=" + size + ", adaptive=" + adaptive + ", smoothedRttNanos=" + smoothedRttNanos
+            + '}';
+    }
+}
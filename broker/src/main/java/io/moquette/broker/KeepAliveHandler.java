@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires a READER_IDLE {@link IdleStateEvent} when nothing is read from the channel for the idle time. It's the
+ * reader part of IdleStateHandler, driven by the {@link TimingWheel} of the event loop instead of its scheduler,
+ * and its idle time can be changed in place, as on CONNECT to follow the keep alive of the client.
+ */
+public class KeepAliveHandler extends ChannelDuplexHandler {
+
+    private final class ReaderIdleTimeout extends TimingWheel.Timeout {
+
+        private final ChannelHandlerContext ctx;
+
+        ReaderIdleTimeout(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        void expired() {
+            if (!ctx.channel().isOpen()) {
+                return;
+            }
+            long nextDelay = idleTimeNanos;
+            if (!reading) {
+                nextDelay -= System.nanoTime() - lastReadTime;
+            }
+            if (nextDelay <= 0) {
+                // Reader is idle - set a new timeout and notify the callback.
+                wheel.schedule(this, idleTimeNanos, TimeUnit.NANOSECONDS);
+                final IdleStateEvent event = firstEvent ? IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT
+                    : IdleStateEvent.READER_IDLE_STATE_EVENT;
+                firstEvent = false;
+                try {
+                    ctx.fireUserEventTriggered(event);
+                } catch (Throwable t) {
+                    ctx.fireExceptionCaught(t);
+                }
+            } else {
+                // Read occurred before the timeout - set a new timeout with shorter delay.
+                wheel.schedule(this, nextDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static final long MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // all accessed only by the event loop of the channel
+    private long idleTimeNanos;
+    private long lastReadTime;
+    private boolean reading;
+    private boolean firstEvent = true;
+    private TimingWheel wheel;
+    private ReaderIdleTimeout readerIdleTimeout;
+    private int state; // 0 - none, 1 - initialized, 2 - destroyed
+
+    /**
+     * @param idleTime the idle time, 0 to never fire.
+     */
+    public KeepAliveHandler(long idleTime, TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException("unit");
+        }
+        idleTimeNanos = toIdleTimeNanos(idleTime, unit);
+    }
+
+    private static long toIdleTimeNanos(long idleTime, TimeUnit unit) {
+        return idleTime <= 0 ? 0 : Math.max(unit.toNanos(idleTime), MIN_TIMEOUT_NANOS);
+    }
+
+    /**
+     * Change the idle time, counting it from now. To be invoked by the event loop of the channel.
+     *
+     * @param idleTime the idle time, 0 to never fire.
+     */
+    void setIdleTime(long idleTime, TimeUnit unit) {
+        idleTimeNanos = toIdleTimeNanos(idleTime, unit);
+        if (state != 1) {
+            return;
+        }
+        lastReadTime = System.nanoTime();
+        if (idleTimeNanos > 0) {
+            wheel.schedule(readerIdleTimeout, idleTimeNanos, TimeUnit.NANOSECONDS);
+        } else {
+            wheel.cancel(readerIdleTimeout);
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+            // channelActive() event has been fired already, which means this.channelActive() will
+            // not be invoked. We have to initialize here instead.
+            initialize(ctx);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        destroy();
+    }
+
+    @Override
+    public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+        // Initialize early if channel is active already.
+        if (ctx.channel().isActive()) {
+            initialize(ctx);
+        }
+        super.channelRegistered(ctx);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        initialize(ctx);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        destroy();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        reading = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (reading) {
+            lastReadTime = System.nanoTime();
+            reading = false;
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private void initialize(ChannelHandlerContext ctx) {
+        switch (state) {
+            case 1:
+            case 2:
+                return;
+        }
+
+        state = 1;
+
+        lastReadTime = System.nanoTime();
+        wheel = TimingWheel.of(ctx.executor());
+        readerIdleTimeout = new ReaderIdleTimeout(ctx);
+        if (idleTimeNanos > 0) {
+            wheel.schedule(readerIdleTimeout, idleTimeNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void destroy() {
+        state = 2;
+
+        if (readerIdleTimeout != null) {
+            wheel.cancel(readerIdleTimeout);
+            readerIdleTimeout = null;
+        }
+    }
+}
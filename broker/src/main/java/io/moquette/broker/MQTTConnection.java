@@ -15,6 +15,7 @@
  */
 package io.moquette.broker;
 
+import io.moquette.broker.metrics.MessageMetricsHandler;
 import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.security.IAuthenticator;
 import io.netty.buffer.ByteBuf;
@@ -22,7 +23,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +31,6 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
 import static io.netty.channel.ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE;
@@ -48,12 +48,17 @@ final class MQTTConnection {
     private SessionRegistry sessionRegistry;
     private final PostOffice postOffice;
     private boolean connected;
-    private final AtomicInteger lastPacketId = new AtomicInteger(0);
+    private final FlushScheduler flushScheduler;
+    private final OutboundBuffer outboundBuffer;
+    private boolean batchingWrites;
 
     MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
                    SessionRegistry sessionRegistry, PostOffice postOffice) {
         this.channel = channel;
+        this.flushScheduler = new FlushScheduler(channel);
         this.brokerConfig = brokerConfig;
+        this.outboundBuffer = new OutboundBuffer(brokerConfig.getOutboundBufferMaxMessages(),
+                                                 brokerConfig.getOutboundBufferMaxBytes());
         this.authenticator = authenticator;
         this.sessionRegistry = sessionRegistry;
         this.postOffice = postOffice;
@@ -183,7 +188,8 @@ final class MQTTConnection {
 
     private void setupInflightResender(Channel channel) {
         channel.pipeline()
-            .addFirst("inflightResender", new InflightResender(5_000, TimeUnit.MILLISECONDS));
+            .addFirst("inflightResender", new InflightResender(brokerConfig.getResendPolicy().intervalMillis(),
+                                                               TimeUnit.MILLISECONDS));
     }
 
     private void initializeKeepAliveTimeout(Channel channel, MqttConnectMessage msg, String clientId) {
@@ -199,10 +205,12 @@ final class MQTTConnection {
     }
 
     private void setIdleTime(ChannelPipeline pipeline, int idleTime) {
-        if (pipeline.names().contains("idleStateHandler")) {
-            pipeline.remove("idleStateHandler");
+        final KeepAliveHandler keepAliveHandler = (KeepAliveHandler) pipeline.get("idleStateHandler");
+        if (keepAliveHandler != null) {
+            keepAliveHandler.setIdleTime(idleTime, TimeUnit.SECONDS);
+        } else {
+            pipeline.addFirst("idleStateHandler", new KeepAliveHandler(idleTime, TimeUnit.SECONDS));
         }
-        pipeline.addFirst("idleStateHandler", new IdleStateHandler(idleTime, 0, 0));
     }
 
     private boolean isNotProtocolVersion(MqttConnectMessage msg, MqttVersion version) {
@@ -251,6 +259,7 @@ final class MQTTConnection {
             return;
         }
         LOG.info("Notifying connection lost event. CId: {}, channel: {}", clientID, channel);
+        outboundBuffer.clear();
         Session session = sessionRegistry.retrieve(clientID);
         if (session.hasWill()) {
             postOffice.fireWill(session.getWill());
@@ -373,7 +382,7 @@ final class MQTTConnection {
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBREC, false, AT_MOST_ONCE,
             false, 0);
         MqttPubAckMessage pubRecMessage = new MqttPubAckMessage(fixedHeader, from(messageID));
-        sendIfWritableElseDrop(pubRecMessage);
+        sendIfWritableElseBuffer(pubRecMessage);
     }
 
     private void processPubRel(MqttMessage msg) {
@@ -395,26 +404,95 @@ final class MQTTConnection {
             LOG.debug("Sending PUBLISH({}) message. MessageId={}, CId={}, topic={}", qos, packetId, clientId,
                       topicName);
         }
-        sendIfWritableElseDrop(publishMsg);
+        sendIfWritableElseBuffer(publishMsg);
     }
 
-    void sendIfWritableElseDrop(MqttMessage msg) {
+    void sendIfWritableElseBuffer(MqttMessage msg) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("OUT {} on channel {}", msg.fixedHeader().messageType(), channel);
         }
-        if (channel.isWritable()) {
-            ChannelFuture channelFuture;
-            if (brokerConfig.isImmediateBufferFlush()) {
-                channelFuture = channel.writeAndFlush(msg);
+        if (!channel.eventLoop().inEventLoop()) {
+            // the outbound buffer is confined to the event loop
+            channel.eventLoop().execute(() -> sendIfWritableElseBuffer(msg));
+            return;
+        }
+        if (outboundBuffer.isEmpty() && channel.isWritable()) {
+            write(msg);
+            return;
+        }
+        if (!channel.isActive()) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        outboundBuffer.add(msg);
+        if (outboundBuffer.isOverflowing()) {
+            handleOutboundOverflow();
+        }
+    }
+
+    private void write(MqttMessage msg) {
+        ChannelFuture channelFuture;
+        if (batchingWrites) {
+            channelFuture = channel.write(msg);
+        } else if (brokerConfig.isImmediateBufferFlush()) {
+            channelFuture = channel.writeAndFlush(msg);
+        }
+        else {
+            channelFuture = channel.write(msg);
+            flushScheduler.scheduleFlush();
+        }
+        channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+    }
+
+    private void handleOutboundOverflow() {
+        final OutboundBuffer.OverflowPolicy policy = brokerConfig.getOutboundOverflowPolicy();
+        final Session session = sessionRegistry.retrieve(getClientId());
+        if (policy != OutboundBuffer.OverflowPolicy.DISCONNECT) {
+            MqttPublishMessage dropped;
+            while (outboundBuffer.isOverflowing() && (dropped = outboundBuffer.removeOldestQos0Publish()) != null) {
+                ReferenceCountUtil.release(dropped);
+                if (session != null) {
+                    session.outboundMessageDropped();
+                }
             }
-            else {
-                channelFuture = channel.write(msg);
+        }
+        if (policy == OutboundBuffer.OverflowPolicy.SPILL) {
+            MqttPublishMessage spilled;
+            while (outboundBuffer.isOverflowing()
+                   && (spilled = outboundBuffer.removeNewestPublishWithPacketId()) != null) {
+                final int packetId = spilled.variableHeader().packetId();
+                final boolean requeued = session != null && session.spill(packetId);
+                if (!requeued) {
+                    // a duplicate is left to the resend policy, its inflight record keeps the packet id
+                    LOG.warn("Outbound buffer full, dropped the publish that can't be spilled CId={}, packetId={}, "
+                             + "dup={}, topic={}", getClientId(), packetId, spilled.fixedHeader().isDup(),
+                             spilled.variableHeader().topicName());
+                    if (session != null) {
+                        session.outboundPublishDropped(packetId);
+                    }
+                }
+                ReferenceCountUtil.release(spilled);
             }
-            channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+        }
+        if (outboundBuffer.isOverflowing()) {
+            LOG.warn("Outbound buffer full, disconnecting slow consumer CId={}, messages: {}, bytes: {}",
+                     getClientId(), outboundBuffer.size(), outboundBuffer.bytes());
+            outboundBuffer.clear();
+            dropConnection();
+        }
+    }
+
+    /**
+     * Write what the outbound buffer holds, as long as the channel stays writable.
+     */
+    private void drainOutboundBuffer() {
+        while (!outboundBuffer.isEmpty() && channel.isWritable()) {
+            write(outboundBuffer.poll());
         }
     }
 
     public void writabilityChanged() {
+        drainOutboundBuffer();
         if (channel.isWritable()) {
             LOG.debug("Channel {} is again writable", channel);
             final Session session = sessionRegistry.retrieve(getClientId());
@@ -427,20 +505,31 @@ final class MQTTConnection {
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBACK, false, AT_MOST_ONCE,
                                                   false, 0);
         MqttPubAckMessage pubAckMessage = new MqttPubAckMessage(fixedHeader, from(messageID));
-        sendIfWritableElseDrop(pubAckMessage);
+        sendIfWritableElseBuffer(pubAckMessage);
     }
 
     private void sendPubCompMessage(int messageID) {
         LOG.trace("Sending PUBCOMP message on channel: {}, messageId: {}", channel, messageID);
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBCOMP, false, AT_MOST_ONCE, false, 0);
         MqttMessage pubCompMessage = new MqttMessage(fixedHeader, from(messageID));
-        sendIfWritableElseDrop(pubCompMessage);
+        sendIfWritableElseBuffer(pubCompMessage);
     }
 
     String getClientId() {
         return NettyUtils.clientID(channel);
     }
 
+    /**
+     * @return a new inflight window, sized for the client and the user of this connection.
+     */
+    InflightWindow newInflightWindow(String clientId) {
+        return brokerConfig.getInflightWindowSizing().windowFor(clientId, NettyUtils.userName(channel));
+    }
+
+    ResendPolicy resendPolicy() {
+        return brokerConfig.getResendPolicy();
+    }
+
     String getUsername() {
         return NettyUtils.userName(channel);
     }
@@ -450,26 +539,21 @@ final class MQTTConnection {
         sendPublish(publishMsg);
     }
 
-    public void sendPublishRetainedWithPacketId(Topic topic, MqttQoS qos, ByteBuf payload) {
-        final int packetId = nextPacketId();
-        MqttPublishMessage publishMsg = retainedPublishWithMessageId(topic.toString(), qos, payload, packetId);
-        sendPublish(publishMsg);
-    }
-
     private static MqttPublishMessage retainedPublish(String topic, MqttQoS qos, ByteBuf message) {
         return retainedPublishWithMessageId(topic, qos, message, 0);
     }
 
-    private static MqttPublishMessage retainedPublishWithMessageId(String topic, MqttQoS qos, ByteBuf message,
-                                                                   int messageId) {
+    static MqttPublishMessage retainedPublishWithMessageId(String topic, MqttQoS qos, ByteBuf message,
+                                                           int messageId) {
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, true, 0);
         MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic, messageId);
         return new MqttPublishMessage(fixedHeader, varHeader, message);
     }
 
     // TODO move this method in Session
-    void sendPublishNotRetainedQos0(Topic topic, MqttQoS qos, ByteBuf payload) {
-        MqttPublishMessage publishMsg = notRetainedPublish(topic.toString(), qos, payload);
+    void sendPublishNotRetainedQos0(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
+        MqttPublishMessage publishMsg = notRetainedPublishWithMessageId(topic.toString(), qos, payload, 0,
+                                                                        encodedTopic);
         sendPublish(publishMsg);
     }
 
@@ -484,13 +568,36 @@ final class MQTTConnection {
         return new MqttPublishMessage(fixedHeader, varHeader, message);
     }
 
-    public void resendNotAckedPublishes() {
-        final Session session = sessionRegistry.retrieve(getClientId());
-        session.resendInflightNotAcked();
+    /**
+     * @param encodedTopic the topic shared by all the publishes of a fan out, when not null the publish is a
+     *                     {@link SharedPublishMessage}.
+     */
+    static MqttPublishMessage notRetainedPublishWithMessageId(String topic, MqttQoS qos, ByteBuf message,
+                                                              int messageId, ByteBuf encodedTopic) {
+        if (encodedTopic == null) {
+            return notRetainedPublishWithMessageId(topic, qos, message, messageId);
+        }
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0);
+        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic, messageId);
+        return new SharedPublishMessage(fixedHeader, varHeader, message, encodedTopic);
     }
 
-    int nextPacketId() {
-        return lastPacketId.incrementAndGet();
+    /**
+     * Resend the packets of the session not acknowledged in time, written in a batch flushed once at its end.
+     */
+    public void resendNotAckedPublishes() {
+        final Session session = sessionRegistry.retrieve(getClientId());
+        final int resent;
+        batchingWrites = true;
+        try {
+            resent = session.resendInflightNotAcked();
+        } finally {
+            batchingWrites = false;
+        }
+        if (resent > 0) {
+            channel.flush();
+            MessageMetricsHandler.messagesResent(channel, resent);
+        }
     }
 
     @Override
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Messages from any thread to a consumer that runs only on the event loop of its owner. The producers just
+ * enqueue, lock free, and only the first message posted to an empty mailbox schedules a drain on the loop, that
+ * consumes the messages in batches, so a loop busy with a mailbox still serves its other tasks and channels.
+ *
+ * The owner can move to another loop (e.g. a session taken over by a new connection), a drain scheduled on the
+ * previous loop moves the remaining messages to the new one. With no owner loop, the messages are consumed by
+ * the thread posting them.
+ */
+class Mailbox<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Mailbox.class);
+
+    private final Queue<T> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Supplier<? extends EventExecutor> owner;
+    private final int batchSize;
+    private final Consumer<T> consumer;
+    private final Consumer<T> discarded;
+
+    /**
+     * @param owner     the current event loop of the owner, or null if it has none.
+     * @param batchSize max number of messages consumed by a single task on the event loop.
+     * @param consumer  the consumer of the messages.
+     * @param discarded invoked on the messages that can't be consumed because the loop is shutting down.
+     */
+    Mailbox(Supplier<? extends EventExecutor> owner, int batchSize, Consumer<T> consumer, Consumer<T> discarded) {
+        this.owner = owner;
+        this.batchSize = batchSize;
+        this.consumer = consumer;
+        this.discarded = discarded;
+    }
+
+    void post(T message) {
+        messages.offer(message);
+        if (drainScheduled.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+    }
+
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    private void scheduleDrain() {
+        final EventExecutor executor = owner.get();
+        if (executor == null) {
+            drain(null);
+            return;
+        }
+        try {
+            executor.execute(() -> drain(executor));
+        } catch (RejectedExecutionException ex) {
+            LOG.warn("Event loop is shutting down, discarding the mailbox messages", ex);
+            T message;
+            while ((message = messages.poll()) != null) {
+                discarded.accept(message);
+            }
+            drainScheduled.set(false);
+        }
+    }
+
+    private void drain(EventExecutor executor) {
+        if (executor != owner.get()) {
+            // the owner moved, follow it
+            scheduleDrain();
+            return;
+        }
+        final int maxConsumed = executor == null ? Integer.MAX_VALUE : batchSize;
+        for (int consumed = 0; consumed < maxConsumed; consumed++) {
+            final T message = messages.poll();
+            if (message == null) {
+                drainScheduled.set(false);
+                // a producer could have posted after the poll, seeing the drain still scheduled
+                if (messages.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                consumer.accept(message);
+            } catch (RuntimeException ex) {
+                LOG.error("Error consuming mailbox message {}", message, ex);
+            }
+        }
+        // batch done, give room to the other tasks of the loop
+        scheduleDrain();
+    }
+}
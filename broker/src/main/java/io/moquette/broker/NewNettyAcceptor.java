@@ -21,6 +21,9 @@ import io.moquette.broker.config.IConfig;
 import io.moquette.broker.metrics.*;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
@@ -40,7 +43,6 @@ import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +50,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLEngine;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -121,10 +124,12 @@ class NewNettyAcceptor {
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    // the groups of the listeners not sharing the boss and worker ones
+    private final List<EventLoopGroup> listenerGroups = new ArrayList<>();
     private final Map<String, Integer> ports = new HashMap<>();
     private BytesMetricsCollector bytesMetricsCollector = new BytesMetricsCollector();
     private MessageMetricsCollector metricsCollector = new MessageMetricsCollector();
-    private Optional<? extends ChannelInboundHandler> metrics;
+    private Optional<DropWizardMetricsHandler> metrics;
     private Optional<? extends ChannelInboundHandler> errorsCather;
 
     private int nettySoBacklog;
@@ -133,10 +138,21 @@ class NewNettyAcceptor {
     private boolean nettySoKeepalive;
     private int nettyChannelTimeoutSeconds;
     private int maxBytesInMessage;
+    private boolean epoll;
+    private ByteBufAllocator allocator;
+    private WriteBufferWaterMark writeBufferWaterMark;
 
     private Class<? extends ServerSocketChannel> channelClass;
 
     public void initialize(NewNettyMQTTHandler mqttHandler, IConfig props, ISslContextCreator sslCtxCreator) {
+        initialize(mqttHandler, props, sslCtxCreator, createAllocator(props));
+    }
+
+    /**
+     * @param allocator the buffers allocator of the channels, as created by {@link #createAllocator(IConfig)}.
+     */
+    public void initialize(NewNettyMQTTHandler mqttHandler, IConfig props, ISslContextCreator sslCtxCreator,
+                           ByteBufAllocator allocator) {
         LOG.debug("Initializing Netty acceptor");
 
         nettySoBacklog = props.intProp(BrokerConstants.NETTY_SO_BACKLOG_PROPERTY_NAME, 128);
@@ -147,23 +163,28 @@ class NewNettyAcceptor {
         maxBytesInMessage = props.intProp(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME,
                 BrokerConstants.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE);
 
-        boolean epoll = props.boolProp(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, false);
+        this.allocator = allocator;
+        writeBufferWaterMark = createWriteBufferWaterMark(props);
+
+        epoll = props.boolProp(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, false);
         if (epoll) {
             LOG.info("Netty is using Epoll");
-            bossGroup = new EpollEventLoopGroup();
-            workerGroup = new EpollEventLoopGroup();
             channelClass = EpollServerSocketChannel.class;
         } else {
             LOG.info("Netty is using NIO");
-            bossGroup = new NioEventLoopGroup();
-            workerGroup = new NioEventLoopGroup();
             channelClass = NioServerSocketChannel.class;
         }
+        bossGroup = newEventLoopGroup(props.intProp(NETTY_BOSS_THREADS_PROPERTY_NAME, DEFAULT_NETTY_BOSS_THREADS));
+        workerGroup = newEventLoopGroup(props.intProp(NETTY_WORKER_THREADS_PROPERTY_NAME,
+                                                      DEFAULT_NETTY_WORKER_THREADS));
 
         final boolean useFineMetrics = props.boolProp(METRICS_ENABLE_PROPERTY_NAME, false);
         if (useFineMetrics) {
             DropWizardMetricsHandler metricsHandler = new DropWizardMetricsHandler();
             metricsHandler.init(props);
+            if (allocator instanceof PooledByteBufAllocator) {
+                metricsHandler.trackAllocator(((PooledByteBufAllocator) allocator).metric());
+            }
             this.metrics = Optional.of(metricsHandler);
         } else {
             this.metrics = Optional.empty();
@@ -190,16 +211,102 @@ class NewNettyAcceptor {
         }
     }
 
+    /**
+     * @param threads 0 for the Netty default, twice the number of cores.
+     */
+    private EventLoopGroup newEventLoopGroup(int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    static ByteBufAllocator createAllocator(IConfig props) {
+        final String type = props.getProperty(NETTY_ALLOCATOR_PROPERTY_NAME, DEFAULT_NETTY_ALLOCATOR);
+        final boolean preferDirect = props.boolProp(NETTY_ALLOCATOR_PREFER_DIRECT_PROPERTY_NAME, true);
+        if ("unpooled".equals(type)) {
+            LOG.info("Netty is using an unpooled allocator, preferDirect={}", preferDirect);
+            return new UnpooledByteBufAllocator(preferDirect);
+        }
+        if (!DEFAULT_NETTY_ALLOCATOR.equals(type)) {
+            LOG.warn("Unknown Netty allocator {}, using {}", type, DEFAULT_NETTY_ALLOCATOR);
+        }
+        // the arenas configured are the ones of the preferred buffers, the others keep the Netty default
+        int heapArenas = PooledByteBufAllocator.defaultNumHeapArena();
+        int directArenas = PooledByteBufAllocator.defaultNumDirectArena();
+        final int arenas = props.intProp(NETTY_ALLOCATOR_ARENAS_PROPERTY_NAME, DEFAULT_NETTY_ALLOCATOR_ARENAS);
+        if (arenas > 0 && preferDirect) {
+            directArenas = arenas;
+        } else if (arenas > 0) {
+            heapArenas = arenas;
+        }
+        LOG.info("Netty is using a pooled allocator, preferDirect={}, heapArenas={}, directArenas={}", preferDirect,
+                 heapArenas, directArenas);
+        return new PooledByteBufAllocator(preferDirect, heapArenas, directArenas,
+                                          PooledByteBufAllocator.defaultPageSize(),
+                                          PooledByteBufAllocator.defaultMaxOrder(),
+                                          PooledByteBufAllocator.defaultTinyCacheSize(),
+                                          PooledByteBufAllocator.defaultSmallCacheSize(),
+                                          PooledByteBufAllocator.defaultNormalCacheSize(),
+                                          PooledByteBufAllocator.defaultUseCacheForAllThreads());
+    }
+
+    private static WriteBufferWaterMark createWriteBufferWaterMark(IConfig props) {
+        final int low = props.intProp(NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME,
+                                      DEFAULT_NETTY_WRITE_BUFFER_LOW_WATER_MARK);
+        final int high = props.intProp(NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME,
+                                       DEFAULT_NETTY_WRITE_BUFFER_HIGH_WATER_MARK);
+        try {
+            return new WriteBufferWaterMark(low, high);
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Invalid write buffer water marks low={}, high={}, using the default ones", low, high);
+            return new WriteBufferWaterMark(DEFAULT_NETTY_WRITE_BUFFER_LOW_WATER_MARK,
+                                            DEFAULT_NETTY_WRITE_BUFFER_HIGH_WATER_MARK);
+        }
+    }
+
+    /**
+     * @return the group sized for the listener, if configured, else the shared one.
+     */
+    private EventLoopGroup listenerGroup(IConfig props, String listener, String threadsPropertyName,
+                                         EventLoopGroup shared) {
+        // netty.boss_threads becomes netty.tcp.boss_threads
+        final String propertyName = threadsPropertyName.replaceFirst("^netty\\.", "netty." + listener + ".");
+        final String threads = props.getProperty(propertyName);
+        if (threads == null) {
+            return shared;
+        }
+        final int threadsCount = listenerThreads(propertyName, threads);
+        LOG.info("Listener {} has its own event loop group, {}={}", listener, propertyName, threadsCount);
+        final EventLoopGroup group = newEventLoopGroup(threadsCount);
+        listenerGroups.add(group);
+        return group;
+    }
+
+    private static int listenerThreads(String propertyName, String threads) {
+        final int threadsCount;
+        try {
+            threadsCount = Integer.parseInt(threads.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(propertyName + " must be a number of threads, was " + threads, ex);
+        }
+        // 0 as for the shared groups means the Netty default
+        if (threadsCount < 0) {
+            throw new IllegalArgumentException(propertyName + " must not be negative, was " + threadsCount);
+        }
+        return threadsCount;
+    }
+
     private boolean securityPortsConfigured(IConfig props) {
         String sslTcpPortProp = props.getProperty(BrokerConstants.SSL_PORT_PROPERTY_NAME);
         String wssPortProp = props.getProperty(BrokerConstants.WSS_PORT_PROPERTY_NAME);
         return sslTcpPortProp != null || wssPortProp != null;
     }
 
-    private void initFactory(String host, int port, String protocol, final PipelineInitializer pipelieInitializer) {
+    private void initFactory(String host, int port, String protocol, String listener, IConfig props,
+                             final PipelineInitializer pipelieInitializer) {
         LOG.debug("Initializing integration. Protocol={}", protocol);
         ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup, workerGroup).channel(channelClass)
+        b.group(listenerGroup(props, listener, NETTY_BOSS_THREADS_PROPERTY_NAME, bossGroup),
+                listenerGroup(props, listener, NETTY_WORKER_THREADS_PROPERTY_NAME, workerGroup))
+                .channel(channelClass)
                 .childHandler(new ChannelInitializer<SocketChannel>() {
 
                     @Override
@@ -209,8 +316,11 @@ class NewNettyAcceptor {
                 })
                 .option(ChannelOption.SO_BACKLOG, nettySoBacklog)
                 .option(ChannelOption.SO_REUSEADDR, nettySoReuseaddr)
+                .option(ChannelOption.ALLOCATOR, allocator)
                 .childOption(ChannelOption.TCP_NODELAY, nettyTcpNodelay)
-                .childOption(ChannelOption.SO_KEEPALIVE, nettySoKeepalive);
+                .childOption(ChannelOption.SO_KEEPALIVE, nettySoKeepalive)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
         try {
             LOG.debug("Binding integration. host={}, port={}", host, port);
             // Bind and start to accept incoming connections.
@@ -224,6 +334,13 @@ class NewNettyAcceptor {
         }
     }
 
+    /**
+     * @return the handler reporting the metrics of the broker, empty if the metrics are disabled.
+     */
+    Optional<DropWizardMetricsHandler> metricsHandler() {
+        return metrics;
+    }
+
     public int getPort() {
         return ports.computeIfAbsent(PLAIN_MQTT_PROTO, i -> 0);
     }
@@ -243,7 +360,7 @@ class NewNettyAcceptor {
             return;
         }
         int port = Integer.parseInt(tcpPortProp);
-        initFactory(host, port, PLAIN_MQTT_PROTO, new PipelineInitializer() {
+        initFactory(host, port, PLAIN_MQTT_PROTO, NETTY_LISTENER_TCP, props, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) {
@@ -255,7 +372,7 @@ class NewNettyAcceptor {
 
     private void configureMQTTPipeline(ChannelPipeline pipeline, MoquetteIdleTimeoutHandler timeoutHandler,
                                        NewNettyMQTTHandler handler) {
-        pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
+        pipeline.addFirst("idleStateHandler", new KeepAliveHandler(nettyChannelTimeoutSeconds, TimeUnit.SECONDS));
         pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
         // pipeline.addLast("logger", new LoggingHandler("Netty", LogLevel.ERROR));
         if (errorsCather.isPresent()) {
@@ -265,6 +382,7 @@ class NewNettyAcceptor {
         pipeline.addLast("autoflush", new AutoFlushHandler(1, TimeUnit.SECONDS));
         pipeline.addLast("decoder", new MqttDecoder(maxBytesInMessage));
         pipeline.addLast("encoder", MqttEncoder.INSTANCE);
+        pipeline.addLast("sharedPublishEncoder", SharedPublishMessage.Encoder.INSTANCE);
         pipeline.addLast("metrics", new MessageMetricsHandler(metricsCollector));
         pipeline.addLast("messageLogger", new MQTTMessageLogger());
         if (metrics.isPresent()) {
@@ -289,7 +407,7 @@ class NewNettyAcceptor {
         String host = props.getProperty(BrokerConstants.HOST_PROPERTY_NAME);
         String path = props.getProperty(BrokerConstants.WEB_SOCKET_PATH_PROPERTY_NAME, BrokerConstants.WEBSOCKET_PATH);
         int maxFrameSize = props.intProp(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, 65536);
-        initFactory(host, port, "Websocket MQTT", new PipelineInitializer() {
+        initFactory(host, port, "Websocket MQTT", NETTY_LISTENER_WS, props, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) {
@@ -322,7 +440,7 @@ class NewNettyAcceptor {
         String host = props.getProperty(BrokerConstants.HOST_PROPERTY_NAME);
         String sNeedsClientAuth = props.getProperty(BrokerConstants.NEED_CLIENT_AUTH, "false");
         final boolean needsClientAuth = Boolean.valueOf(sNeedsClientAuth);
-        initFactory(host, sslPort, SSL_MQTT_PROTO, new PipelineInitializer() {
+        initFactory(host, sslPort, SSL_MQTT_PROTO, NETTY_LISTENER_SSL, props, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) throws Exception {
@@ -349,7 +467,7 @@ class NewNettyAcceptor {
         int maxFrameSize = props.intProp(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, 65536);
         String sNeedsClientAuth = props.getProperty(BrokerConstants.NEED_CLIENT_AUTH, "false");
         final boolean needsClientAuth = Boolean.valueOf(sNeedsClientAuth);
-        initFactory(host, sslPort, "Secure websocket", new PipelineInitializer() {
+        initFactory(host, sslPort, "Secure websocket", NETTY_LISTENER_WSS, props, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) throws Exception {
@@ -377,6 +495,10 @@ class NewNettyAcceptor {
         }
         Future<?> workerWaiter = workerGroup.shutdownGracefully();
         Future<?> bossWaiter = bossGroup.shutdownGracefully();
+        List<Future<?>> listenerWaiters = new ArrayList<>();
+        for (EventLoopGroup group : listenerGroups) {
+            listenerWaiters.add(group.shutdownGracefully());
+        }
 
         /*
          * We shouldn't raise an IllegalStateException if we are interrupted. If we did so, the
@@ -386,6 +508,9 @@ class NewNettyAcceptor {
         try {
             workerWaiter.await(10, TimeUnit.SECONDS);
             bossWaiter.await(10, TimeUnit.SECONDS);
+            for (Future<?> listenerWaiter : listenerWaiters) {
+                listenerWaiter.await(10, TimeUnit.SECONDS);
+            }
         } catch (InterruptedException iex) {
             LOG.warn("An InterruptedException was caught while waiting for event loops to terminate...");
         }
@@ -400,10 +525,21 @@ class NewNettyAcceptor {
             bossGroup.shutdownGracefully(0L, 0L, TimeUnit.MILLISECONDS);
         }
 
+        for (EventLoopGroup group : listenerGroups) {
+            if (!group.isTerminated()) {
+                LOG.warn("Forcing shutdown of listener event loop...");
+                group.shutdownGracefully(0L, 0L, TimeUnit.MILLISECONDS);
+            }
+        }
+
         MessageMetrics metrics = metricsCollector.computeMetrics();
         BytesMetrics bytesMetrics = bytesMetricsCollector.computeMetrics();
-        LOG.info("Metrics messages[read={}, write={}] bytes[read={}, write={}]", metrics.messagesRead(),
-                 metrics.messagesWrote(), bytesMetrics.readBytes(), bytesMetrics.wroteBytes());
+        LOG.info("Metrics messages[read={}, write={}, resent={}] bytes[read={}, write={}]", metrics.messagesRead(),
+                 metrics.messagesWrote(), metrics.messagesResent(), bytesMetrics.readBytes(),
+                 bytesMetrics.wroteBytes());
+        if (allocator instanceof PooledByteBufAllocator) {
+            LOG.info("Metrics allocator[{}]", ((PooledByteBufAllocator) allocator).metric());
+        }
     }
 
     private ChannelHandler createSslHandler(SocketChannel channel, SslContext sslContext, boolean needsClientAuth) {
@@ -70,6 +70,13 @@ public class NewNettyMQTTHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // the acks written while processing the read batch go out together
+        ctx.flush();
+        ctx.fireChannelReadComplete();
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         MQTTConnection connection = connectionFactory.create(ctx.channel());
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Messages of a connection waiting for its channel to be writable again, bounded by number of messages and by
+ * bytes. When the bounds are exceeded the {@link OverflowPolicy} of the broker decides what to give up. Accessed
+ * only by the event loop of the channel.
+ */
+final class OutboundBuffer {
+
+    /**
+     * What to do when a slow consumer fills its outbound buffer.
+     */
+    enum OverflowPolicy {
+        /**
+         * Drop the oldest QoS0 publishes, disconnect if they are not enough.
+         */
+        DROP_QOS0,
+        /**
+         * Drop the QoS0 publishes and move the QoS1 and QoS2 ones back to the session queue, disconnect if they
+         * are not enough.
+         */
+        SPILL,
+        /**
+         * Disconnect the slow consumer.
+         */
+        DISCONNECT;
+
+        /**
+         * @return the policy named by the configuration value, e.g. drop_qos0, or null if there isn't any.
+         */
+        static OverflowPolicy of(String name) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().equals(name.trim().toUpperCase(Locale.ROOT))) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    // a PUBLISH is estimated as its topic and payload plus this, any other message as just this
+    private static final int HEADERS_ESTIMATED_SIZE = 8;
+
+    private final Deque<MqttMessage> messages = new ArrayDeque<>();
+    private final int maxMessages;
+    private final long maxBytes;
+    private long bytes;
+
+    OutboundBuffer(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    int size() {
+        return messages.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void add(MqttMessage msg) {
+        messages.addLast(msg);
+        bytes += estimatedSize(msg);
+    }
+
+    MqttMessage poll() {
+        final MqttMessage msg = messages.pollFirst();
+        if (msg != null) {
+            bytes -= estimatedSize(msg);
+        }
+        return msg;
+    }
+
+    boolean isOverflowing() {
+        return messages.size() > maxMessages || bytes > maxBytes;
+    }
+
+    /**
+     * @return the oldest QoS0 PUBLISH, removed from the buffer, or null if there isn't any.
+     */
+    MqttPublishMessage removeOldestQos0Publish() {
+        final Iterator<MqttMessage> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            final MqttMessage msg = iterator.next();
+            if (isPublish(msg) && msg.fixedHeader().qosLevel() == MqttQoS.AT_MOST_ONCE) {
+                return remove(iterator, msg);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the newest QoS1 or QoS2 PUBLISH, removed from the buffer, or null if there isn't any.
+     */
+    MqttPublishMessage removeNewestPublishWithPacketId() {
+        final Iterator<MqttMessage> iterator = messages.descendingIterator();
+        while (iterator.hasNext()) {
+            final MqttMessage msg = iterator.next();
+            if (isPublish(msg) && msg.fixedHeader().qosLevel() != MqttQoS.AT_MOST_ONCE) {
+                return remove(iterator, msg);
+            }
+        }
+        return null;
+    }
+
+    private MqttPublishMessage remove(Iterator<MqttMessage> iterator, MqttMessage msg) {
+        iterator.remove();
+        bytes -= estimatedSize(msg);
+        return (MqttPublishMessage) msg;
+    }
+
+    private static boolean isPublish(MqttMessage msg) {
+        return msg.fixedHeader().messageType() == MqttMessageType.PUBLISH;
+    }
+
+    /**
+     * Release all the messages, on a closed connection.
+     */
+    void clear() {
+        MqttMessage msg;
+        while ((msg = poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static int estimatedSize(MqttMessage msg) {
+        if (msg instanceof MqttPublishMessage) {
+            final MqttPublishMessage publish = (MqttPublishMessage) msg;
+            return HEADERS_ESTIMATED_SIZE + publish.variableHeader().topicName().length()
+                + publish.content().readableBytes();
+        }
+        return HEADERS_ESTIMATED_SIZE;
+    }
+}
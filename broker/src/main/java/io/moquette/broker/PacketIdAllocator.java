@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * Packet identifiers of a session, over the 1..65535 range of MQTT, with a bitmap of the ones in use. Identifiers
+ * are handed out in increasing order from the last one, wrapping around, skipping those still in use: as the acks
+ * mostly come back in order the next free one is usually the next bit, so the allocation and the release are O(1)
+ * amortized. Accessed only by the event loop of the connection, as the rest of the inflight state.
+ */
+final class PacketIdAllocator {
+
+    static final int MAX_PACKET_ID = 0xFFFF;
+
+    private static final int WORDS = (MAX_PACKET_ID + 1) / Long.SIZE;
+
+    private final long[] inUse = new long[WORDS];
+    private int inUseCount;
+    // where the search of the next free identifier starts
+    private int next = 1;
+
+    PacketIdAllocator() {
+        // 0 is not a valid packet identifier, never handed out
+        inUse[0] = 1L;
+    }
+
+    /**
+     * @return a packet identifier not in use, now marked in use.
+     * @throws IllegalStateException if all the identifiers are in use.
+     */
+    int allocate() {
+        if (inUseCount == MAX_PACKET_ID) {
+            throw new IllegalStateException("All the " + MAX_PACKET_ID + " packet identifiers are in use");
+        }
+        int word = next >>> 6;
+        // the bits before next in its word are treated as used, they are reached again after the wrap around
+        long free = ~inUse[word] & (-1L << (next & 63));
+        while (free == 0) {
+            word = (word + 1) % WORDS;
+            free = ~inUse[word];
+        }
+        final int packetId = (word << 6) + Long.numberOfTrailingZeros(free);
+        inUse[word] |= 1L << packetId;
+        inUseCount++;
+        next = packetId == MAX_PACKET_ID ? 1 : packetId + 1;
+        return packetId;
+    }
+
+    /**
+     * Mark the packet identifier free.
+     *
+     * @return false if the identifier was not in use.
+     */
+    boolean release(int packetId) {
+        if (!isInUse(packetId)) {
+            return false;
+        }
+        inUse[packetId >>> 6] &= ~(1L << packetId);
+        inUseCount--;
+        return true;
+    }
+
+    boolean isInUse(int packetId) {
+        if (packetId < 1 || packetId > MAX_PACKET_ID) {
+            return false;
+        }
+        return (inUse[packetId >>> 6] & (1L << packetId)) != 0;
+    }
+
+    /**
+     * @return true if {@link #allocate()} can hand out an identifier.
+     */
+    boolean hasFree() {
+        return inUseCount < MAX_PACKET_ID;
+    }
+
+    /**
+     * @return the number of identifiers in use.
+     */
+    int inUse() {
+        return inUseCount;
+    }
+}
@@ -20,6 +20,7 @@ import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.*;
 import org.slf4j.Logger;
@@ -27,7 +28,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 import static io.moquette.broker.Utils.messageId;
@@ -43,10 +43,39 @@ class PostOffice {
     private final IRetainedRepository retainedRepository;
     private SessionRegistry sessionRegistry;
     private BrokerInterceptor interceptor;
+    private final FanOut fanOut;
+    private final PublishDispatcher publishDispatcher;
+    private final ByteBufAllocator allocator;
 
     PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
                SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, FanOut.INLINE);
+    }
+
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               FanOut fanOut) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, fanOut,
+             PublishDispatcher.INLINE);
+    }
+
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               FanOut fanOut, PublishDispatcher publishDispatcher) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, fanOut,
+             publishDispatcher, ByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * @param allocator the one of the channels, for the topic shared by the publishes of a fan out.
+     */
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               FanOut fanOut, PublishDispatcher publishDispatcher, ByteBufAllocator allocator) {
         this.authorizator = authorizator;
+        this.allocator = allocator;
+        this.fanOut = fanOut;
+        this.publishDispatcher = publishDispatcher;
         this.subscriptions = subscriptions;
         this.retainedRepository = retainedRepository;
         this.sessionRegistry = sessionRegistry;
@@ -206,25 +235,35 @@ class PostOffice {
     }
 
     private void publish2Subscribers(ByteBuf origPayload, Topic topic, MqttQoS publishingQos) {
-        Set<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
-
-        for (final Subscription sub : topicMatchingSubscriptions) {
-            MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
-
-            boolean isSessionPresent = targetSession != null;
-            if (isSessionPresent) {
-                LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
-                          sub.getClientId(), sub.getTopicFilter(), qos);
-                // we need to retain because duplicate only copy r/w indexes and don't retain() causing refCnt = 0
-                ByteBuf payload = origPayload.retainedDuplicate();
-                targetSession.sendPublishOnSessionAtQos(topic, qos, payload);
-            } else {
-                // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
-                // destination.
-                LOG.debug("PUBLISH to not yet present session. CId: {}, topicFilter: {}, qos: {}", sub.getClientId(),
-                          sub.getTopicFilter(), qos);
-            }
+        publishDispatcher.dispatch(topic, origPayload, payload -> route(payload, topic, publishingQos));
+    }
+
+    private void route(ByteBuf origPayload, Topic topic, MqttQoS publishingQos) {
+        // encoded once, every subscriber is sent a composite of its own header plus this and the payload
+        final ByteBuf encodedTopic = SharedPublishMessage.encodeTopic(topic.toString(), allocator);
+        try {
+            final FanOut.Batch batch = fanOut.begin(topic, origPayload, encodedTopic);
+            subscriptions.matchQosSharpening(topic, sub -> publishToSubscriber(sub, batch, publishingQos));
+            batch.complete();
+        } finally {
+            encodedTopic.release();
+        }
+    }
+
+    private void publishToSubscriber(Subscription sub, FanOut.Batch batch, MqttQoS publishingQos) {
+        MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
+        Session targetSession = this.sessionRegistry.retrieve(sub);
+
+        boolean isSessionPresent = targetSession != null;
+        if (isSessionPresent) {
+            LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
+                      sub.getClientId(), sub.getTopicFilter(), qos);
+            batch.deliver(targetSession, qos);
+        } else {
+            // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
+            // destination.
+            LOG.debug("PUBLISH to not yet present session. CId: {}, topicFilter: {}, qos: {}", sub.getClientId(),
+                      sub.getTopicFilter(), qos);
         }
     }
 
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Routing of the publishes, matching and fan out, moved from the IO thread that read them to a set of routing
+ * workers, so that a few chatty publishers don't pin their IO threads while the others are idle. Every topic is
+ * routed always by the same worker, chosen by the hash of the topic, so the publishes of a topic keep their
+ * order, and the match cache entries of a topic are touched only by its worker.
+ *
+ * With no workers the publishes are routed by the IO thread, as before.
+ */
+class PublishDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishDispatcher.class);
+
+    static final PublishDispatcher INLINE = new PublishDispatcher(0);
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10L;
+
+    private final ExecutorService[] workers;
+
+    /**
+     * @param workersCount number of routing workers, 0 to route on the thread publishing.
+     */
+    PublishDispatcher(int workersCount) {
+        if (workersCount < 0) {
+            throw new IllegalArgumentException("Number of routing workers can't be negative, was " + workersCount);
+        }
+        this.workers = new ExecutorService[workersCount];
+        final DefaultThreadFactory threadFactory = new DefaultThreadFactory("moquette-routing");
+        for (int i = 0; i < workersCount; i++) {
+            this.workers[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    int workersCount() {
+        return workers.length;
+    }
+
+    /**
+     * @param payload the payload, retained by the dispatcher until routed.
+     * @param routing the routing of the publish, invoked with the payload.
+     */
+    void dispatch(Topic topic, ByteBuf payload, Consumer<ByteBuf> routing) {
+        if (workers.length == 0) {
+            routing.accept(payload);
+            return;
+        }
+        final RoutingTask task = new RoutingTask(topic, payload.retainedDuplicate(), routing);
+        try {
+            workerFor(topic).execute(task);
+        } catch (RejectedExecutionException ex) {
+            LOG.warn("Routing workers are shutting down, dropped PUBLISH on topic {}", topic);
+            task.discard();
+        }
+    }
+
+    private static final class RoutingTask implements Runnable {
+
+        private final Topic topic;
+        private final ByteBuf payload;
+        private final Consumer<ByteBuf> routing;
+
+        RoutingTask(Topic topic, ByteBuf payload, Consumer<ByteBuf> routing) {
+            this.topic = topic;
+            this.payload = payload;
+            this.routing = routing;
+        }
+
+        @Override
+        public void run() {
+            try {
+                routing.accept(payload);
+            } catch (RuntimeException ex) {
+                LOG.error("Error routing PUBLISH on topic {}", topic, ex);
+            } finally {
+                payload.release();
+            }
+        }
+
+        void discard() {
+            payload.release();
+        }
+    }
+
+    private ExecutorService workerFor(Topic topic) {
+        final int hash = topic.hashCode();
+        return workers[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % workers.length];
+    }
+
+    void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop accepting publishes and wait for the ones already dispatched to be routed, up to the timeout for all
+     * the workers, then interrupt the workers still busy and drop what they have queued.
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (ExecutorService worker : workers) {
+                worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException iex) {
+            LOG.warn("Interrupted while waiting for the routing workers to terminate");
+            Thread.currentThread().interrupt();
+        }
+        for (ExecutorService worker : workers) {
+            if (!worker.isTerminated()) {
+                final List<Runnable> dropped = worker.shutdownNow();
+                LOG.warn("Forcing shutdown of routing worker, dropped {} PUBLISH", dropped.size());
+                for (Runnable task : dropped) {
+                    ((RoutingTask) task).discard();
+                }
+            }
+        }
+    }
+}
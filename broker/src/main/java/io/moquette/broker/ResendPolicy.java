@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When the packets not acknowledged are sent again: the first resend follows the send by the initial delay, every
+ * other doubles the delay up to the max one, each delay is spread at random by the jitter so that the packets sent
+ * together, as after a reconnect, aren't resent together. The sessions check their packets every interval and resend
+ * at most maxPerCheck of them, the others wait for the next check.
+ */
+final class ResendPolicy {
+
+    static final ResendPolicy DEFAULT = new ResendPolicy(BrokerConstants.DEFAULT_RESEND_INTERVAL_MS,
+                                                         BrokerConstants.DEFAULT_RESEND_INITIAL_DELAY_MS,
+                                                         BrokerConstants.DEFAULT_RESEND_MAX_DELAY_MS,
+                                                         BrokerConstants.DEFAULT_RESEND_JITTER_PERCENT,
+                                                         BrokerConstants.DEFAULT_RESEND_MAX_PER_CHECK);
+
+    private final long intervalMillis;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final int jitterPercent;
+    private final int maxPerCheck;
+
+    ResendPolicy(long intervalMillis, long initialDelayMillis, long maxDelayMillis, int jitterPercent,
+                 int maxPerCheck) {
+        if (intervalMillis <= 0 || initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Resend interval and delays must be positive, the max delay not "
+                + "less than the initial one, found interval " + intervalMillis + ", initial delay "
+                + initialDelayMillis + ", max delay " + maxDelayMillis);
+        }
+        if (jitterPercent < 0 || jitterPercent >= 100) {
+            throw new IllegalArgumentException("Resend jitter must be in [0, 100) percent, found " + jitterPercent);
+        }
+        if (maxPerCheck <= 0) {
+            throw new IllegalArgumentException("Max resends per check must be positive, found " + maxPerCheck);
+        }
+        this.intervalMillis = intervalMillis;
+        this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.jitterPercent = jitterPercent;
+        this.maxPerCheck = maxPerCheck;
+    }
+
+    long intervalMillis() {
+        return intervalMillis;
+    }
+
+    int maxPerCheck() {
+        return maxPerCheck;
+    }
+
+    /**
+     * @param resends the number of times the packet has been resent already.
+     * @return the delay from the last send of a packet to its next resend.
+     */
+    long delayNanos(int resends) {
+        long delay = initialDelayNanos;
+        for (int i = 0; i < resends && delay < maxDelayNanos; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, maxDelayNanos);
+        if (jitterPercent == 0) {
+            return delay;
+        }
+        final long spread = delay / 100 * jitterPercent;
+        return delay - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+    }
+
+    /**
+     * @return the shortest delay to a first resend, no packet sent more recently than that can be due.
+     */
+    long minDelayNanos() {
+        return initialDelayNanos - initialDelayNanos / 100 * jitterPercent;
+    }
+}
@@ -17,6 +17,7 @@ package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
 import io.moquette.broker.config.*;
+import io.moquette.broker.metrics.DropWizardMetricsHandler;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.persistence.H2Builder;
 import io.moquette.persistence.MemorySubscriptionsRepository;
@@ -24,8 +25,10 @@ import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.security.*;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.RadixCTrieSubscriptionDirectory;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.IAuthorizatorPolicy;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +40,7 @@ import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static io.moquette.logging.LoggingUtils.getInterceptorIds;
 
@@ -45,6 +49,8 @@ public class Server {
     private static final Logger LOG = LoggerFactory.getLogger(io.moquette.broker.Server.class);
 
     private ScheduledExecutorService scheduler;
+    private PublishDispatcher publishDispatcher;
+    private ISubscriptionsDirectory subscriptions;
     private NewNettyAcceptor acceptor;
     private volatile boolean initialized;
     private PostOffice dispatcher;
@@ -174,24 +180,81 @@ public class Server {
             retainedRepository = new MemoryRetainedRepository();
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions = createSubscriptionsDirectory(config);
         subscriptions.init(subscriptionsRepository);
+        scheduleSubscriptionsCompaction(config);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
         sessions = new SessionRegistry(subscriptions, queueRepository, authorizator);
-        dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator);
+        final int routingWorkers = config.intProp(BrokerConstants.ROUTING_WORKERS_PROPERTY_NAME,
+                                                  BrokerConstants.DEFAULT_ROUTING_WORKERS);
+        LOG.info("Routing publishes with {} workers", routingWorkers);
+        publishDispatcher = new PublishDispatcher(routingWorkers);
+        final ByteBufAllocator allocator = NewNettyAcceptor.createAllocator(config);
+        dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator,
+                                    createFanOut(config), publishDispatcher, allocator);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
                                                                             dispatcher);
 
         final NewNettyMQTTHandler mqttHandler = new NewNettyMQTTHandler(connectionFactory);
         acceptor = new NewNettyAcceptor();
-        acceptor.initialize(mqttHandler, config, sslCtxCreator);
+        acceptor.initialize(mqttHandler, config, sslCtxCreator, allocator);
+        acceptor.metricsHandler().ifPresent(this::trackSubscriptions);
 
         final long startTime = System.currentTimeMillis() - start;
         LOG.info("Moquette integration has been started successfully in {} ms", startTime);
         initialized = true;
     }
 
+    private ISubscriptionsDirectory createSubscriptionsDirectory(IConfig config) {
+        final String directoryType = config.getProperty(BrokerConstants.SUBSCRIPTIONS_DIRECTORY_PROPERTY_NAME,
+                                                        BrokerConstants.DEFAULT_SUBSCRIPTIONS_DIRECTORY);
+        if (BrokerConstants.RADIX_SUBSCRIPTIONS_DIRECTORY.equals(directoryType)) {
+            LOG.info("Using path compressed subscriptions directory");
+            return new RadixCTrieSubscriptionDirectory();
+        }
+        if (!BrokerConstants.DEFAULT_SUBSCRIPTIONS_DIRECTORY.equals(directoryType)) {
+            LOG.warn("Unknown subscriptions directory {}, using {}", directoryType,
+                     BrokerConstants.DEFAULT_SUBSCRIPTIONS_DIRECTORY);
+        }
+        final int matchCacheSize = config.intProp(BrokerConstants.SUBSCRIPTIONS_MATCH_CACHE_SIZE_PROPERTY_NAME,
+                                                  BrokerConstants.DEFAULT_SUBSCRIPTIONS_MATCH_CACHE_SIZE);
+        return new CTrieSubscriptionDirectory(matchCacheSize);
+    }
+
+    private FanOut createFanOut(IConfig config) {
+        final int inlineThreshold = config.intProp(BrokerConstants.FAN_OUT_INLINE_THRESHOLD_PROPERTY_NAME,
+                                                   BrokerConstants.DEFAULT_FAN_OUT_INLINE_THRESHOLD);
+        final int chunkSize = config.intProp(BrokerConstants.FAN_OUT_CHUNK_SIZE_PROPERTY_NAME,
+                                             BrokerConstants.DEFAULT_FAN_OUT_CHUNK_SIZE);
+        LOG.info("Fan out inline up to {} subscribers, in chunks of {} beyond", inlineThreshold, chunkSize);
+        return new FanOut(inlineThreshold, chunkSize);
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void scheduleSubscriptionsCompaction(IConfig config) {
+        final int interval = config.intProp(BrokerConstants.SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME,
+                                            BrokerConstants.DEFAULT_SUBSCRIPTIONS_COMPACTION_INTERVAL);
+        if (interval <= 0) {
+            LOG.info("Subscriptions compaction disabled");
+            return;
+        }
+        final int maxNodes = config.intProp(BrokerConstants.SUBSCRIPTIONS_COMPACTION_MAX_NODES_PROPERTY_NAME,
+                                            BrokerConstants.DEFAULT_SUBSCRIPTIONS_COMPACTION_MAX_NODES);
+        LOG.trace("Scheduling subscriptions compaction every {} seconds, max {} nodes", interval, maxNodes);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                final int reclaimed = subscriptions.compact(maxNodes);
+                if (reclaimed > 0) {
+                    LOG.debug("Subscriptions compaction reclaimed {} nodes", reclaimed);
+                }
+            } catch (RuntimeException ex) {
+                // an exception would cancel the next runs
+                LOG.error("Subscriptions compaction failed", ex);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
     private IAuthorizatorPolicy initializeAuthorizatorPolicy(IAuthorizatorPolicy authorizatorPolicy, IConfig props) {
         LOG.debug("Configuring MQTT authorizator policy");
         String authorizatorClassName = props.getProperty(BrokerConstants.AUTHORIZATOR_CLASS_NAME, "");
@@ -310,6 +373,16 @@ public class Server {
         dispatcher.internalPublish(msg);
     }
 
+    private void trackSubscriptions(DropWizardMetricsHandler metrics) {
+        metrics.trackSubscriptions(subscriptions::metrics);
+        if (subscriptions instanceof CTrieSubscriptionDirectory) {
+            final CTrieSubscriptionDirectory directory = (CTrieSubscriptionDirectory) subscriptions;
+            if (directory.matchCacheMetrics().isPresent()) {
+                metrics.trackMatchCache(() -> directory.matchCacheMetrics().get());
+            }
+        }
+    }
+
     public void stopServer() {
         LOG.info("Unbinding integration from the configured ports");
         acceptor.close();
@@ -319,6 +392,14 @@ public class Server {
         // calling shutdown() does not actually stop tasks that are not cancelled,
         // and SessionsRepository does not stop its tasks. Thus shutdownNow().
         scheduler.shutdownNow();
+        publishDispatcher.shutdown();
+
+        if (subscriptions instanceof CTrieSubscriptionDirectory) {
+            ((CTrieSubscriptionDirectory) subscriptions).matchCacheMetrics().ifPresent(metrics ->
+                LOG.info("Match cache metrics [hits={}, misses={}, hitRate={}, evictions={}, size={}]",
+                         metrics.hits(), metrics.misses(), String.format("%.3f", metrics.hitRate()),
+                         metrics.evictions(), metrics.size()));
+        }
 
         if (h2Builder != null) {
             LOG.trace("Shutting down H2 persistence {}");
@@ -15,56 +15,27 @@
  */
 package io.moquette.broker;
 
+import io.moquette.BrokerConstants;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 class Session {
 
     private static final Logger LOG = LoggerFactory.getLogger(Session.class);
-    private static final int FLIGHT_BEFORE_RESEND_MS = 5_000;
-    private static final int INFLIGHT_WINDOW_SIZE = 10;
-
-    static class InFlightPacket implements Delayed {
-
-        final int packetId;
-        private long startTime;
-
-        InFlightPacket(int packetId, long delayInMilliseconds) {
-            this.packetId = packetId;
-            this.startTime = System.currentTimeMillis() + delayInMilliseconds;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit) {
-            long diff = startTime - System.currentTimeMillis();
-            return unit.convert(diff, TimeUnit.MILLISECONDS);
-        }
-
-        @Override
-        public int compareTo(Delayed o) {
-            if ((this.startTime - ((InFlightPacket) o).startTime) == 0) {
-                return 0;
-            }
-            if ((this.startTime - ((InFlightPacket) o).startTime) > 0) {
-                return 1;
-            } else {
-                return -1;
-            }
-        }
-    }
+    private static final int MAILBOX_BATCH_SIZE = 64;
 
     enum SessionStatus {
         CONNECTED, CONNECTING, DISCONNECTING, DISCONNECTED
@@ -85,6 +56,34 @@ class Session {
         }
     }
 
+    /**
+     * Publish posted to the session from a thread other than its event loop.
+     */
+    private static final class PendingPublish {
+
+        private final Topic topic;
+        private final MqttQoS qos;
+        private final ByteBuf payload;
+        private final ByteBuf encodedTopic;
+
+        PendingPublish(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+            this.encodedTopic = encodedTopic == null ? null : encodedTopic.retainedDuplicate();
+        }
+
+        void release() {
+            ReferenceCountUtil.release(payload);
+            ReferenceCountUtil.release(encodedTopic);
+        }
+
+        @Override
+        public String toString() {
+            return "PendingPublish{topic=" + topic + ", qos=" + qos + '}';
+        }
+    }
+
     private final String clientId;
     private boolean clean;
     private Will will;
@@ -92,10 +91,22 @@ class Session {
     private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
     private MQTTConnection mqttConnection;
     private List<Subscription> subscriptions = new ArrayList<>();
-    private final Map<Integer, SessionRegistry.EnqueuedMessage> inflightWindow = new HashMap<>();
-    private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
-    private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
-    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE); // this should be configurable
+    private final InflightPackets inflightWindow = new InflightPackets();
+    private final IntObjectMap<MqttPublishMessage> qos2Receiving = new IntObjectHashMap<>();
+    // the inflight state is accessed only by the event loop of the connection, other threads use the mailbox
+    private InflightWindow window = new InflightWindow(BrokerConstants.DEFAULT_INFLIGHT_WINDOW_SIZE);
+    private int inflightSlots = window.size();
+    private final PacketIdAllocator packetIds = new PacketIdAllocator();
+    private ResendPolicy resendPolicy = ResendPolicy.DEFAULT;
+    private final InflightPackets.Resender resender = this::resend;
+    // outbound buffer overflows, updated by the event loop as the inflight state
+    private long droppedMessages;
+    private long spilledMessages;
+    private long resentMessages;
+    private final Mailbox<PendingPublish> mailbox = new Mailbox<>(this::eventLoop, MAILBOX_BATCH_SIZE,
+                                                                  this::deliver, PendingPublish::release);
+    // publishes reserved by tasks queued on the event loop, outside of the mailbox, and not yet delivered
+    private final AtomicInteger queuedPublishes = new AtomicInteger();
 
     Session(String clientId, boolean clean, Will will, Queue<SessionRegistry.EnqueuedMessage> sessionQueue) {
         this(clientId, clean, sessionQueue);
@@ -119,12 +130,23 @@ class Session {
 
     void bind(MQTTConnection mqttConnection) {
         this.mqttConnection = mqttConnection;
+        this.window = mqttConnection.newInflightWindow(clientId);
+        this.inflightSlots = window.size() - inflightWindow.size();
+        this.resendPolicy = mqttConnection.resendPolicy();
     }
 
     public boolean disconnected() {
         return status.get() == SessionStatus.DISCONNECTED;
     }
 
+    /**
+     * @return the event loop of the connection of the session, null if not connected.
+     */
+    EventLoop eventLoop() {
+        final MQTTConnection connection = this.mqttConnection;
+        return connection != null && connected() ? connection.channel.eventLoop() : null;
+    }
+
     public boolean connected() {
         return status.get() == SessionStatus.CONNECTED;
     }
@@ -176,25 +198,28 @@ class Session {
     }
 
     public void processPubRec(int packetId) {
+        acked(packetId);
         inflightWindow.remove(packetId);
-        inflightSlots.incrementAndGet();
+        inflightSlots++;
         if (canSkipQueue()) {
-            inflightSlots.decrementAndGet();
+            inflightSlots--;
             int pubRelPacketId = packetId/*mqttConnection.nextPacketId()*/;
-            inflightWindow.put(pubRelPacketId, new SessionRegistry.PubRelMarker());
-            inflightTimeouts.add(new InFlightPacket(pubRelPacketId, FLIGHT_BEFORE_RESEND_MS));
+            addInflight(pubRelPacketId, new SessionRegistry.PubRelMarker());
             MqttMessage pubRel = MQTTConnection.pubrel(pubRelPacketId);
-            mqttConnection.sendIfWritableElseDrop(pubRel);
+            mqttConnection.sendIfWritableElseBuffer(pubRel);
 
             drainQueueToConnection();
         } else {
+            // the queued PUBREL is sent with a new packet id
+            packetIds.release(packetId);
             sessionQueue.add(new SessionRegistry.PubRelMarker());
         }
     }
 
     public void processPubComp(int messageID) {
         inflightWindow.remove(messageID);
-        inflightSlots.incrementAndGet();
+        packetIds.release(messageID);
+        inflightSlots++;
 
         drainQueueToConnection();
 
@@ -205,36 +230,107 @@ class Session {
     }
 
     public void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload) {
+        sendPublishOnSessionAtQos(topic, qos, payload, null);
+    }
+
+    /**
+     * Publishes from the same thread reach the client in the order they are sent: a publish is delivered directly
+     * only by the event loop of the session, when no other publish is waiting to be delivered, neither in the
+     * mailbox nor in a task already queued on the loop (see {@link #reserveQueuedPublish()}). In every other case
+     * it's posted to the mailbox, behind the waiting ones.
+     *
+     * @param encodedTopic the topic already encoded for all the subscribers of a fan out, or null to have the
+     *                     publish encoded on its own.
+     */
+    void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
+        final EventLoop eventLoop = eventLoop();
+        if (eventLoop != null
+            && (!eventLoop.inEventLoop() || !mailbox.isEmpty() || queuedPublishes.get() > 0)) {
+            // behind the publishes waiting in the mailbox or on the loop, to keep their order
+            mailbox.post(new PendingPublish(topic, qos, payload, encodedTopic));
+            return;
+        }
+        publishOnSessionAtQos(topic, qos, payload, encodedTopic);
+    }
+
+    /**
+     * Reserve the delivery of a publish by a task to be queued on the event loop of the session. It's granted
+     * only if the mailbox is empty, else the task would overtake the publishes in the mailbox. Until the task
+     * invokes {@link #deliverQueuedPublish} or {@link #cancelQueuedPublish()}, the later publishes are posted to
+     * the mailbox, whose drain is queued after the task.
+     *
+     * @return the event loop where to queue the task, or null if the publish has to be sent with
+     * {@link #sendPublishOnSessionAtQos(Topic, MqttQoS, ByteBuf, ByteBuf)}.
+     */
+    EventLoop reserveQueuedPublish() {
+        final EventLoop eventLoop = eventLoop();
+        if (eventLoop == null || !mailbox.isEmpty()) {
+            return null;
+        }
+        queuedPublishes.incrementAndGet();
+        return eventLoop;
+    }
+
+    /**
+     * Deliver a publish reserved with {@link #reserveQueuedPublish()}, invoked by the task on the event loop. It
+     * precedes anything in the mailbox, so it's delivered directly, unless the session moved to another loop.
+     */
+    void deliverQueuedPublish(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
+        queuedPublishes.decrementAndGet();
+        final EventLoop eventLoop = eventLoop();
+        if (eventLoop != null && !eventLoop.inEventLoop()) {
+            mailbox.post(new PendingPublish(topic, qos, payload, encodedTopic));
+            return;
+        }
+        publishOnSessionAtQos(topic, qos, payload, encodedTopic);
+    }
+
+    /**
+     * Drop a publish reserved with {@link #reserveQueuedPublish()} whose task couldn't be queued.
+     */
+    void cancelQueuedPublish() {
+        queuedPublishes.decrementAndGet();
+    }
+
+    private void deliver(PendingPublish publish) {
+        try {
+            publishOnSessionAtQos(publish.topic, publish.qos, publish.payload, publish.encodedTopic);
+        } finally {
+            ReferenceCountUtil.release(publish.encodedTopic);
+        }
+    }
+
+    private void publishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
         switch (qos) {
             case AT_MOST_ONCE:
                 if (connected()) {
-                    mqttConnection.sendPublishNotRetainedQos0(topic, qos, payload);
+                    mqttConnection.sendPublishNotRetainedQos0(topic, qos, payload, encodedTopic);
                 }
                 break;
             case AT_LEAST_ONCE:
-                sendPublishQos1(topic, qos, payload);
+                sendPublishQos1(topic, qos, payload, encodedTopic);
                 break;
             case EXACTLY_ONCE:
-                sendPublishQos2(topic, qos, payload);
+                sendPublishQos2(topic, qos, payload, encodedTopic);
                 break;
             case FAILURE:
                 LOG.error("Not admissible");
         }
     }
 
-    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload) {
+    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
         if (!connected() && isClean()) {
             //pushing messages to disconnected not clean session
             return;
         }
 
         if (canSkipQueue()) {
-            inflightSlots.decrementAndGet();
-            int packetId = mqttConnection.nextPacketId();
-            inflightWindow.put(packetId, new SessionRegistry.PublishedMessage(topic, qos, payload));
-            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+            inflightSlots--;
+            int packetId = packetIds.allocate();
+            addInflight(packetId, new SessionRegistry.PublishedMessage(topic, qos, payload));
             MqttPublishMessage publishMsg = MQTTConnection.notRetainedPublishWithMessageId(topic.toString(), qos,
-                                                                                           payload, packetId);
+                                                                                           payload, packetId,
+                                                                                           encodedTopic);
             mqttConnection.sendPublish(publishMsg);
 
             // TODO drainQueueToConnection();?
@@ -244,14 +340,14 @@ class Session {
         }
     }
 
-    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload) {
+    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, ByteBuf encodedTopic) {
         if (canSkipQueue()) {
-            inflightSlots.decrementAndGet();
-            int packetId = mqttConnection.nextPacketId();
-            inflightWindow.put(packetId, new SessionRegistry.PublishedMessage(topic, qos, payload));
-            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+            inflightSlots--;
+            int packetId = packetIds.allocate();
+            addInflight(packetId, new SessionRegistry.PublishedMessage(topic, qos, payload));
             MqttPublishMessage publishMsg = MQTTConnection.notRetainedPublishWithMessageId(topic.toString(), qos,
-                                                                                           payload, packetId);
+                                                                                           payload, packetId,
+                                                                                           encodedTopic);
             mqttConnection.sendPublish(publishMsg);
 
             drainQueueToConnection();
@@ -263,60 +359,145 @@ class Session {
 
     private boolean canSkipQueue() {
         return sessionQueue.isEmpty() &&
-            inflightSlots.get() > 0 &&
+            inflightSlots > 0 &&
+            packetIds.hasFree() &&
             connected() &&
             mqttConnection.channel.isWritable();
     }
 
     private boolean inflighHasSlotsAndConnectionIsUp() {
-        return inflightSlots.get() > 0 &&
+        return inflightSlots > 0 &&
+            packetIds.hasFree() &&
             connected() &&
             mqttConnection.channel.isWritable();
     }
 
     void pubAckReceived(int ackPacketId) {
         // TODO remain to invoke in somehow m_interceptor.notifyMessageAcknowledged
+        acked(ackPacketId);
         inflightWindow.remove(ackPacketId);
-        inflightSlots.incrementAndGet();
+        packetIds.release(ackPacketId);
+        inflightSlots++;
         drainQueueToConnection();
     }
 
-    public void resendInflightNotAcked() {
-        Collection<InFlightPacket> expired = new ArrayList<>(INFLIGHT_WINDOW_SIZE);
-        inflightTimeouts.drainTo(expired);
-
-        debugLogPacketIds(expired);
+    /**
+     * Account the round trip of the packet to the inflight window, before its removal.
+     */
+    private void acked(int packetId) {
+        if (!window.isAdaptive()) {
+            return;
+        }
+        final long sentAt = inflightWindow.firstSendTime(packetId);
+        if (sentAt != InflightPackets.NO_SEND_TIME) {
+            final boolean writable = connected() && mqttConnection.channel.isWritable();
+            inflightSlots += window.acked(System.nanoTime() - sentAt, writable);
+        }
+    }
 
-        for (InFlightPacket notAckPacketId : expired) {
-            if (inflightWindow.containsKey(notAckPacketId.packetId)) {
-                final SessionRegistry.PublishedMessage msg =
-                    (SessionRegistry.PublishedMessage) inflightWindow.get(notAckPacketId.packetId);
-                final Topic topic = msg.topic;
-                final MqttQoS qos = msg.publishingQos;
-                final ByteBuf payload = msg.payload;
-                final ByteBuf copiedPayload = payload.retainedDuplicate();
-                MqttPublishMessage publishMsg = publishNotRetainedDuplicated(notAckPacketId, topic, qos, copiedPayload);
-                mqttConnection.sendPublish(publishMsg);
-            }
+    private void addInflight(int packetId, SessionRegistry.EnqueuedMessage msg) {
+        final long now = System.nanoTime();
+        inflightWindow.add(packetId, msg, now, now + resendPolicy.delayNanos(0));
+    }
+
+    /**
+     * Resend the packets whose resend time is past, from the oldest send, at most the max per check of the resend
+     * policy, the others wait for the next check. The packets are written to the connection not flushed.
+     *
+     * @return the number of packets resent.
+     */
+    int resendInflightNotAcked() {
+        final long now = System.nanoTime();
+        final int resent = inflightWindow.resendDue(now, now - resendPolicy.minDelayNanos(),
+                                                    resendPolicy.maxPerCheck(), resender);
+        if (resent > 0) {
+            LOG.debug("Resent {} in flight packets, CId={}", resent, clientId);
+            resentMessages += resent;
+            inflightSlots += window.resent();
         }
+        return resent;
     }
 
-    private void debugLogPacketIds(Collection<InFlightPacket> expired) {
-        if (!LOG.isDebugEnabled() || expired.isEmpty()) {
-            return;
+    private long resend(int packetId, SessionRegistry.EnqueuedMessage msg, int resends) {
+        if (msg instanceof SessionRegistry.PubRelMarker) {
+            mqttConnection.sendIfWritableElseBuffer(MQTTConnection.pubrel(packetId));
+        } else {
+            final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
+            final ByteBuf copiedPayload = pubMsg.payload.retainedDuplicate();
+            mqttConnection.sendPublish(publishDuplicated(packetId, pubMsg, copiedPayload));
+        }
+        return resendPolicy.delayNanos(resends + 1);
+    }
+
+    /**
+     * Moves back to the queue the inflight publish that the connection gave up sending because its outbound
+     * buffer is full, to be sent again when the connection drains. A publish already resent keeps its packet id
+     * and its place in the inflight window: its first send is on the wire, and the client may hold the id.
+     *
+     * @return false if the packet is not an inflight publish never resent.
+     */
+    boolean spill(int packetId) {
+        final SessionRegistry.EnqueuedMessage msg = inflightWindow.get(packetId);
+        if (!(msg instanceof SessionRegistry.PublishedMessage) || inflightWindow.resends(packetId) > 0) {
+            return false;
         }
+        inflightWindow.remove(packetId);
+        packetIds.release(packetId);
+        inflightSlots++;
+        sessionQueue.add(msg);
+        spilledMessages++;
+        return true;
+    }
+
+    void outboundMessageDropped() {
+        droppedMessages++;
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (InFlightPacket packet : expired) {
-            sb.append(packet.packetId).append(", ");
+    /**
+     * Account the publish with a packet identifier that the connection dropped because its outbound buffer is full,
+     * freeing its identifier when the inflight window doesn't hold it, as nothing would release it anymore.
+     */
+    void outboundPublishDropped(int packetId) {
+        if (inflightWindow.get(packetId) == null) {
+            packetIds.release(packetId);
         }
-        LOG.debug("Resending {} in flight packets [{}]", expired.size(), sb);
+        droppedMessages++;
     }
 
-    private MqttPublishMessage publishNotRetainedDuplicated(InFlightPacket notAckPacketId, Topic topic, MqttQoS qos,
-                                                            ByteBuf payload) {
-        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, true, qos, false, 0);
-        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic.toString(), notAckPacketId.packetId);
+    /**
+     * @return the number of messages dropped because the outbound buffer of the connection was full.
+     */
+    long droppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return the number of publishes moved back to the queue because the outbound buffer of the connection was
+     *   full.
+     */
+    long spilledMessages() {
+        return spilledMessages;
+    }
+
+    /**
+     * @return the number of packets resent because not acknowledged in time.
+     */
+    long resentMessages() {
+        return resentMessages;
+    }
+
+    /**
+     * @return the current size of the inflight window, that changes over time if the window is adaptive.
+     */
+    int inflightWindowSize() {
+        return window.size();
+    }
+
+    private MqttPublishMessage publishDuplicated(int packetId, SessionRegistry.PublishedMessage msg,
+                                                 ByteBuf payload) {
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, true, msg.publishingQos,
+                                                          msg.retained, 0);
+        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(msg.topic.toString(), packetId);
         return new MqttPublishMessage(fixedHeader, varHeader, payload);
     }
 
@@ -324,18 +505,15 @@ class Session {
         // consume the queue
         while (!sessionQueue.isEmpty() && inflighHasSlotsAndConnectionIsUp()) {
             final SessionRegistry.EnqueuedMessage msg = sessionQueue.remove();
-            inflightSlots.decrementAndGet();
-            int sendPacketId = mqttConnection.nextPacketId();
-            inflightWindow.put(sendPacketId, msg);
+            inflightSlots--;
+            int sendPacketId = packetIds.allocate();
+            addInflight(sendPacketId, msg);
             if (msg instanceof SessionRegistry.PubRelMarker) {
                 MqttMessage pubRel = MQTTConnection.pubrel(sendPacketId);
-                mqttConnection.sendIfWritableElseDrop(pubRel);
+                mqttConnection.sendIfWritableElseBuffer(pubRel);
             } else {
                 final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
-                MqttPublishMessage publishMsg = MQTTConnection.notRetainedPublishWithMessageId(msgPub.topic.toString(),
-                    msgPub.publishingQos,
-                    msgPub.payload, sendPacketId);
-                mqttConnection.sendPublish(publishMsg);
+                mqttConnection.sendPublish(publishWithMessageId(msgPub, sendPacketId));
             }
         }
     }
@@ -349,12 +527,32 @@ class Session {
         drainQueueToConnection();
     }
 
+    private static MqttPublishMessage publishWithMessageId(SessionRegistry.PublishedMessage msg, int packetId) {
+        if (msg.retained) {
+            return MQTTConnection.retainedPublishWithMessageId(msg.topic.toString(), msg.publishingQos, msg.payload,
+                                                               packetId);
+        }
+        return MQTTConnection.notRetainedPublishWithMessageId(msg.topic.toString(), msg.publishingQos, msg.payload,
+                                                              packetId);
+    }
+
+    /**
+     * Send a retained publish, at QoS 1 or 2 it goes through the inflight window as the other publishes, resent
+     * until acknowledged, or waits in the queue when the window is full.
+     */
     void sendRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload) {
-        if (qos != MqttQoS.AT_MOST_ONCE) {
-            // QoS 1 or 2
-            mqttConnection.sendPublishRetainedWithPacketId(topic, qos, payload);
-        } else {
+        if (qos == MqttQoS.AT_MOST_ONCE) {
             mqttConnection.sendPublishRetainedQos0(topic, qos, payload);
+            return;
+        }
+        final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload, true);
+        if (canSkipQueue()) {
+            inflightSlots--;
+            int packetId = packetIds.allocate();
+            addInflight(packetId, msg);
+            mqttConnection.sendPublish(publishWithMessageId(msg, packetId));
+        } else {
+            sessionQueue.add(msg);
         }
     }
 
@@ -382,7 +580,11 @@ class Session {
             "clientId='" + clientId + '\'' +
             ", clean=" + clean +
             ", status=" + status +
+            ", inflightWindow=" + window.size() +
             ", inflightSlots=" + inflightSlots +
+            ", droppedMessages=" + droppedMessages +
+            ", spilledMessages=" + spilledMessages +
+            ", resentMessages=" + resentMessages +
             '}';
     }
 }
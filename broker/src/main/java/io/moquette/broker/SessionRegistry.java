@@ -16,6 +16,7 @@
 package io.moquette.broker;
 
 import io.moquette.broker.Session.SessionStatus;
+import io.moquette.broker.subscriptions.ClientIds;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
@@ -27,11 +28,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class SessionRegistry {
@@ -44,11 +47,17 @@ public class SessionRegistry {
         final Topic topic;
         final MqttQoS publishingQos;
         final ByteBuf payload;
+        final boolean retained;
 
         PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload) {
+            this(topic, publishingQos, payload, false);
+        }
+
+        PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained) {
             this.topic = topic;
             this.publishingQos = publishingQos;
             this.payload = payload;
+            this.retained = retained;
         }
     }
 
@@ -59,10 +68,34 @@ public class SessionRegistry {
         NONE, SEND_STORED_MESSAGES
     }
 
+    /**
+     * Stable per client reference to its current session, kept current across reconnect and takeover, that the
+     * publish fan out reaches by the int id of the client, without any lookup by client id. It holds the client
+     * int id until the session is removed.
+     */
+    private static final class SessionRef extends AtomicReference<Session> {
+
+        private static final long serialVersionUID = 1L;
+
+        final String clientId;
+        final int clientIntId;
+
+        SessionRef(String clientId, int clientIntId) {
+            this.clientId = clientId;
+            this.clientIntId = clientIntId;
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(SessionRegistry.class);
 
-    private final ConcurrentMap<String, Session> pool = new ConcurrentHashMap<>();
+    private static final int INITIAL_REFS_CAPACITY = 1024;
+
+    private final ConcurrentMap<String, SessionRef> pool = new ConcurrentHashMap<>();
+    private final Object refsGrowLock = new Object();
+    // indexed by client int id, the array is written only under refsGrowLock and published by the volatile write
+    private volatile SessionRef[] refsByClientIntId = new SessionRef[INITIAL_REFS_CAPACITY];
     private final ISubscriptionsDirectory subscriptionsDirectory;
+    private final ClientIds clientIds;
     private final IQueueRepository queueRepository;
     private final Authorizator authorizator;
     private final ConcurrentMap<String, Queue<SessionRegistry.EnqueuedMessage>> queues = new ConcurrentHashMap<>();
@@ -71,6 +104,7 @@ public class SessionRegistry {
                     IQueueRepository queueRepository,
                     Authorizator authorizator) {
         this.subscriptionsDirectory = subscriptionsDirectory;
+        this.clientIds = subscriptionsDirectory.clientIds();
         this.queueRepository = queueRepository;
         this.authorizator = authorizator;
     }
@@ -78,13 +112,12 @@ public class SessionRegistry {
     void bindToSession(MQTTConnection mqttConnection, MqttConnectMessage msg, String clientId) {
         boolean isSessionAlreadyStored = false;
         PostConnectAction postConnectAction = PostConnectAction.NONE;
-        if (!pool.containsKey(clientId)) {
+        if (retrieve(clientId) == null) {
             // case 1
             final Session newSession = createNewSession(mqttConnection, msg, clientId);
 
             // publish the session
-            final Session previous = pool.putIfAbsent(clientId, newSession);
-            final boolean success = previous == null;
+            final boolean success = publishNew(clientId, newSession);
 
             if (success) {
                 LOG.trace("case 1, not existing session with CId {}", clientId);
@@ -102,7 +135,7 @@ public class SessionRegistry {
         mqttConnection.sendConnAck(isSessionAlreadyPresent);
 
         if (postConnectAction == PostConnectAction.SEND_STORED_MESSAGES) {
-            final Session session = pool.get(clientId);
+            final Session session = retrieve(clientId);
             session.sendQueuedMessagesWhileOffline();
         }
     }
@@ -111,7 +144,8 @@ public class SessionRegistry {
                                                     String clientId, Session newSession) {
         PostConnectAction postConnectAction = PostConnectAction.NONE;
         final boolean newIsClean = msg.variableHeader().isCleanSession();
-        final Session oldSession = pool.get(clientId);
+        final SessionRef sessionRef = refOf(clientId);
+        final Session oldSession = sessionRef.get();
         if (newIsClean && oldSession.disconnected()) {
             // case 2
             dropQueuesForClient(clientId);
@@ -129,7 +163,7 @@ public class SessionRegistry {
             if (!result) {
                 throw new SessionCorruptedException("old session moved in connected state by other thread");
             }
-            final boolean published = pool.replace(clientId, oldSession, oldSession);
+            final boolean published = sessionRef.compareAndSet(oldSession, oldSession);
             if (!published) {
                 throw new SessionCorruptedException("old session was already removed");
             }
@@ -152,7 +186,7 @@ public class SessionRegistry {
             }
 
             // publish new session
-            final boolean published = pool.replace(clientId, oldSession, oldSession);
+            final boolean published = sessionRef.compareAndSet(oldSession, oldSession);
             if (!published) {
                 throw new SessionCorruptedException("old session was already removed");
             }
@@ -164,7 +198,7 @@ public class SessionRegistry {
             oldSession.closeImmediately();
             //remove(clientId);
             // publish new session
-            final boolean published = pool.replace(clientId, oldSession, newSession);
+            final boolean published = sessionRef.compareAndSet(oldSession, newSession);
             if (!published) {
                 throw new SessionCorruptedException("old session was already removed");
             }
@@ -229,12 +263,78 @@ public class SessionRegistry {
         return new Session.Will(willTopic, willPayload, qos, retained);
     }
 
+    private SessionRef refOf(String clientId) {
+        return pool.computeIfAbsent(clientId, this::createRef);
+    }
+
+    /**
+     * Publish the session if the client has none, atomically with the creation of the ref, so that a concurrent
+     * {@link #remove(String)} can't drop the ref between the two.
+     */
+    private boolean publishNew(String clientId, Session newSession) {
+        final boolean[] published = new boolean[1];
+        pool.compute(clientId, (id, existing) -> {
+            final SessionRef ref = existing == null ? createRef(id) : existing;
+            published[0] = ref.compareAndSet(null, newSession);
+            return ref;
+        });
+        return published[0];
+    }
+
+    private SessionRef createRef(String clientId) {
+        // held by the ref, the id of the client can't change while the ref is in the pool
+        final int clientIntId = clientIds.acquire(clientId);
+        final SessionRef ref = new SessionRef(clientId, clientIntId);
+        synchronized (refsGrowLock) {
+            SessionRef[] refs = refsByClientIntId;
+            if (clientIntId >= refs.length) {
+                refs = Arrays.copyOf(refs, Math.max(refs.length * 2, clientIntId + 1));
+            }
+            refs[clientIntId] = ref;
+            refsByClientIntId = refs;
+        }
+        return ref;
+    }
+
     Session retrieve(String clientID) {
-        return pool.get(clientID);
+        final SessionRef ref = pool.get(clientID);
+        return ref == null ? null : ref.get();
     }
 
+    /**
+     * Fast path of {@link #retrieve(String)} for the publish fan out, reaches the session through the int id
+     * of the subscribed client. A subscription matched before its removal could carry an id already freed and
+     * assigned to another client, so the client id of the ref found is checked too.
+     */
+    Session retrieve(Subscription subscription) {
+        final SessionRef[] refs = refsByClientIntId;
+        final int clientIntId = subscription.getClientIntId();
+        if (clientIntId < 0 || clientIntId >= refs.length) {
+            return retrieve(subscription.getClientId());
+        }
+        final SessionRef ref = refs[clientIntId];
+        if (ref == null || !ref.clientId.equals(subscription.getClientId())) {
+            return retrieve(subscription.getClientId());
+        }
+        return ref.get();
+    }
+
+    /**
+     * Drop the session of the client, with its ref in the pool and in the slot of its int id, then free the id.
+     */
     public void remove(String clientID) {
-        pool.remove(clientID);
+        pool.computeIfPresent(clientID, (id, ref) -> {
+            ref.set(null);
+            synchronized (refsGrowLock) {
+                final SessionRef[] refs = refsByClientIntId;
+                if (refs[ref.clientIntId] == ref) {
+                    refs[ref.clientIntId] = null;
+                    refsByClientIntId = refs;
+                }
+            }
+            clientIds.release(id);
+            return null;
+        });
     }
 
     public void disconnect(String clientID) {
@@ -252,7 +352,8 @@ public class SessionRegistry {
 
     Collection<ClientDescriptor> listConnectedClients() {
         return pool.values().stream()
-            .filter(Session::connected)
+            .map(SessionRef::get)
+            .filter(session -> session != null && session.connected())
             .map(this::createClientDescriptor)
             .filter(Optional::isPresent)
             .map(Optional::get)
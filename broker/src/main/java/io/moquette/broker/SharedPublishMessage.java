@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+
+import java.util.List;
+
+/**
+ * PUBLISH of a fan out, the topic is encoded once for all the subscribers and each of them is sent a composite
+ * buffer made of its own few bytes (fixed header and packet id) plus the shared topic and payload buffers, so
+ * that neither the topic nor the payload are encoded or copied once per subscriber.
+ *
+ * It's still a regular MqttPublishMessage up to the {@link Encoder}, that sits just before the MqttEncoder in the
+ * pipeline and turns it into the composite buffer, which the MqttEncoder lets pass through.
+ */
+final class SharedPublishMessage extends MqttPublishMessage {
+
+    private final ByteBuf encodedTopic;
+
+    /**
+     * @param encodedTopic the topic as encoded by {@link #encodeTopic(String, ByteBufAllocator)}, this message
+     *                     keeps its own retained duplicate.
+     */
+    SharedPublishMessage(MqttFixedHeader fixedHeader, MqttPublishVariableHeader variableHeader, ByteBuf payload,
+                         ByteBuf encodedTopic) {
+        super(fixedHeader, variableHeader, payload);
+        this.encodedTopic = encodedTopic.retainedDuplicate();
+    }
+
+    /**
+     * @param allocator the allocator of the channels the messages are written to.
+     * @return the topic name, prefixed by its length, as in the variable header of a PUBLISH. The caller owns the
+     *   buffer and has to release it once all the messages sharing it have been created.
+     */
+    static ByteBuf encodeTopic(String topicName, ByteBufAllocator allocator) {
+        final int utf8Length = ByteBufUtil.utf8Bytes(topicName);
+        final ByteBuf encoded = allocator.buffer(2 + utf8Length);
+        encoded.writeShort(utf8Length);
+        ByteBufUtil.writeUtf8(encoded, topicName);
+        return encoded;
+    }
+
+    CompositeByteBuf encode(ByteBufAllocator allocator) {
+        final MqttFixedHeader fixedHeader = fixedHeader();
+        final int qos = fixedHeader.qosLevel().value();
+        final ByteBuf payload = content();
+        final int packetIdLength = qos > 0 ? 2 : 0;
+        final int remainingLength = encodedTopic.readableBytes() + packetIdLength + payload.readableBytes();
+
+        final ByteBuf header = allocator.buffer(1 + 4 + packetIdLength);
+        header.writeByte(firstByte(fixedHeader));
+        writeVariableLengthInt(header, remainingLength);
+
+        final CompositeByteBuf frame = allocator.compositeBuffer(4);
+        frame.addComponent(true, header);
+        frame.addComponent(true, encodedTopic.retainedDuplicate());
+        if (packetIdLength > 0) {
+            frame.addComponent(true, allocator.buffer(2).writeShort(variableHeader().packetId()));
+        }
+        frame.addComponent(true, payload.retainedDuplicate());
+        return frame;
+    }
+
+    private static int firstByte(MqttFixedHeader header) {
+        int ret = MqttMessageType.PUBLISH.value() << 4;
+        if (header.isDup()) {
+            ret |= 0x08;
+        }
+        ret |= header.qosLevel().value() << 1;
+        if (header.isRetain()) {
+            ret |= 0x01;
+        }
+        return ret;
+    }
+
+    private static void writeVariableLengthInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+
+    @Override
+    public SharedPublishMessage retain() {
+        super.retain();
+        encodedTopic.retain();
+        return this;
+    }
+
+    @Override
+    public SharedPublishMessage retain(int increment) {
+        super.retain(increment);
+        encodedTopic.retain(increment);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        encodedTopic.release();
+        return super.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        encodedTopic.release(decrement);
+        return super.release(decrement);
+    }
+
+    /**
+     * Turns the shared PUBLISHes in their composite buffers, the other messages are left to the MqttEncoder.
+     */
+    @Sharable
+    static final class Encoder extends MessageToMessageEncoder<SharedPublishMessage> {
+
+        static final Encoder INSTANCE = new Encoder();
+
+        private Encoder() {
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, SharedPublishMessage msg, List<Object> out) {
+            out.add(msg.encode(ctx.alloc()));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel of an event loop, that drives the timeouts of all its channels: keep alive, resend and flush.
+ * Scheduling, rescheduling and cancelling a timeout is O(1) and doesn't allocate, where the scheduler of the event
+ * loop pays a heap operation on every schedule and a linear removal on every cancel. The price is the resolution,
+ * a timeout expires on the first tick after its deadline. The wheel ticks only while it holds timeouts, an idle
+ * event loop isn't woken up by it.
+ *
+ * The wheel is accessed only by its event loop, as the timeouts of the channels.
+ */
+final class TimingWheel {
+
+    /**
+     * A timeout, reusable: it can be scheduled again after its expiry, or while scheduled to move its deadline.
+     */
+    abstract static class Timeout {
+
+        private long deadlineTick;
+        private int bucket = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /**
+         * Invoked by the event loop on the first tick after the deadline.
+         */
+        abstract void expired();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheel.class);
+
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // 51.2 seconds per turn of the wheel, the longer timeouts are skipped by the ticks of the turns before
+    private static final int WHEEL_SIZE = 512;
+
+    private static final Map<EventExecutor, TimingWheel> WHEELS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // weak as the wheels map holds its keys, null when the ticks are driven by the caller
+    private final WeakReference<EventExecutor> eventLoop;
+    private ScheduledFuture<?> ticker;
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    private long currentTick;
+    private int size;
+    // the next timeout visited by the running tick, moved forward if cancelled by the expiry of the current one
+    private Timeout nextInTick;
+
+    /**
+     * @return the wheel of the event loop, created on first use.
+     */
+    static TimingWheel of(EventExecutor eventLoop) {
+        synchronized (WHEELS) {
+            return WHEELS.computeIfAbsent(eventLoop, TimingWheel::new);
+        }
+    }
+
+    /**
+     * A wheel whose ticks are driven by the caller.
+     */
+    TimingWheel() {
+        this(null);
+    }
+
+    private TimingWheel(EventExecutor eventLoop) {
+        this.eventLoop = eventLoop == null ? null : new WeakReference<>(eventLoop);
+    }
+
+    /**
+     * Schedule the timeout, moving its deadline if already scheduled.
+     */
+    void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        }
+        final long ticks = Math.max(1, (unit.toNanos(delay) + TICK_NANOS - 1) / TICK_NANOS);
+        timeout.deadlineTick = currentTick + ticks;
+        final int bucket = (int) (timeout.deadlineTick & (WHEEL_SIZE - 1));
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        size++;
+        if (ticker == null && eventLoop != null) {
+            startTicks();
+        }
+    }
+
+    private void startTicks() {
+        final EventExecutor loop = eventLoop.get();
+        if (loop != null) {
+            ticker = loop.scheduleAtFixedRate(this::tick, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void cancel(Timeout timeout) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout == nextInTick) {
+            nextInTick = timeout.next;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Advance the wheel by one tick, expiring the timeouts of the bucket whose deadline is reached. The timeouts
+     * scheduled again by their expiry are never visited by the same tick. The ticks of the event loop stop when the
+     * wheel is left empty, stopped here and not on the removal of the last timeout, that a reschedule would
+     * otherwise turn into a restart.
+     */
+    void tick() {
+        currentTick++;
+        Timeout timeout = buckets[(int) (currentTick & (WHEEL_SIZE - 1))];
+        while (timeout != null) {
+            nextInTick = timeout.next;
+            if (timeout.deadlineTick <= currentTick) {
+                unlink(timeout);
+                try {
+                    timeout.expired();
+                } catch (Throwable th) {
+                    LOG.warn("Timeout {} failed on expiry", timeout, th);
+                }
+            }
+            timeout = nextInTick;
+        }
+        nextInTick = null;
+        if (size == 0 && ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    /**
+     * @return true if the event loop is running the ticks of the wheel.
+     */
+    boolean isTicking() {
+        return ticker != null;
+    }
+
+    /**
+     * @return the number of scheduled timeouts.
+     */
+    int size() {
+        return size;
+    }
+}
@@ -16,17 +16,24 @@
 package io.moquette.broker.metrics;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.librato.metrics.reporter.Librato;
 import io.moquette.broker.config.IConfig;
 import io.moquette.broker.NettyUtils;
+import io.moquette.broker.subscriptions.MatchCacheMetrics;
+import io.moquette.broker.subscriptions.SubscriptionsMetrics;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static io.moquette.BrokerConstants.*;
 import static io.netty.channel.ChannelHandler.Sharable;
@@ -60,6 +67,45 @@ public final class DropWizardMetricsHandler extends ChannelInboundHandlerAdapter
             .start(10, TimeUnit.SECONDS);
     }
 
+    /**
+     * Sample the memory used by the pooled allocator of the channels, and the load of its direct arenas.
+     */
+    public void trackAllocator(PooledByteBufAllocatorMetric allocator) {
+        metrics.register("allocator.used_direct_memory", (Gauge<Long>) allocator::usedDirectMemory);
+        metrics.register("allocator.used_heap_memory", (Gauge<Long>) allocator::usedHeapMemory);
+        metrics.register("allocator.thread_local_caches", (Gauge<Integer>) allocator::numThreadLocalCaches);
+        final List<PoolArenaMetric> arenas = allocator.directArenas();
+        for (int i = 0; i < arenas.size(); i++) {
+            final PoolArenaMetric arena = arenas.get(i);
+            final String prefix = "allocator.direct_arena." + i;
+            metrics.register(prefix + ".thread_caches", (Gauge<Integer>) arena::numThreadCaches);
+            metrics.register(prefix + ".active_allocations", (Gauge<Long>) arena::numActiveAllocations);
+            metrics.register(prefix + ".active_bytes", (Gauge<Long>) arena::numActiveBytes);
+        }
+    }
+
+    /**
+     * Sample the statistics of the subscriptions directory.
+     */
+    public void trackSubscriptions(Supplier<SubscriptionsMetrics> subscriptions) {
+        metrics.register("subscriptions.count", (Gauge<Long>) () -> subscriptions.get().subscriptions());
+        metrics.register("subscriptions.wildcard_count",
+                         (Gauge<Long>) () -> subscriptions.get().wildcardSubscriptions());
+        metrics.register("subscriptions.nodes", (Gauge<Long>) () -> subscriptions.get().nodes());
+        metrics.register("subscriptions.tombstones", (Gauge<Long>) () -> subscriptions.get().tombstones());
+    }
+
+    /**
+     * Sample the counters of the publish match cache of the subscriptions directory.
+     */
+    public void trackMatchCache(Supplier<MatchCacheMetrics> matchCache) {
+        metrics.register("subscriptions.match_cache.hits", (Gauge<Long>) () -> matchCache.get().hits());
+        metrics.register("subscriptions.match_cache.misses", (Gauge<Long>) () -> matchCache.get().misses());
+        metrics.register("subscriptions.match_cache.hit_rate", (Gauge<Double>) () -> matchCache.get().hitRate());
+        metrics.register("subscriptions.match_cache.evictions", (Gauge<Long>) () -> matchCache.get().evictions());
+        metrics.register("subscriptions.match_cache.size", (Gauge<Integer>) () -> matchCache.get().size());
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object message) {
         MqttMessage msg = (MqttMessage) message;
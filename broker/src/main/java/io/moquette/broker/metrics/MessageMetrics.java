@@ -20,6 +20,7 @@ public class MessageMetrics {
 
     private long m_messagesRead;
     private long m_messageWrote;
+    private long m_messagesResent;
 
     void incrementRead(long numMessages) {
         m_messagesRead += numMessages;
@@ -29,6 +30,10 @@ public class MessageMetrics {
         m_messageWrote += numMessages;
     }
 
+    void incrementResent(long numMessages) {
+        m_messagesResent += numMessages;
+    }
+
     public long messagesRead() {
         return m_messagesRead;
     }
@@ -36,4 +41,8 @@ public class MessageMetrics {
     public long messagesWrote() {
         return m_messageWrote;
     }
+
+    public long messagesResent() {
+        return m_messagesResent;
+    }
 }
@@ -25,11 +25,13 @@ public class MessageMetricsCollector {
 
     private AtomicLong readMsgs = new AtomicLong();
     private AtomicLong wroteMsgs = new AtomicLong();
+    private AtomicLong resentMsgs = new AtomicLong();
 
     public MessageMetrics computeMetrics() {
         MessageMetrics allMetrics = new MessageMetrics();
         allMetrics.incrementRead(readMsgs.get());
         allMetrics.incrementWrote(wroteMsgs.get());
+        allMetrics.incrementResent(resentMsgs.get());
         return allMetrics;
     }
 
@@ -40,4 +42,8 @@ public class MessageMetricsCollector {
     public void sumWroteMessages(long count) {
         wroteMsgs.getAndAdd(count);
     }
+
+    public void sumResentMessages(long count) {
+        resentMsgs.getAndAdd(count);
+    }
 }
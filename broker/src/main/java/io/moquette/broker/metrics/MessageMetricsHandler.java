@@ -62,10 +62,21 @@ public class MessageMetricsHandler extends ChannelDuplexHandler {
         MessageMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
         m_collector.sumReadMessages(metrics.messagesRead());
         m_collector.sumWroteMessages(metrics.messagesWrote());
+        m_collector.sumResentMessages(metrics.messagesResent());
         super.close(ctx, promise);
     }
 
     public static MessageMetrics getMessageMetrics(Channel channel) {
         return channel.attr(ATTR_KEY_METRICS).get();
     }
+
+    /**
+     * Account the packets resent on the channel because not acknowledged in time, if its metrics are collected.
+     */
+    public static void messagesResent(Channel channel, int count) {
+        MessageMetrics metrics = channel.attr(ATTR_KEY_METRICS).get();
+        if (metrics != null) {
+            metrics.incrementResent(count);
+        }
+    }
 }
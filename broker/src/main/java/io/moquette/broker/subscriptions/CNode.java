@@ -15,52 +15,84 @@
  */
 package io.moquette.broker.subscriptions;
 
-import java.util.*;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
 
 class CNode {
 
     Token token;
-    private List<INode> children;
-    Set<Subscription> subscriptions;
+    private PersistentHashMap<Token, INode> children;
+    private INode singleWildcardChild;
+    private INode multiWildcardChild;
+    SubscriptionSet subscriptions;
 
     CNode() {
-        this.children = new ArrayList<>();
-        this.subscriptions = new HashSet<>();
+        this.children = PersistentHashMap.empty();
+        this.subscriptions = SubscriptionSet.EMPTY;
     }
 
-    //Copy constructor
-    private CNode(Token token, List<INode> children, Set<Subscription> subscriptions) {
+    //Copy constructor, children and subscriptions are persistent so they are shared and not copied
+    private CNode(Token token, PersistentHashMap<Token, INode> children, INode singleWildcardChild,
+                  INode multiWildcardChild, SubscriptionSet subscriptions) {
         this.token = token; // keep reference, root comparison in directory logic relies on it for now.
-        this.subscriptions = new HashSet<>(subscriptions);
-        this.children = new ArrayList<>(children);
+        this.subscriptions = subscriptions;
+        this.children = children;
+        this.singleWildcardChild = singleWildcardChild;
+        this.multiWildcardChild = multiWildcardChild;
     }
 
-    boolean anyChildrenMatch(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return true;
-            }
+    List<INode> allChildren() {
+        final List<INode> all = new ArrayList<>(children.size() + 2);
+        all.addAll(children.values());
+        if (singleWildcardChild != null) {
+            all.add(singleWildcardChild);
+        }
+        if (multiWildcardChild != null) {
+            all.add(multiWildcardChild);
         }
-        return false;
+        return all;
     }
 
-    List<INode> allChildren() {
-        return this.children;
+    boolean hasChildren() {
+        return !children.isEmpty() || singleWildcardChild != null || multiWildcardChild != null;
     }
 
+    /**
+     * Direct lookup of the child for the token, wildcards children are kept in their own slots so
+     * that they can be reached without any search.
+     *
+     * @param token the token of the child to search.
+     * @return the child INode or null if no child exists for the token or if the child is a tomb.
+     */
     INode childOf(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return iNode;
-            }
+        final INode child = slotOf(token);
+        if (child == null || child.isTombed()) {
+            return null;
         }
-        throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        return child;
     }
 
-    private boolean equalsToken(Token token) {
-        return token != null && this.token != null && this.token.equals(token);
+    /**
+     * @return true iff the node is the child registered for its token, tomb or not.
+     */
+    boolean hasChild(INode node) {
+        return slotOf(node.mainNode().token) == node;
+    }
+
+    private INode slotOf(Token token) {
+        if (Token.SINGLE.equals(token)) {
+            return singleWildcardChild;
+        }
+        if (Token.MULTI.equals(token)) {
+            return multiWildcardChild;
+        }
+        return children.get(token);
     }
 
     @Override
@@ -69,29 +101,50 @@ class CNode {
     }
 
     CNode copy() {
-        return new CNode(this.token, this.children, this.subscriptions);
+        return new CNode(this.token, this.children, this.singleWildcardChild, this.multiWildcardChild,
+                         this.subscriptions);
     }
 
-    public void add(INode newINode) {
-        this.children.add(newINode);
+    /**
+     * Add the child, replacing any other child (tombs included) with the same token.
+     *
+     * @param newINode the child to add.
+     * @return the replaced child or null.
+     */
+    public INode add(INode newINode) {
+        final Token childToken = newINode.mainNode().token;
+        final INode replaced = slotOf(childToken);
+        if (Token.SINGLE.equals(childToken)) {
+            this.singleWildcardChild = newINode;
+        } else if (Token.MULTI.equals(childToken)) {
+            this.multiWildcardChild = newINode;
+        } else {
+            this.children = this.children.put(childToken, newINode);
+        }
+        return replaced;
     }
+
+    /**
+     * Remove the child, only if it's still the one registered for its token.
+     *
+     * @param node the child to remove.
+     */
     public void remove(INode node) {
-        this.children.remove(node);
+        if (!hasChild(node)) {
+            return;
+        }
+        final Token childToken = node.mainNode().token;
+        if (Token.SINGLE.equals(childToken)) {
+            this.singleWildcardChild = null;
+        } else if (Token.MULTI.equals(childToken)) {
+            this.multiWildcardChild = null;
+        } else {
+            this.children = this.children.remove(childToken);
+        }
     }
 
     CNode addSubscription(Subscription newSubscription) {
-        // if already contains one with same topic and same client, keep that with higher QoS
-        if (subscriptions.contains(newSubscription)) {
-            final Subscription existing = subscriptions.stream()
-                .filter(s -> s.equals(newSubscription))
-                .findFirst().get();
-            if (existing.getRequestedQos().value() < newSubscription.getRequestedQos().value()) {
-                subscriptions.remove(existing);
-                subscriptions.add(new Subscription(newSubscription));
-            }
-        } else {
-            this.subscriptions.add(new Subscription(newSubscription));
-        }
+        this.subscriptions = subscriptions.with(newSubscription);
         return this;
     }
 
@@ -99,32 +152,175 @@ class CNode {
      * @return true iff the subscriptions contained in this node are owned by clientId
      *   AND at least one subscription is actually present for that clientId
      * */
-    boolean containsOnly(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (!sub.clientId.equals(clientId)) {
+    boolean containsOnly(int clientIntId) {
+        return this.subscriptions.size() == 1 && contains(clientIntId);
+    }
+
+    //TODO this is equivalent to negate(containsOnly(clientId))
+    public boolean contains(int clientIntId) {
+        return this.subscriptions.containsClient(clientIntId);
+    }
+
+    void removeSubscriptionsFor(int clientIntId) {
+        this.subscriptions = this.subscriptions.without(clientIntId);
+    }
+
+    /**
+     * Immutable set of the subscriptions of a node. All the subscriptions of a node share the same topic
+     * filter, so they are keyed by client, through the int id of the client. Small sets, the most common, are
+     * kept in arrays sorted by client id, beyond {@link #MAX_ARRAY_SIZE} they move to a persistent hash trie, so
+     * that adding a subscriber to a node with many doesn't copy all of them.
+     */
+    static final class SubscriptionSet extends AbstractSet<Subscription> {
+
+        private static final int MAX_ARRAY_SIZE = 32;
+
+        static final SubscriptionSet EMPTY = new SubscriptionSet(new int[0], new Subscription[0]);
+
+        // array mode, sorted by client id, null in map mode
+        private final int[] clientIntIds;
+        private final Subscription[] subscriptions;
+        // map mode, null in array mode
+        private final PersistentHashMap<Integer, Subscription> byClient;
+
+        private SubscriptionSet(int[] clientIntIds, Subscription[] subscriptions) {
+            this.clientIntIds = clientIntIds;
+            this.subscriptions = subscriptions;
+            this.byClient = null;
+        }
+
+        private SubscriptionSet(PersistentHashMap<Integer, Subscription> byClient) {
+            this.clientIntIds = null;
+            this.subscriptions = null;
+            this.byClient = byClient;
+        }
+
+        private Subscription get(int clientIntId) {
+            if (byClient != null) {
+                return byClient.get(clientIntId);
+            }
+            final int index = Arrays.binarySearch(clientIntIds, clientIntId);
+            return index >= 0 ? subscriptions[index] : null;
+        }
+
+        /**
+         * @return a set with the subscription added, if the client already has one (same topic, same client),
+         *   the one with higher QoS is kept.
+         */
+        SubscriptionSet with(Subscription newSubscription) {
+            final int clientIntId = newSubscription.clientIntId;
+            final Subscription existing = get(clientIntId);
+            if (existing != null
+                && existing.getRequestedQos().value() >= newSubscription.getRequestedQos().value()) {
+                return this;
+            }
+            final Subscription copy = new Subscription(newSubscription);
+            if (byClient != null) {
+                return new SubscriptionSet(byClient.put(clientIntId, copy));
+            }
+            final int index = Arrays.binarySearch(clientIntIds, clientIntId);
+            if (index >= 0) {
+                final Subscription[] updated = subscriptions.clone();
+                updated[index] = copy;
+                return new SubscriptionSet(clientIntIds, updated);
+            }
+            if (clientIntIds.length == MAX_ARRAY_SIZE) {
+                PersistentHashMap<Integer, Subscription> map = PersistentHashMap.empty();
+                for (int i = 0; i < clientIntIds.length; i++) {
+                    map = map.put(clientIntIds[i], subscriptions[i]);
+                }
+                return new SubscriptionSet(map.put(clientIntId, copy));
+            }
+            final int insertion = -index - 1;
+            final int[] ids = new int[clientIntIds.length + 1];
+            final Subscription[] subs = new Subscription[ids.length];
+            System.arraycopy(clientIntIds, 0, ids, 0, insertion);
+            System.arraycopy(subscriptions, 0, subs, 0, insertion);
+            ids[insertion] = clientIntId;
+            subs[insertion] = copy;
+            System.arraycopy(clientIntIds, insertion, ids, insertion + 1, clientIntIds.length - insertion);
+            System.arraycopy(subscriptions, insertion, subs, insertion + 1, subscriptions.length - insertion);
+            return new SubscriptionSet(ids, subs);
+        }
+
+        SubscriptionSet without(int clientIntId) {
+            if (byClient != null) {
+                final PersistentHashMap<Integer, Subscription> updated = byClient.remove(clientIntId);
+                if (updated == byClient) {
+                    return this;
+                }
+                // back to arrays only well below the threshold, to not flip at every change around it
+                return updated.size() > MAX_ARRAY_SIZE / 2 ? new SubscriptionSet(updated) : toArrays(updated);
+            }
+            final int index = Arrays.binarySearch(clientIntIds, clientIntId);
+            if (index < 0) {
+                return this;
+            }
+            if (clientIntIds.length == 1) {
+                return EMPTY;
+            }
+            final int[] ids = new int[clientIntIds.length - 1];
+            final Subscription[] subs = new Subscription[ids.length];
+            System.arraycopy(clientIntIds, 0, ids, 0, index);
+            System.arraycopy(subscriptions, 0, subs, 0, index);
+            System.arraycopy(clientIntIds, index + 1, ids, index, ids.length - index);
+            System.arraycopy(subscriptions, index + 1, subs, index, subs.length - index);
+            return new SubscriptionSet(ids, subs);
+        }
+
+        private static SubscriptionSet toArrays(PersistentHashMap<Integer, Subscription> map) {
+            final int[] ids = new int[map.size()];
+            final Subscription[] subs = new Subscription[ids.length];
+            int i = 0;
+            for (Subscription sub : map.values()) {
+                ids[i++] = sub.clientIntId;
+            }
+            Arrays.sort(ids);
+            for (i = 0; i < ids.length; i++) {
+                subs[i] = map.get(ids[i]);
+            }
+            return new SubscriptionSet(ids, subs);
+        }
+
+        boolean containsClient(int clientIntId) {
+            return get(clientIntId) != null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Subscription)) {
                 return false;
             }
+            final Subscription subscription = (Subscription) o;
+            if (subscription.clientIntId == ClientIds.UNKNOWN) {
+                // not stored in a directory, so not keyed by id
+                return super.contains(o);
+            }
+            return subscription.equals(get(subscription.clientIntId));
         }
-        return !this.subscriptions.isEmpty();
-    }
 
-    //TODO this is equivalent to negate(containsOnly(clientId))
-    public boolean contains(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
-                return true;
+        @Override
+        public void forEach(Consumer<? super Subscription> action) {
+            if (byClient != null) {
+                byClient.forEachValue(action);
+                return;
+            }
+            for (Subscription subscription : subscriptions) {
+                action.accept(subscription);
             }
         }
-        return false;
-    }
 
-    void removeSubscriptionsFor(String clientId) {
-        Set<Subscription> toRemove = new HashSet<>();
-        for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
-                toRemove.add(sub);
+        @Override
+        public Iterator<Subscription> iterator() {
+            if (byClient != null) {
+                return byClient.values().iterator();
             }
+            return Collections.unmodifiableList(Arrays.asList(subscriptions)).iterator();
+        }
+
+        @Override
+        public int size() {
+            return byClient != null ? byClient.size() : clientIntIds.length;
         }
-        this.subscriptions.removeAll(toRemove);
     }
 }
@@ -1,9 +1,19 @@
 package io.moquette.broker.subscriptions;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class CTrie {
 
@@ -18,127 +28,223 @@ public class CTrie {
     private static final INode NO_PARENT = null;
 
     private enum Action {
-        OK, REPEAT
+        // CHANGED: done, a client subscription has been added or removed
+        OK, CHANGED, REPEAT
+    }
+
+    /**
+     * Statistics of the tree, updated after every successful CAS, so they can be read without visiting the tree.
+     * Being striped they are cheap to update concurrently, but the sum is not an atomic snapshot.
+     */
+    static final class Counters {
+
+        final LongAdder subscriptions = new LongAdder();
+        final LongAdder wildcardSubscriptions = new LongAdder();
+        final LongAdder nodes = new LongAdder();
+        final LongAdder tombstones = new LongAdder();
+
+        void subscriptionAdded(boolean wildcard) {
+            subscriptions.increment();
+            if (wildcard) {
+                wildcardSubscriptions.increment();
+            }
+        }
+
+        void subscriptionRemoved(boolean wildcard) {
+            subscriptions.decrement();
+            if (wildcard) {
+                wildcardSubscriptions.decrement();
+            }
+        }
+
+        void addAll(Counters other) {
+            subscriptions.add(other.subscriptions.sum());
+            wildcardSubscriptions.add(other.wildcardSubscriptions.sum());
+            nodes.add(other.nodes.sum());
+            tombstones.add(other.tombstones.sum());
+        }
+
+        SubscriptionsMetrics snapshot() {
+            return new SubscriptionsMetrics(subscriptions.sum(), wildcardSubscriptions.sum(), nodes.sum(),
+                                            tombstones.sum());
+        }
     }
 
     INode root;
+    private final Counters counters = new Counters();
+    private final ClientIds clientIds;
 
     CTrie() {
+        this(new ClientIds());
+    }
+
+    /**
+     * @param clientIds the dictionary of the client ids, every subscription stored holds a reference to the id of
+     *                  its client.
+     */
+    CTrie(ClientIds clientIds) {
+        this.clientIds = clientIds;
         final CNode mainNode = new CNode();
         mainNode.token = ROOT;
         this.root = new INode(mainNode);
+        counters.nodes.increment();
+    }
+
+    static boolean hasWildcards(List<Token> tokens) {
+        return tokens.contains(Token.SINGLE) || tokens.contains(Token.MULTI);
+    }
+
+    /**
+     * The trie navigation walks the tokens of a single topic by index (the level), instead of slicing
+     * the topic at every step, so that no intermediate Topic is created while descending the tree.
+     *
+     * @param topic the topic to walk.
+     * @return the pre-parsed tokens of the topic, or an empty list if the topic is not valid.
+     */
+    private static List<Token> tokensOf(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        return tokens == null ? Collections.emptyList() : tokens;
     }
 
     Optional<CNode> lookup(Topic topic) {
+        final List<Token> tokens = tokensOf(topic);
         INode inode = this.root;
-        Token token = topic.headToken();
-        while (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            topic = topic.exceptHeadToken();
-            inode = inode.mainNode().childOf(token);
-            token = topic.headToken();
+        int level = 0;
+        while (level < tokens.size()) {
+            final INode child = inode.mainNode().childOf(tokens.get(level));
+            if (child == null) {
+                break;
+            }
+            inode = child;
+            level++;
         }
-        if (inode == null || !topic.isEmpty()) {
+        if (inode == null || level < tokens.size()) {
             return Optional.empty();
         }
         return Optional.of(inode.mainNode());
     }
 
-    enum NavigationAction {
-        MATCH, GODEEP, STOP
+    public Set<Subscription> recursiveMatch(Topic topic) {
+        final Set<Subscription> subscriptions = new HashSet<>();
+        recursiveMatch(topic, subscriptions::add);
+        return subscriptions;
     }
 
-    private NavigationAction evaluate(Topic topic, CNode cnode) {
-        if (Token.MULTI.equals(cnode.token)) {
-            return NavigationAction.MATCH;
-        }
-        if (topic.isEmpty()) {
-            return NavigationAction.STOP;
-        }
-        final Token token = topic.headToken();
-        if (!(Token.SINGLE.equals(cnode.token) || cnode.token.equals(token) || ROOT.equals(cnode.token))) {
-            return NavigationAction.STOP;
+    /**
+     * Stream the subscriptions matching the topic into the visitor, without collecting them. Every node is
+     * reached by a single path, so every subscription is visited at most once, but a client could be visited
+     * more than once, for different topic filters.
+     */
+    public void recursiveMatch(Topic topic, Consumer<Subscription> visitor) {
+        final List<Token> tokens = tokensOf(topic);
+        if (!tokens.isEmpty()) {
+            recursiveMatch(tokens, 0, this.root, visitor);
         }
-        return NavigationAction.GODEEP;
     }
 
-    public Set<Subscription> recursiveMatch(Topic topic) {
-        return recursiveMatch(topic, this.root);
-    }
-
-    private Set<Subscription> recursiveMatch(Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
-        NavigationAction action = evaluate(topic, cnode);
-        if (action == NavigationAction.MATCH) {
-            return cnode.subscriptions;
+    /**
+     * Visit the subscriptions matching the tokens from level onward, starting from the node that already
+     * matched the tokens before level. Only the children that can match are visited: the literal one for the
+     * current token, the single level wildcard and the multi level wildcard.
+     */
+    private void recursiveMatch(List<Token> tokens, int level, INode inode, Consumer<Subscription> visitor) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            return;
         }
-        if (action == NavigationAction.STOP) {
-            return Collections.emptySet();
+        // # matches the parent level and everything below it
+        final INode multiWildcard = cnode.childOf(Token.MULTI);
+        if (multiWildcard != null) {
+            multiWildcard.mainNode().subscriptions.forEach(visitor);
         }
-        if (cnode instanceof TNode) {
-            return Collections.emptySet();
+        if (level >= tokens.size()) {
+            cnode.subscriptions.forEach(visitor);
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.token)) ? topic : topic.exceptHeadToken();
-        Set<Subscription> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        final INode singleWildcard = cnode.childOf(Token.SINGLE);
+        if (singleWildcard != null) {
+            recursiveMatch(tokens, level + 1, singleWildcard, visitor);
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+        final INode literal = cnode.childOf(tokens.get(level));
+        if (literal != null && literal != singleWildcard) {
+            recursiveMatch(tokens, level + 1, literal, visitor);
         }
-        return subscriptions;
     }
 
     public void addToTree(Subscription newSubscription) {
+        final List<Token> tokens = tokensOf(newSubscription.topicFilter);
+        final Subscription subscription =
+            new Subscription(newSubscription, clientIds.acquire(newSubscription.clientId));
         Action res;
         do {
-            res = insert(newSubscription.topicFilter, this.root, newSubscription);
+            res = insert(tokens, 0, this.root, subscription);
         } while (res == Action.REPEAT);
+        if (res != Action.CHANGED) {
+            // the client was already subscribed, its subscription already holds the id
+            clientIds.release(subscription.clientId);
+        }
     }
 
-    private Action insert(Topic topic, final INode inode, Subscription newSubscription) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && inode.mainNode().anyChildrenMatch(token)) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return insert(remainingTopic, nextInode, newSubscription);
+    private Action insert(List<Token> tokens, int level, final INode inode, Subscription newSubscription) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // the node has been removed while descending, retry from the root, where the parent will replace it
+            return Action.REPEAT;
+        }
+        final boolean topicConsumed = level >= tokens.size();
+        final INode nextInode = topicConsumed ? null : cnode.childOf(tokens.get(level));
+        if (nextInode != null) {
+            return insert(tokens, level + 1, nextInode, newSubscription);
         } else {
-            if (topic.isEmpty()) {
-                return insertSubscription(inode, newSubscription);
+            if (topicConsumed) {
+                return insertSubscription(inode, cnode, tokens, newSubscription);
             } else {
-                return createNodeAndInsertSubscription(topic, inode, newSubscription);
+                return createNodeAndInsertSubscription(tokens, level, inode, cnode, newSubscription);
             }
         }
     }
 
-    private Action insertSubscription(INode inode, Subscription newSubscription) {
-        CNode cnode = inode.mainNode();
+    private Action insertSubscription(INode inode, CNode cnode, List<Token> tokens, Subscription newSubscription) {
+        final boolean newClient = !cnode.contains(newSubscription.clientIntId);
         CNode updatedCnode = cnode.copy().addSubscription(newSubscription);
         if (inode.compareAndSet(cnode, updatedCnode)) {
+            if (newClient) {
+                counters.subscriptionAdded(hasWildcards(tokens));
+                return Action.CHANGED;
+            }
             return Action.OK;
         } else {
             return Action.REPEAT;
         }
     }
 
-    private Action createNodeAndInsertSubscription(Topic topic, INode inode, Subscription newSubscription) {
-        INode newInode = createPathRec(topic, newSubscription);
-        CNode cnode = inode.mainNode();
+    private Action createNodeAndInsertSubscription(List<Token> tokens, int level, INode inode, CNode cnode,
+                                                   Subscription newSubscription) {
+        INode newInode = createPathRec(tokens, level, newSubscription);
         CNode updatedCnode = cnode.copy();
-        updatedCnode.add(newInode);
+        final INode replaced = updatedCnode.add(newInode);
 
-        return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+        if (!inode.compareAndSet(cnode, updatedCnode)) {
+            return Action.REPEAT;
+        }
+        counters.nodes.add(tokens.size() - level);
+        counters.subscriptionAdded(hasWildcards(tokens));
+        if (replaced != null) {
+            // only a tomb could have been replaced, because the child for the token was missing
+            counters.tombstones.decrement();
+        }
+        return Action.CHANGED;
     }
 
-    private INode createPathRec(Topic topic, Subscription newSubscription) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(remainingTopic, newSubscription);
+    private INode createPathRec(List<Token> tokens, int level, Subscription newSubscription) {
+        if (level + 1 < tokens.size()) {
+            INode inode = createPathRec(tokens, level + 1, newSubscription);
             CNode cnode = new CNode();
-            cnode.token = topic.headToken();
+            cnode.token = tokens.get(level);
             cnode.add(inode);
             return new INode(cnode);
         } else {
-            return createLeafNodes(topic.headToken(), newSubscription);
+            return createLeafNodes(tokens.get(level), newSubscription);
         }
     }
 
@@ -151,18 +257,24 @@ public class CTrie {
     }
 
     public void removeFromTree(Topic topic, String clientID) {
+        final List<Token> tokens = tokensOf(topic);
+        // pinned while removing, so that it can't be freed and reused by another client
+        final int clientIntId = clientIds.acquire(clientID);
         Action res;
         do {
-            res = remove(clientID, topic, this.root, NO_PARENT);
+            res = remove(clientIntId, tokens, 0, this.root, NO_PARENT);
         } while (res == Action.REPEAT);
+        if (res == Action.CHANGED) {
+            clientIds.release(clientID);
+        }
+        clientIds.release(clientID);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode, INode iParent) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return remove(clientId, remainingTopic, nextInode, inode);
+    private Action remove(int clientIntId, List<Token> tokens, int level, INode inode, INode iParent) {
+        final boolean topicConsumed = level >= tokens.size();
+        final INode nextInode = topicConsumed ? null : inode.mainNode().childOf(tokens.get(level));
+        if (nextInode != null) {
+            return remove(clientIntId, tokens, level + 1, nextInode, inode);
         } else {
             final CNode cnode = inode.mainNode();
             if (cnode instanceof TNode) {
@@ -171,17 +283,30 @@ public class CTrie {
                 // Consider calling cleanTomb here too
                 return Action.OK;
             }
-            if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
+            if (cnode.containsOnly(clientIntId) && topicConsumed && !cnode.hasChildren()) {
                 // last client to leave this node, AND there are no downstream children, remove via TNode tomb
                 if (inode == this.root) {
                     return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
                 }
-                TNode tnode = new TNode();
-                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
-            } else if (cnode.contains(clientId) && topic.isEmpty()) {
+                TNode tnode = new TNode(cnode.token);
+                if (!inode.compareAndSet(cnode, tnode)) {
+                    return Action.REPEAT;
+                }
+                counters.subscriptionRemoved(hasWildcards(tokens));
+                counters.nodes.decrement();
+                counters.tombstones.increment();
+                while (cleanTomb(inode, iParent) == Action.REPEAT) {
+                    // the parent changed concurrently, retry to unlink the tomb from the new version
+                }
+                return Action.CHANGED;
+            } else if (cnode.contains(clientIntId) && topicConsumed) {
                 CNode updatedCnode = cnode.copy();
-                updatedCnode.removeSubscriptionsFor(clientId);
-                return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+                updatedCnode.removeSubscriptionsFor(clientIntId);
+                if (!inode.compareAndSet(cnode, updatedCnode)) {
+                    return Action.REPEAT;
+                }
+                counters.subscriptionRemoved(hasWildcards(tokens));
+                return Action.CHANGED;
             } else {
                 //someone else already removed
                 return Action.OK;
@@ -202,15 +327,246 @@ public class CTrie {
      * @return REPEAT if the this methods wasn't successful or OK.
      */
     private Action cleanTomb(INode inode, INode iParent) {
-        CNode updatedCnode = iParent.mainNode().copy();
+        final CNode parent = iParent.mainNode();
+        if (parent instanceof TNode || !parent.hasChild(inode)) {
+            // already replaced or cleaned by someone else
+            return Action.OK;
+        }
+        return unlinkTomb(inode, iParent, parent) ? Action.OK : Action.REPEAT;
+    }
+
+    /**
+     * @return true iff the tomb has been removed from the parent version with a successful CAS.
+     */
+    private boolean unlinkTomb(INode inode, INode iParent, CNode parent) {
+        CNode updatedCnode = parent.copy();
         updatedCnode.remove(inode);
-        return iParent.compareAndSet(iParent.mainNode(), updatedCnode) ? Action.OK : Action.REPEAT;
+        if (!iParent.compareAndSet(parent, updatedCnode)) {
+            return false;
+        }
+        counters.tombstones.decrement();
+        return true;
+    }
+
+    /**
+     * Prune the branches left without subscriptions, that the removals let linger, and the tombs that weren't
+     * unlinked from their parent. The tree is visited bottom up, so that a branch becoming empty is pruned in
+     * the same pass. Every node is removed as on unsubscribe: replaced by a tomb with a CAS and then unlinked
+     * from the parent with another CAS. If a CAS fails, because of a concurrent change, the node is skipped
+     * and left to the next compaction.
+     *
+     * @param maxReclaimed the max number of nodes to remove, to bound the duration of a single run.
+     * @return the number of nodes removed from the tree.
+     */
+    int compact(int maxReclaimed) {
+        final int[] reclaimed = new int[1];
+        compact(this.root, NO_PARENT, maxReclaimed, reclaimed);
+        return reclaimed[0];
+    }
+
+    private void compact(INode inode, INode iParent, int maxReclaimed, int[] reclaimed) {
+        for (INode child : inode.mainNode().allChildren()) {
+            if (reclaimed[0] >= maxReclaimed) {
+                return;
+            }
+            if (child.isTombed()) {
+                unlinkCompacted(child, inode, reclaimed);
+            } else {
+                compact(child, inode, maxReclaimed, reclaimed);
+            }
+        }
+        if (inode == this.root || reclaimed[0] >= maxReclaimed) {
+            return;
+        }
+        // read again, children could have been unlinked
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode || cnode.hasChildren() || !cnode.subscriptions.isEmpty()) {
+            return;
+        }
+        if (!inode.compareAndSet(cnode, new TNode(cnode.token))) {
+            return;
+        }
+        counters.nodes.decrement();
+        counters.tombstones.increment();
+        unlinkCompacted(inode, iParent, reclaimed);
+    }
+
+    private void unlinkCompacted(INode tombed, INode iParent, int[] reclaimed) {
+        final CNode parent = iParent.mainNode();
+        if (!(parent instanceof TNode) && parent.hasChild(tombed) && unlinkTomb(tombed, iParent, parent)) {
+            reclaimed[0]++;
+        }
+    }
+
+    /**
+     * Load many subscriptions in one pass, instead of inserting them one by one, each copying the nodes along
+     * its path. The subscriptions are grouped by topic filter in a mutable tree that is then converted bottom
+     * up in CNodes, optionally building the subtree of every top level token in parallel. The complete tree is
+     * published with a single CAS on the root, so readers see the trie either empty or fully loaded.
+     *
+     * If the trie isn't empty or is changed while building, the subscriptions are inserted one by one.
+     *
+     * @param subscriptions the subscriptions to load.
+     * @param parallel true to build the subtrees of the top level tokens with fork/join.
+     */
+    void bulkLoad(Collection<Subscription> subscriptions, boolean parallel) {
+        final CNode emptyRoot = this.root.mainNode();
+        if (emptyRoot.hasChildren() || !emptyRoot.subscriptions.isEmpty()) {
+            subscriptions.forEach(this::addToTree);
+            return;
+        }
+
+        final NodeBuilder rootBuilder = new NodeBuilder(ROOT);
+        final Map<Token, List<Subscription>> byTopLevelToken = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            final List<Token> tokens = tokensOf(subscription.topicFilter);
+            if (tokens.isEmpty()) {
+                rootBuilder.add(tokens, 0, subscription);
+            } else {
+                byTopLevelToken.computeIfAbsent(tokens.get(0), k -> new ArrayList<>()).add(subscription);
+            }
+        }
+        final Counters loaded = new Counters();
+        final List<BuildSubtree> subtrees = new ArrayList<>(byTopLevelToken.size());
+        for (Map.Entry<Token, List<Subscription>> group : byTopLevelToken.entrySet()) {
+            subtrees.add(new BuildSubtree(group.getKey(), group.getValue(), loaded, clientIds));
+        }
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new BuildSubtrees(subtrees));
+        } else {
+            subtrees.forEach(BuildSubtree::invoke);
+        }
+
+        final CNode loadedRoot = rootBuilder.buildCNode(loaded, false, clientIds);
+        for (BuildSubtree subtree : subtrees) {
+            loadedRoot.add(subtree.getRawResult());
+        }
+        if (!this.root.compareAndSet(emptyRoot, loadedRoot)) {
+            releaseClientIds(loadedRoot);
+            subscriptions.forEach(this::addToTree);
+            return;
+        }
+        // the root was already counted
+        loaded.nodes.decrement();
+        counters.addAll(loaded);
+    }
+
+    /**
+     * Release the ids held by the subscriptions of a tree never published.
+     */
+    private void releaseClientIds(CNode cnode) {
+        cnode.subscriptions.forEach(subscription -> clientIds.release(subscription.clientId));
+        for (INode child : cnode.allChildren()) {
+            releaseClientIds(child.mainNode());
+        }
+    }
+
+    /**
+     * Mutable node used to group the subscriptions by topic filter, before creating the CNodes.
+     */
+    private static final class NodeBuilder {
+
+        private final Token token;
+        private final Map<Token, NodeBuilder> children = new HashMap<>();
+        // by client id, a client subscribed more than once to the filter keeps a single subscription
+        private final Map<String, Subscription> subscriptions = new HashMap<>();
+
+        NodeBuilder(Token token) {
+            this.token = token;
+        }
+
+        void add(List<Token> tokens, int level, Subscription subscription) {
+            if (level >= tokens.size()) {
+                subscriptions.merge(subscription.clientId, subscription,
+                    (existing, added) -> existing.qosLessThan(added) ? added : existing);
+                return;
+            }
+            final Token childToken = tokens.get(level);
+            children.computeIfAbsent(childToken, NodeBuilder::new).add(tokens, level + 1, subscription);
+        }
+
+        INode build(Counters counters, boolean wildcardPath, ClientIds clientIds) {
+            return new INode(buildCNode(counters, wildcardPath, clientIds));
+        }
+
+        /**
+         * @param counters where to count the nodes and subscriptions created.
+         * @param wildcardPath true if the path from the root to this node contains wildcards.
+         * @param clientIds the dictionary assigning the ids to the subscriptions.
+         */
+        CNode buildCNode(Counters counters, boolean wildcardPath, ClientIds clientIds) {
+            final boolean wildcard = wildcardPath || Token.SINGLE.equals(token) || Token.MULTI.equals(token);
+            final CNode cnode = new CNode();
+            cnode.token = token;
+            for (NodeBuilder child : children.values()) {
+                cnode.add(child.build(counters, wildcard, clientIds));
+            }
+            for (Subscription subscription : subscriptions.values()) {
+                cnode.addSubscription(new Subscription(subscription, clientIds.acquire(subscription.clientId)));
+            }
+            counters.nodes.increment();
+            counters.subscriptions.add(cnode.subscriptions.size());
+            if (wildcard) {
+                counters.wildcardSubscriptions.add(cnode.subscriptions.size());
+            }
+            return cnode;
+        }
+    }
+
+    /**
+     * Builds in parallel the subtrees of the top level tokens.
+     */
+    private static final class BuildSubtrees extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<BuildSubtree> subtrees;
+
+        BuildSubtrees(List<BuildSubtree> subtrees) {
+            this.subtrees = subtrees;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(subtrees);
+        }
+    }
+
+    /**
+     * Builds the subtree of a top level token.
+     */
+    private static final class BuildSubtree extends RecursiveTask<INode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Token token;
+        private final transient List<Subscription> subscriptions;
+        private final transient Counters counters;
+        private final transient ClientIds clientIds;
+
+        BuildSubtree(Token token, List<Subscription> subscriptions, Counters counters, ClientIds clientIds) {
+            this.token = token;
+            this.subscriptions = subscriptions;
+            this.counters = counters;
+            this.clientIds = clientIds;
+        }
+
+        @Override
+        protected INode compute() {
+            final NodeBuilder builder = new NodeBuilder(token);
+            for (Subscription subscription : subscriptions) {
+                builder.add(subscription.topicFilter.getTokens(), 1, subscription);
+            }
+            return builder.build(counters, false, clientIds);
+        }
     }
 
     public int size() {
-        SubscriptionCounterVisitor visitor = new SubscriptionCounterVisitor();
-        dfsVisit(this.root, visitor, 0);
-        return visitor.getResult();
+        return counters.subscriptions.intValue();
+    }
+
+    SubscriptionsMetrics computeMetrics() {
+        return counters.snapshot();
     }
 
     public String dumpTree() {
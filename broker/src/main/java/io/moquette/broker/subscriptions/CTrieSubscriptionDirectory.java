@@ -19,19 +19,44 @@ import io.moquette.broker.ISubscriptionsRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
 
-    private CTrie ctrie;
+    // below this number of stored subscriptions forking the trie load is not worth
+    private static final int PARALLEL_LOAD_THRESHOLD = 50_000;
+
+    private ShardedCTrie ctrie;
+    private LiteralFiltersIndex literalFilters;
     private volatile ISubscriptionsRepository subscriptionsRepository;
+    private final MatchCache matchCache;
+    private final ClientIds clientIds = new ClientIds();
+
+    public CTrieSubscriptionDirectory() {
+        this(0);
+    }
+
+    /**
+     * @param matchCacheSize max number of topics whose matching subscriptions are cached, 0 to disable the
+     *                       cache.
+     */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this.matchCache = matchCacheSize > 0 ? new MatchCache(matchCacheSize) : null;
+    }
 
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
-        LOG.info("Initializing CTrie");
-        ctrie = new CTrie();
+        ctrie = new ShardedCTrie(ShardedCTrie.defaultShardsCount(), clientIds);
+        LOG.info("Initializing CTrie with {} shards", ctrie.shardsCount());
+        literalFilters = new LiteralFiltersIndex(clientIds);
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -40,19 +65,22 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
         }
 
+        final List<Subscription> wildcardSubscriptions = new ArrayList<>();
         for (Subscription subscription : this.subscriptionsRepository.listAllSubscriptions()) {
             LOG.debug("Re-subscribing {}", subscription);
-            ctrie.addToTree(subscription);
+            if (LiteralFiltersIndex.isLiteral(subscription.topicFilter.getTokens())) {
+                literalFilters.add(subscription);
+            } else {
+                wildcardSubscriptions.add(subscription);
+            }
         }
+        ctrie.bulkLoad(wildcardSubscriptions, wildcardSubscriptions.size() >= PARALLEL_LOAD_THRESHOLD);
+        invalidateMatchCache();
         if (LOG.isTraceEnabled()) {
             LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
         }
     }
 
-    Optional<CNode> lookup(Topic topic) {
-        return ctrie.lookup(topic);
-    }
-
     /**
      * Given a topic string return the clients subscriptions that matches it. Topic string can't
      * contain character # and + because they are reserved to listeners subscriptions, and not topic
@@ -64,50 +92,147 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public Set<Subscription> matchWithoutQosSharpening(Topic topic) {
-        return ctrie.recursiveMatch(topic);
+        final Set<Subscription> subscriptions = ctrie.recursiveMatch(topic);
+        final List<Token> tokens = topic.getTokens();
+        if (tokens != null) {
+            literalFilters.match(tokens, subscriptions::add);
+        }
+        return subscriptions;
     }
 
     @Override
     public Set<Subscription> matchQosSharpening(Topic topic) {
-        final Set<Subscription> subscriptions = matchWithoutQosSharpening(topic);
-
-        Map<String, Subscription> subsGroupedByClient = new HashMap<>();
-        for (Subscription sub : subscriptions) {
-            Subscription existingSub = subsGroupedByClient.get(sub.clientId);
-            // update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.qosLessThan(sub)) {
-                subsGroupedByClient.put(sub.clientId, sub);
+        final Set<Subscription> subscriptions = new HashSet<>();
+        matchQosSharpening(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    @Override
+    public void matchQosSharpening(Topic topic, Consumer<Subscription> consumer) {
+        if (matchCache == null) {
+            matchAndSharpen(topic, consumer);
+            return;
+        }
+        final String topicName = topic.toString();
+        Subscription[] matched = matchCache.get(topicName);
+        if (matched == null) {
+            final long generation = matchCache.currentGeneration();
+            matched = matchAndSharpen(topic, null);
+            matchCache.put(topicName, generation, matched);
+        }
+        for (Subscription sub : matched) {
+            consumer.accept(sub);
+        }
+    }
+
+    /**
+     * @param consumer receives the matches, if null the matches are returned in an array.
+     */
+    private Subscription[] matchAndSharpen(Topic topic, Consumer<Subscription> consumer) {
+        final MatchScratch scratch = MatchScratch.acquire();
+        try {
+            ctrie.recursiveMatch(topic, scratch);
+            final List<Token> tokens = topic.getTokens();
+            if (tokens != null) {
+                literalFilters.match(tokens, scratch);
+            }
+            final Collection<Subscription> selected = scratch.selected();
+            if (consumer == null) {
+                return selected.toArray(new Subscription[selected.size()]);
             }
+            selected.forEach(consumer);
+            return null;
+        } finally {
+            scratch.release();
+        }
+    }
+
+    private void invalidateMatchCache() {
+        if (matchCache != null) {
+            matchCache.invalidate();
         }
-        return new HashSet<>(subsGroupedByClient.values());
+    }
+
+    /**
+     * @return the counters of the publish match cache, empty if the cache is disabled.
+     */
+    public Optional<MatchCacheMetrics> matchCacheMetrics() {
+        return matchCache == null ? Optional.empty() : Optional.of(matchCache.computeMetrics());
+    }
+
+    /**
+     * Prune the nodes of the CTrie left empty by the removed subscriptions, the literal filters index drops
+     * its entries on removal and needs no compaction.
+     *
+     * @param maxReclaimed the max number of nodes to remove in this run.
+     * @return the number of nodes removed.
+     */
+    @Override
+    public int compact(int maxReclaimed) {
+        return ctrie.compact(maxReclaimed);
+    }
+
+    @Override
+    public ClientIds clientIds() {
+        return clientIds;
     }
 
     @Override
     public void add(Subscription newSubscription) {
-        ctrie.addToTree(newSubscription);
+        addToIndexes(newSubscription);
+        invalidateMatchCache();
         subscriptionsRepository.addNewSubscription(newSubscription);
     }
 
+    /**
+     * Filters without wildcards go in the literal filters index, all the others in the CTrie.
+     */
+    private void addToIndexes(Subscription newSubscription) {
+        if (LiteralFiltersIndex.isLiteral(newSubscription.topicFilter.getTokens())) {
+            literalFilters.add(newSubscription);
+        } else {
+            ctrie.addToTree(newSubscription);
+        }
+    }
+
     /**
      * Removes subscription from CTrie, adds TNode when the last client unsubscribes, then calls for cleanTomb in a
-     * separate atomic CAS operation.
+     * separate atomic CAS operation. Literal filters are instead removed from their index.
      *
      * @param topic the subscription's topic to remove.
      * @param clientID the Id of client owning the subscription.
      */
     @Override
     public void removeSubscription(Topic topic, String clientID) {
-        ctrie.removeFromTree(topic, clientID);
+        final List<Token> tokens = topic.getTokens();
+        if (LiteralFiltersIndex.isLiteral(tokens)) {
+            literalFilters.remove(tokens, clientID);
+        } else {
+            ctrie.removeFromTree(topic, clientID);
+        }
+        invalidateMatchCache();
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
     @Override
     public int size() {
-        return ctrie.size();
+        return ctrie.size() + literalFilters.size();
+    }
+
+    /**
+     * The literal filters are counted as nodes, one per filter.
+     */
+    @Override
+    public SubscriptionsMetrics metrics() {
+        final SubscriptionsMetrics trieMetrics = ctrie.computeMetrics();
+        return new SubscriptionsMetrics(trieMetrics.subscriptions() + literalFilters.size(),
+                                        trieMetrics.wildcardSubscriptions(),
+                                        trieMetrics.nodes() + literalFilters.filters(),
+                                        trieMetrics.tombstones());
     }
 
     @Override
     public String dumpTree() {
-        return ctrie.dumpTree();
+        return ctrie.dumpTree() + literalFilters.dump();
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dictionary of the client ids of a subscriptions directory, every client id is assigned a dense int, so that the
+ * subscriptions can be compared, stored and deduplicated by int instead of by String.
+ *
+ * The ids are reference counted: every subscription stored in the directory, and every session resolved through
+ * the ids, holds a reference. When the last one is released the id is freed and later assigned to another client,
+ * the oldest freed first, so the dictionary is bounded by the number of clients with subscriptions or sessions,
+ * not by the number of client ids ever seen. A subscription matched just before its removal can still carry a
+ * freed id, so who resolves a client through its id has to check the client id too.
+ */
+public final class ClientIds {
+
+    public static final int UNKNOWN = -1;
+
+    private static final class Entry {
+
+        final int id;
+        int references = 1;
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> ids = new ConcurrentHashMap<>();
+    private final Queue<Integer> freed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Take a reference to the id of the client, assigning one if the client has none.
+     *
+     * @return the id of the client, stable until the reference is released.
+     */
+    public int acquire(String clientId) {
+        return ids.compute(clientId, (k, entry) -> {
+            if (entry == null) {
+                return new Entry(newId());
+            }
+            entry.references++;
+            return entry;
+        }).id;
+    }
+
+    private int newId() {
+        final Integer reused = freed.poll();
+        return reused != null ? reused : nextId.getAndIncrement();
+    }
+
+    /**
+     * Release a reference taken with {@link #acquire(String)}, freeing the id with the last one.
+     */
+    public void release(String clientId) {
+        ids.computeIfPresent(clientId, (k, entry) -> {
+            if (--entry.references > 0) {
+                return entry;
+            }
+            freed.add(entry.id);
+            return null;
+        });
+    }
+
+    /**
+     * @return the id of the client, or {@link #UNKNOWN} if it has none, without assigning it.
+     */
+    public int idOf(String clientId) {
+        final Entry entry = ids.get(clientId);
+        return entry == null ? UNKNOWN : entry.id;
+    }
+
+    /**
+     * @return the number of clients with an id assigned.
+     */
+    int size() {
+        return ids.size();
+    }
+}
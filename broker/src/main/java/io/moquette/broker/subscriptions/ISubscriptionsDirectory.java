@@ -17,8 +17,8 @@ package io.moquette.broker.subscriptions;
 
 import io.moquette.broker.ISubscriptionsRepository;
 
-import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface ISubscriptionsDirectory {
 
@@ -28,11 +28,38 @@ public interface ISubscriptionsDirectory {
 
     Set<Subscription> matchQosSharpening(Topic topic);
 
+    /**
+     * Like {@link #matchQosSharpening(Topic)} but streams the matches, without creating any collection.
+     * Every matching client is visited exactly once, with its subscription of higher QoS.
+     *
+     * @param topic the topic published.
+     * @param consumer invoked for each matching subscription, after the matching completed.
+     */
+    void matchQosSharpening(Topic topic, Consumer<Subscription> consumer);
+
+    /**
+     * @return the dictionary assigning the int ids carried by the subscriptions stored.
+     */
+    ClientIds clientIds();
+
     void add(Subscription newSubscription);
 
     void removeSubscription(Topic topic, String clientID);
 
+    /**
+     * Prune the nodes left empty by the removed subscriptions.
+     *
+     * @param maxReclaimed the max number of nodes to remove in this run.
+     * @return the number of nodes removed.
+     */
+    int compact(int maxReclaimed);
+
     int size();
 
+    /**
+     * @return the statistics of the subscriptions, cheap enough to be polled.
+     */
+    SubscriptionsMetrics metrics();
+
     String dumpTree();
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hash index of the subscriptions with a topic filter without wildcards, a publish matches them only if its
+ * topic has exactly the same tokens, so there is no need to walk a tree.
+ *
+ * Keyed by the parsed tokens and not by the topic string, because different strings can parse to the same
+ * tokens (e.g. "a/" and "a//"), exactly as the CTrie does.
+ */
+class LiteralFiltersIndex {
+
+    private final ConcurrentMap<List<Token>, CNode.SubscriptionSet> subscriptions = new ConcurrentHashMap<>();
+    private final LongAdder count = new LongAdder();
+    private final ClientIds clientIds;
+
+    LiteralFiltersIndex() {
+        this(new ClientIds());
+    }
+
+    /**
+     * @param clientIds the dictionary of the client ids, every subscription stored holds a reference to the id of
+     *                  its client.
+     */
+    LiteralFiltersIndex(ClientIds clientIds) {
+        this.clientIds = clientIds;
+    }
+
+    /**
+     * @return true iff the filter tokens can be stored in this index, a valid filter without wildcards.
+     */
+    static boolean isLiteral(List<Token> filterTokens) {
+        if (filterTokens == null || filterTokens.isEmpty()) {
+            return false;
+        }
+        for (Token token : filterTokens) {
+            if (Token.SINGLE.equals(token) || Token.MULTI.equals(token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void add(Subscription newSubscription) {
+        final Subscription subscription =
+            new Subscription(newSubscription, clientIds.acquire(newSubscription.clientId));
+        final boolean[] added = new boolean[1];
+        subscriptions.compute(subscription.topicFilter.getTokens(), (tokens, subs) -> {
+            final CNode.SubscriptionSet current = subs == null ? CNode.SubscriptionSet.EMPTY : subs;
+            final CNode.SubscriptionSet updated = current.with(subscription);
+            added[0] = updated.size() > current.size();
+            count.add(updated.size() - current.size());
+            return updated;
+        });
+        if (!added[0]) {
+            // the client was already subscribed, its subscription already holds the id
+            clientIds.release(subscription.clientId);
+        }
+    }
+
+    void remove(List<Token> filterTokens, String clientId) {
+        // pinned while removing, so that it can't be freed and reused by another client
+        final int clientIntId = clientIds.acquire(clientId);
+        final boolean[] removed = new boolean[1];
+        subscriptions.computeIfPresent(filterTokens, (tokens, subs) -> {
+            final CNode.SubscriptionSet updated = subs.without(clientIntId);
+            removed[0] = updated.size() < subs.size();
+            count.add(updated.size() - subs.size());
+            return updated.isEmpty() ? null : updated;
+        });
+        if (removed[0]) {
+            clientIds.release(clientId);
+        }
+        clientIds.release(clientId);
+    }
+
+    void match(List<Token> topicTokens, Consumer<Subscription> visitor) {
+        final CNode.SubscriptionSet matching = subscriptions.get(topicTokens);
+        if (matching != null) {
+            matching.forEach(visitor);
+        }
+    }
+
+    int size() {
+        return count.intValue();
+    }
+
+    /**
+     * @return the number of distinct filters indexed.
+     */
+    int filters() {
+        return subscriptions.size();
+    }
+
+    String dump() {
+        final StringBuilder dump = new StringBuilder();
+        subscriptions.forEach((tokens, subs) ->
+            dump.append(new Topic(tokens)).append(" ~~").append(subs).append("\n"));
+        return dump.toString();
+    }
+}
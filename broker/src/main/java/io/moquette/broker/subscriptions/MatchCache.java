@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the QoS sharpened subscriptions matching a topic name.
+ *
+ * Entries are invalidated in bulk by a generation counter: every change to the subscriptions increments it and
+ * an entry filled in a previous generation is considered missing. The LRU is split in segments, each one
+ * guarded by its own lock, to limit the contention of the publishing threads.
+ */
+final class MatchCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final class Entry {
+
+        final long generation;
+        final Subscription[] subscriptions;
+
+        Entry(long generation, Subscription[] subscriptions) {
+            this.generation = generation;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, Entry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize max number of topics cached, split evenly between the segments.
+     */
+    MatchCache(int maxSize) {
+        final int segmentCapacity = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity, evictions);
+        }
+    }
+
+    private Segment segmentFor(String topic) {
+        final int h = topic.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * To be read before computing the matches to cache, and passed back to {@link #put}.
+     */
+    long currentGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Invalidate all the entries, to be invoked after the subscriptions are changed.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return the cached subscriptions or null if not cached or stale.
+     */
+    Subscription[] get(String topic) {
+        final Segment segment = segmentFor(topic);
+        final Entry entry;
+        synchronized (segment) {
+            entry = segment.get(topic);
+        }
+        if (entry == null || entry.generation != generation.get()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.subscriptions;
+    }
+
+    void put(String topic, long generation, Subscription[] subscriptions) {
+        if (generation != this.generation.get()) {
+            // subscriptions changed while matching, the result could already be stale
+            return;
+        }
+        final Segment segment = segmentFor(topic);
+        synchronized (segment) {
+            segment.put(topic, new Entry(generation, subscriptions));
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    MatchCacheMetrics computeMetrics() {
+        return new MatchCacheMetrics(hits.sum(), misses.sum(), evictions.sum(), size());
+    }
+}
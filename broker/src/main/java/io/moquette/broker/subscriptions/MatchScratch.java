@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Per thread scratch used to select the subscription of higher QoS for every client, reused across the
+ * matches to avoid creating a map for each publish. The clients already selected are marked in a bitset by int
+ * id, so that the common case, a client matched once, costs a bit test and no hashing.
+ */
+final class MatchScratch implements Consumer<Subscription> {
+
+    // beyond this size the array isn't reused, to not keep big arrays referenced after a match on many clients
+    private static final int MAX_RETAINED_CLIENTS = 1024;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final ThreadLocal<MatchScratch> PER_THREAD = ThreadLocal.withInitial(MatchScratch::new);
+
+    private final BitSet selectedClients = new BitSet();
+    private Subscription[] selected = new Subscription[INITIAL_CAPACITY];
+    private int count;
+    // position in selected by client id, built only when a client is matched more than once
+    private IntObjectHashMap<Integer> positions;
+    private boolean inUse;
+
+    /**
+     * @return the scratch of the current thread, to be released when the match is done.
+     */
+    static MatchScratch acquire() {
+        MatchScratch scratch = PER_THREAD.get();
+        if (scratch.inUse) {
+            // match invoked again from the consumer of a match on the same thread
+            scratch = new MatchScratch();
+        }
+        scratch.inUse = true;
+        return scratch;
+    }
+
+    @Override
+    public void accept(Subscription sub) {
+        final int clientIntId = sub.clientIntId;
+        if (!selectedClients.get(clientIntId)) {
+            selectedClients.set(clientIntId);
+            append(sub);
+            return;
+        }
+        // the client matched through another filter, keep the subscription with greater qos
+        final int position = positionOf(clientIntId);
+        if (selected[position].qosLessThan(sub)) {
+            selected[position] = sub;
+        }
+    }
+
+    private void append(Subscription sub) {
+        if (count == selected.length) {
+            selected = Arrays.copyOf(selected, count * 2);
+        }
+        if (positions != null) {
+            positions.put(sub.clientIntId, Integer.valueOf(count));
+        }
+        selected[count++] = sub;
+    }
+
+    private int positionOf(int clientIntId) {
+        if (positions == null) {
+            positions = new IntObjectHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                positions.put(selected[i].clientIntId, Integer.valueOf(i));
+            }
+        }
+        return positions.get(clientIntId);
+    }
+
+    /**
+     * @return the subscription of higher QoS of every client visited.
+     */
+    List<Subscription> selected() {
+        return Arrays.asList(selected).subList(0, count);
+    }
+
+    void release() {
+        for (int i = 0; i < count; i++) {
+            selectedClients.clear(selected[i].clientIntId);
+        }
+        if (selected.length > MAX_RETAINED_CLIENTS) {
+            selected = new Subscription[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(selected, 0, count, null);
+        }
+        count = 0;
+        positions = null;
+        inUse = false;
+    }
+}
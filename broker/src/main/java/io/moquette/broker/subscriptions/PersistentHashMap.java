@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Immutable hash array mapped trie (HAMT). Every update returns a new map that shares all the untouched
+ * branches with the original one, so an update costs O(log32 n) instead of the O(n) copy of a plain map.
+ * Used by the CNodes to keep copy-on-write cheap on nodes with many children or subscriptions.
+ */
+final class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // a 32 bit hash is consumed 5 bits at a time, so at most 7 levels of bitmap nodes
+    private static final int MAX_DEPTH = 8;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        return (V) root.find(0, hash(key), key);
+    }
+
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key the key, not null.
+     * @param value the value, not null.
+     * @return a map with the mapping added or replaced, or this if the same value is already mapped.
+     */
+    PersistentHashMap<K, V> put(K key, V value) {
+        final int hash = hash(key);
+        final boolean present = root.find(0, hash, key) != null;
+        final Node newRoot = root.put(0, hash, key, value);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot, present ? size : size + 1);
+    }
+
+    /**
+     * @param key the key to remove.
+     * @return a map without the mapping, or this if the key was not present.
+     */
+    PersistentHashMap<K, V> remove(K key) {
+        final Node newRoot = root.remove(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return empty();
+        }
+        return new PersistentHashMap<>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<? super V> action) {
+        root.forEachValue((Consumer<Object>) action);
+    }
+
+    /**
+     * @return a read only view on the values of this map.
+     */
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValuesIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitFor(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private abstract static class Node {
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node put(int shift, int hash, Object key, Object value);
+
+        /**
+         * @return the updated node, this if nothing changed, or null if the node became empty.
+         */
+        abstract Node remove(int shift, int hash, Object key);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+
+        abstract void forEachValue(Consumer<Object> action);
+
+        /**
+         * Entries stored as key, value couples, a null key marks a sub node in the value position.
+         */
+        abstract Object[] entries();
+    }
+
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            final int bit = bitFor(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final int idx = index(bit);
+            final Object keyOrNull = array[2 * idx];
+            final Object valueOrNode = array[2 * idx + 1];
+            if (keyOrNull == null) {
+                return ((Node) valueOrNode).find(shift + BITS, hash, key);
+            }
+            return key.equals(keyOrNull) ? valueOrNode : null;
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value) {
+            final int bit = bitFor(hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                final int count = Integer.bitCount(bitmap);
+                final Object[] newArray = new Object[2 * (count + 1)];
+                System.arraycopy(array, 0, newArray, 0, 2 * idx);
+                newArray[2 * idx] = key;
+                newArray[2 * idx + 1] = value;
+                System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (count - idx));
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            final Object keyOrNull = array[2 * idx];
+            final Object valueOrNode = array[2 * idx + 1];
+            if (keyOrNull == null) {
+                final Node subNode = ((Node) valueOrNode).put(shift + BITS, hash, key, value);
+                if (subNode == valueOrNode) {
+                    return this;
+                }
+                return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, subNode));
+            }
+            if (key.equals(keyOrNull)) {
+                if (value == valueOrNode) {
+                    return this;
+                }
+                return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, value));
+            }
+            final Node subNode = createNode(shift + BITS, keyOrNull, valueOrNode, hash, key, value);
+            final Object[] newArray = cloneAndSet(array, 2 * idx, null);
+            newArray[2 * idx + 1] = subNode;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            final int bit = bitFor(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int idx = index(bit);
+            final Object keyOrNull = array[2 * idx];
+            final Object valueOrNode = array[2 * idx + 1];
+            if (keyOrNull == null) {
+                final Node subNode = ((Node) valueOrNode).remove(shift + BITS, hash, key);
+                if (subNode == valueOrNode) {
+                    return this;
+                }
+                if (subNode != null) {
+                    return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, subNode));
+                }
+                return removeEntry(bit, idx);
+            }
+            if (key.equals(keyOrNull)) {
+                return removeEntry(bit, idx);
+            }
+            return this;
+        }
+
+        private Node removeEntry(int bit, int idx) {
+            if (bitmap == bit) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            System.arraycopy(array, 2 * (idx + 1), newArray, 2 * idx, newArray.length - 2 * idx);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        @Override
+        void forEachValue(Consumer<Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEachValue(action);
+                } else {
+                    action.accept(array[i + 1]);
+                }
+            }
+        }
+
+        @Override
+        Object[] entries() {
+            return array;
+        }
+    }
+
+    /**
+     * Keys with the very same hash, that can't be spread further using the hash bits.
+     */
+    private static final class CollisionNode extends Node {
+
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            final int idx = indexOf(key);
+            return idx < 0 ? null : array[idx + 1];
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value) {
+            if (hash != this.hash) {
+                // nest this collision node in a bitmap node and let it spread the new key
+                final Object[] nested = new Object[] {null, this};
+                return new BitmapNode(bitFor(this.hash, shift), nested).put(shift, hash, key, value);
+            }
+            final int idx = indexOf(key);
+            if (idx >= 0) {
+                if (array[idx + 1] == value) {
+                    return this;
+                }
+                return new CollisionNode(hash, cloneAndSet(array, idx + 1, value));
+            }
+            final Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            final int idx = indexOf(key);
+            if (idx < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, newArray.length - idx);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        @Override
+        void forEachValue(Consumer<Object> action) {
+            for (int i = 1; i < array.length; i += 2) {
+                action.accept(array[i]);
+            }
+        }
+
+        @Override
+        Object[] entries() {
+            return array;
+        }
+    }
+
+    private static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        final int hash1 = hash(key1);
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+        }
+        return BitmapNode.EMPTY
+            .put(shift, hash1, key1, value1)
+            .put(shift, hash2, key2, value2);
+    }
+
+    private static Object[] cloneAndSet(Object[] array, int idx, Object value) {
+        final Object[] clone = array.clone();
+        clone[idx] = value;
+        return clone;
+    }
+
+    /**
+     * Depth first iteration over the nodes, keeping the path from the root in a fixed size stack.
+     */
+    private static final class ValuesIterator<V> implements Iterator<V> {
+
+        private final Object[][] stack = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private Object next;
+
+        ValuesIterator(Node root) {
+            stack[0] = root.entries();
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                final Object[] entries = stack[depth];
+                final int pos = positions[depth];
+                if (pos >= entries.length) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = pos + 2;
+                if (entries[pos] == null) {
+                    depth++;
+                    stack[depth] = ((Node) entries[pos + 1]).entries();
+                    positions[depth] = 0;
+                } else {
+                    next = entries[pos + 1];
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final V value = (V) next;
+            advance();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Path compressed variant of the {@link CTrie}: a chain of literal tokens with a single child each is
+ * collapsed in one node, labelled with the whole path, so deep and sparse hierarchies like
+ * org/site/building/floor/room/device/sensor take few nodes and few dereferences to match. A wildcard token is
+ * always a node on its own.
+ *
+ * Concurrency follows the CTrie: every node is a mutable reference to an immutable version, replaced with a
+ * CAS on every change, and a removed leaf is replaced by a tomb and then unlinked from its parent. A node is
+ * split, when a filter diverges in the middle of its path, replacing its version with the head of the path and
+ * moving the rest in a new child, so that only the node itself is changed. Removals don't merge the paths
+ * again, a path stays split until its branch is removed.
+ */
+class RadixCTrie {
+
+    private enum Action {
+        // CHANGED: done, a client subscription has been added or removed
+        OK, CHANGED, REPEAT
+    }
+
+    /**
+     * Mutable reference to the current version of a node.
+     */
+    static final class RNode {
+
+        private final AtomicReference<Branch> main;
+
+        RNode(Branch branch) {
+            this.main = new AtomicReference<>(branch);
+        }
+
+        Branch main() {
+            return main.get();
+        }
+
+        boolean compareAndSet(Branch expected, Branch updated) {
+            return main.compareAndSet(expected, updated);
+        }
+    }
+
+    /**
+     * Version of a node, copied before any change and never modified once published.
+     */
+    static final class Branch {
+
+        private static final Token[] NO_PATH = new Token[0];
+
+        final Token[] path;
+        final boolean tomb;
+        private PersistentHashMap<Token, RNode> children = PersistentHashMap.empty();
+        private RNode singleWildcardChild;
+        private RNode multiWildcardChild;
+        CNode.SubscriptionSet subscriptions = CNode.SubscriptionSet.EMPTY;
+
+        Branch(Token[] path) {
+            this(path, false);
+        }
+
+        private Branch(Token[] path, boolean tomb) {
+            this.path = path;
+            this.tomb = tomb;
+        }
+
+        Branch copy() {
+            return withPath(this.path);
+        }
+
+        /**
+         * @return a copy with the same children and subscriptions but a different path.
+         */
+        Branch withPath(Token[] newPath) {
+            final Branch copy = new Branch(newPath);
+            copy.children = this.children;
+            copy.singleWildcardChild = this.singleWildcardChild;
+            copy.multiWildcardChild = this.multiWildcardChild;
+            copy.subscriptions = this.subscriptions;
+            return copy;
+        }
+
+        Branch toTomb() {
+            return new Branch(this.path, true);
+        }
+
+        /**
+         * @return the live child whose path starts with the token, or null.
+         */
+        RNode childOf(Token token) {
+            final RNode child = slotOf(token);
+            if (child == null || child.main().tomb) {
+                return null;
+            }
+            return child;
+        }
+
+        private RNode slotOf(Token token) {
+            if (Token.SINGLE.equals(token)) {
+                return singleWildcardChild;
+            }
+            if (Token.MULTI.equals(token)) {
+                return multiWildcardChild;
+            }
+            return children.get(token);
+        }
+
+        boolean hasChild(RNode node) {
+            return slotOf(node.main().path[0]) == node;
+        }
+
+        boolean hasChildren() {
+            return !children.isEmpty() || singleWildcardChild != null || multiWildcardChild != null;
+        }
+
+        List<RNode> allChildren() {
+            final List<RNode> all = new ArrayList<>(children.size() + 2);
+            all.addAll(children.values());
+            if (singleWildcardChild != null) {
+                all.add(singleWildcardChild);
+            }
+            if (multiWildcardChild != null) {
+                all.add(multiWildcardChild);
+            }
+            return all;
+        }
+
+        /**
+         * @return the child replaced, a tomb or null.
+         */
+        RNode add(RNode child) {
+            final Token first = child.main().path[0];
+            final RNode replaced = slotOf(first);
+            if (Token.SINGLE.equals(first)) {
+                singleWildcardChild = child;
+            } else if (Token.MULTI.equals(first)) {
+                multiWildcardChild = child;
+            } else {
+                children = children.put(first, child);
+            }
+            return replaced;
+        }
+
+        void remove(RNode child) {
+            if (!hasChild(child)) {
+                return;
+            }
+            final Token first = child.main().path[0];
+            if (Token.SINGLE.equals(first)) {
+                singleWildcardChild = null;
+            } else if (Token.MULTI.equals(first)) {
+                multiWildcardChild = null;
+            } else {
+                children = children.remove(first);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(path) + (tomb ? " tomb" : " ~~" + subscriptions);
+        }
+    }
+
+    private final RNode root = new RNode(new Branch(Branch.NO_PATH));
+    private final CTrie.Counters counters = new CTrie.Counters();
+    private final ClientIds clientIds;
+
+    RadixCTrie() {
+        this(new ClientIds());
+    }
+
+    /**
+     * @param clientIds the dictionary of the client ids, every subscription stored holds a reference to the id of
+     *                  its client.
+     */
+    RadixCTrie(ClientIds clientIds) {
+        this.clientIds = clientIds;
+        counters.nodes.increment();
+    }
+
+    private static List<Token> tokensOf(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        return tokens == null ? Collections.emptyList() : tokens;
+    }
+
+    private static boolean isWildcard(Token token) {
+        return Token.SINGLE.equals(token) || Token.MULTI.equals(token);
+    }
+
+    /**
+     * @return the number of leading tokens of the path equal to the tokens from level onward.
+     */
+    private static int commonPrefix(Token[] path, List<Token> tokens, int level) {
+        int i = 0;
+        while (i < path.length && level + i < tokens.size() && path[i].equals(tokens.get(level + i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return true if the literal path, whose first token has already been found equal by the children lookup,
+     * matches the topic tokens from level.
+     */
+    private static boolean literalPathMatches(Token[] path, List<Token> tokens, int level) {
+        if (level + path.length > tokens.size()) {
+            return false;
+        }
+        for (int i = 1; i < path.length; i++) {
+            if (!path[i].equals(tokens.get(level + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Set<Subscription> recursiveMatch(Topic topic) {
+        final Set<Subscription> subscriptions = new HashSet<>();
+        recursiveMatch(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    void recursiveMatch(Topic topic, Consumer<Subscription> visitor) {
+        final List<Token> tokens = tokensOf(topic);
+        if (!tokens.isEmpty()) {
+            recursiveMatch(tokens, 0, root.main(), visitor);
+        }
+    }
+
+    /**
+     * Visit the subscriptions matching the tokens from level onward, on the version of a node whose path
+     * already matched the tokens before level. The version is passed along, and not read again from the
+     * node, because a concurrent split would change the length of its path.
+     */
+    private void recursiveMatch(List<Token> tokens, int level, Branch branch, Consumer<Subscription> visitor) {
+        if (branch.tomb) {
+            return;
+        }
+        // # matches the parent level and everything below it
+        final RNode multiWildcard = branch.multiWildcardChild;
+        if (multiWildcard != null) {
+            multiWildcard.main().subscriptions.forEach(visitor);
+        }
+        if (level >= tokens.size()) {
+            branch.subscriptions.forEach(visitor);
+            return;
+        }
+        final RNode singleWildcard = branch.singleWildcardChild;
+        if (singleWildcard != null) {
+            recursiveMatch(tokens, level + 1, singleWildcard.main(), visitor);
+        }
+        final RNode literal = branch.children.get(tokens.get(level));
+        if (literal != null) {
+            final Branch literalBranch = literal.main();
+            if (literalPathMatches(literalBranch.path, tokens, level)) {
+                recursiveMatch(tokens, level + literalBranch.path.length, literalBranch, visitor);
+            }
+        }
+    }
+
+    void addToTree(Subscription newSubscription) {
+        final List<Token> tokens = tokensOf(newSubscription.topicFilter);
+        final Subscription subscription =
+            new Subscription(newSubscription, clientIds.acquire(newSubscription.clientId));
+        Action res;
+        do {
+            res = insert(tokens, subscription);
+        } while (res == Action.REPEAT);
+        if (res != Action.CHANGED) {
+            // the client was already subscribed, its subscription already holds the id
+            clientIds.release(subscription.clientId);
+        }
+    }
+
+    /**
+     * Descend carrying the version of each node whose path has been matched, and not reading it again, so that a
+     * concurrent split, changing the length of the path, fails the final CAS instead of moving the subscription to
+     * a shorter filter.
+     */
+    private Action insert(List<Token> tokens, Subscription newSubscription) {
+        RNode node = root;
+        Branch branch = root.main();
+        int level = 0;
+        while (true) {
+            if (branch.tomb) {
+                // the node has been removed while descending, retry from the root, where the parent will replace it
+                return Action.REPEAT;
+            }
+            if (level >= tokens.size()) {
+                return insertSubscription(node, branch, tokens, newSubscription);
+            }
+            final RNode child = branch.childOf(tokens.get(level));
+            if (child == null) {
+                return createPathAndInsertSubscription(node, branch, tokens, level, newSubscription);
+            }
+            Branch childBranch = child.main();
+            if (childBranch.tomb) {
+                return Action.REPEAT;
+            }
+            final int common = commonPrefix(childBranch.path, tokens, level);
+            if (common < childBranch.path.length) {
+                childBranch = split(child, childBranch, common);
+                if (childBranch == null) {
+                    return Action.REPEAT;
+                }
+            }
+            node = child;
+            branch = childBranch;
+            level += common;
+        }
+    }
+
+    /**
+     * Replace the version of the node with one labelled by the first tokens of the path, and a single child
+     * with the rest of the path, children and subscriptions.
+     *
+     * @return the new version of the node, or null if the node changed concurrently.
+     */
+    private Branch split(RNode node, Branch branch, int headLength) {
+        final Branch tail = branch.withPath(Arrays.copyOfRange(branch.path, headLength, branch.path.length));
+        final Branch head = new Branch(Arrays.copyOf(branch.path, headLength));
+        head.add(new RNode(tail));
+        if (!node.compareAndSet(branch, head)) {
+            return null;
+        }
+        counters.nodes.increment();
+        return head;
+    }
+
+    private Action insertSubscription(RNode node, Branch branch, List<Token> tokens, Subscription newSubscription) {
+        final boolean newClient = !branch.subscriptions.containsClient(newSubscription.clientIntId);
+        final Branch updated = branch.copy();
+        updated.subscriptions = branch.subscriptions.with(newSubscription);
+        if (!node.compareAndSet(branch, updated)) {
+            return Action.REPEAT;
+        }
+        if (newClient) {
+            counters.subscriptionAdded(CTrie.hasWildcards(tokens));
+            return Action.CHANGED;
+        }
+        return Action.OK;
+    }
+
+    private Action createPathAndInsertSubscription(RNode node, Branch branch, List<Token> tokens, int level,
+                                                   Subscription newSubscription) {
+        final int[] created = new int[1];
+        final RNode path = createPath(tokens, level, newSubscription, created);
+        final Branch updated = branch.copy();
+        final RNode replaced = updated.add(path);
+        if (!node.compareAndSet(branch, updated)) {
+            return Action.REPEAT;
+        }
+        counters.nodes.add(created[0]);
+        counters.subscriptionAdded(CTrie.hasWildcards(tokens));
+        if (replaced != null) {
+            // only a tomb could have been replaced, because the child for the token was missing
+            counters.tombstones.decrement();
+        }
+        return Action.CHANGED;
+    }
+
+    /**
+     * Create the nodes for the tokens from level: one for each wildcard and one for each run of literals.
+     */
+    private static RNode createPath(List<Token> tokens, int level, Subscription newSubscription, int[] created) {
+        int end = level + 1;
+        if (!isWildcard(tokens.get(level))) {
+            while (end < tokens.size() && !isWildcard(tokens.get(end))) {
+                end++;
+            }
+        }
+        final Branch branch = new Branch(tokens.subList(level, end).toArray(new Token[end - level]));
+        if (end < tokens.size()) {
+            branch.add(createPath(tokens, end, newSubscription, created));
+        } else {
+            branch.subscriptions = branch.subscriptions.with(newSubscription);
+        }
+        created[0]++;
+        return new RNode(branch);
+    }
+
+    void removeFromTree(Topic topic, String clientID) {
+        final List<Token> tokens = tokensOf(topic);
+        // pinned while removing, so that it can't be freed and reused by another client
+        final int clientIntId = clientIds.acquire(clientID);
+        Action res;
+        do {
+            res = remove(tokens, clientIntId);
+        } while (res == Action.REPEAT);
+        if (res == Action.CHANGED) {
+            clientIds.release(clientID);
+        }
+        clientIds.release(clientID);
+    }
+
+    /**
+     * Descend carrying the versions of the nodes, as {@link #insert(List, Subscription)} does. A filter not found
+     * is trusted only if the version where it's missing is still the current one, else a concurrent split could
+     * have moved it.
+     */
+    private Action remove(List<Token> tokens, int clientIntId) {
+        RNode parent = null;
+        RNode node = root;
+        Branch branch = root.main();
+        int level = 0;
+        while (level < tokens.size()) {
+            if (branch.tomb) {
+                // nothing is left below a tomb
+                return Action.OK;
+            }
+            final RNode child = branch.childOf(tokens.get(level));
+            if (child == null) {
+                // the filter was never subscribed or someone else already removed it
+                return notFound(node, branch);
+            }
+            final Branch childBranch = child.main();
+            if (childBranch.tomb || commonPrefix(childBranch.path, tokens, level) != childBranch.path.length) {
+                return notFound(node, branch);
+            }
+            parent = node;
+            node = child;
+            branch = childBranch;
+            level += childBranch.path.length;
+        }
+        if (branch.tomb) {
+            return Action.OK;
+        }
+        if (!branch.subscriptions.containsClient(clientIntId)) {
+            return notFound(node, branch);
+        }
+        if (node != root && branch.subscriptions.size() == 1 && !branch.hasChildren()) {
+            // last client to leave this node, AND there are no downstream children, remove via tomb
+            if (!node.compareAndSet(branch, branch.toTomb())) {
+                return Action.REPEAT;
+            }
+            counters.subscriptionRemoved(CTrie.hasWildcards(tokens));
+            counters.nodes.decrement();
+            counters.tombstones.increment();
+            while (cleanTomb(node, parent) == Action.REPEAT) {
+                // the parent changed concurrently, retry to unlink the tomb from the new version
+            }
+            return Action.CHANGED;
+        }
+        final Branch updated = branch.copy();
+        updated.subscriptions = branch.subscriptions.without(clientIntId);
+        if (!node.compareAndSet(branch, updated)) {
+            return Action.REPEAT;
+        }
+        counters.subscriptionRemoved(CTrie.hasWildcards(tokens));
+        return Action.CHANGED;
+    }
+
+    private static Action notFound(RNode node, Branch branch) {
+        return node.main() == branch ? Action.OK : Action.REPEAT;
+    }
+
+    private Action cleanTomb(RNode node, RNode parent) {
+        final Branch parentBranch = parent.main();
+        if (parentBranch.tomb || !parentBranch.hasChild(node)) {
+            // already replaced or cleaned by someone else, or the parent has been split and the tomb is
+            // left to the compaction
+            return Action.OK;
+        }
+        return unlinkTomb(node, parent, parentBranch) ? Action.OK : Action.REPEAT;
+    }
+
+    private boolean unlinkTomb(RNode node, RNode parent, Branch parentBranch) {
+        final Branch updated = parentBranch.copy();
+        updated.remove(node);
+        if (!parent.compareAndSet(parentBranch, updated)) {
+            return false;
+        }
+        counters.tombstones.decrement();
+        return true;
+    }
+
+    /**
+     * Prune the branches left without subscriptions, as {@link CTrie#compact(int)} does.
+     *
+     * @param maxReclaimed the max number of nodes to remove.
+     * @return the number of nodes removed from the tree.
+     */
+    int compact(int maxReclaimed) {
+        final int[] reclaimed = new int[1];
+        compact(root, null, maxReclaimed, reclaimed);
+        return reclaimed[0];
+    }
+
+    private void compact(RNode node, RNode parent, int maxReclaimed, int[] reclaimed) {
+        for (RNode child : node.main().allChildren()) {
+            if (reclaimed[0] >= maxReclaimed) {
+                return;
+            }
+            if (child.main().tomb) {
+                unlinkCompacted(child, node, reclaimed);
+            } else {
+                compact(child, node, maxReclaimed, reclaimed);
+            }
+        }
+        if (node == root || reclaimed[0] >= maxReclaimed) {
+            return;
+        }
+        // read again, children could have been unlinked
+        final Branch branch = node.main();
+        if (branch.tomb || branch.hasChildren() || !branch.subscriptions.isEmpty()) {
+            return;
+        }
+        if (!node.compareAndSet(branch, branch.toTomb())) {
+            return;
+        }
+        counters.nodes.decrement();
+        counters.tombstones.increment();
+        unlinkCompacted(node, parent, reclaimed);
+    }
+
+    private void unlinkCompacted(RNode tombed, RNode parent, int[] reclaimed) {
+        final Branch parentBranch = parent.main();
+        if (!parentBranch.tomb && parentBranch.hasChild(tombed) && unlinkTomb(tombed, parent, parentBranch)) {
+            reclaimed[0]++;
+        }
+    }
+
+    int size() {
+        return counters.subscriptions.intValue();
+    }
+
+    SubscriptionsMetrics computeMetrics() {
+        return counters.snapshot();
+    }
+
+    String dumpTree() {
+        final StringBuilder dump = new StringBuilder();
+        dump(root, 0, dump);
+        return dump.toString();
+    }
+
+    private void dump(RNode node, int deep, StringBuilder dump) {
+        final Branch branch = node.main();
+        for (int i = 0; i < deep; i++) {
+            dump.append(' ');
+        }
+        dump.append(branch).append('\n');
+        for (RNode child : branch.allChildren()) {
+            dump(child, deep + 1, dump);
+        }
+    }
+}
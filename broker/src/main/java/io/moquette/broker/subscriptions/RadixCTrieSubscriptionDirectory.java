@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.broker.ISubscriptionsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Subscriptions directory storing all the topic filters, literal or not, in a single path compressed
+ * {@link RadixCTrie}. Fits deep topic hierarchies, where most of the levels have a single child, better than
+ * {@link CTrieSubscriptionDirectory}, which spends a node per level and keeps every literal filter as a separate
+ * key.
+ */
+public class RadixCTrieSubscriptionDirectory implements ISubscriptionsDirectory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RadixCTrieSubscriptionDirectory.class);
+
+    private RadixCTrie trie;
+    private final ClientIds clientIds = new ClientIds();
+    private volatile ISubscriptionsRepository subscriptionsRepository;
+
+    @Override
+    public void init(ISubscriptionsRepository subscriptionsRepository) {
+        LOG.info("Initializing radix CTrie");
+        trie = new RadixCTrie(clientIds);
+
+        LOG.info("Initializing subscriptions store...");
+        this.subscriptionsRepository = subscriptionsRepository;
+        // reload any subscriptions persisted
+        for (Subscription subscription : this.subscriptionsRepository.listAllSubscriptions()) {
+            LOG.debug("Re-subscribing {}", subscription);
+            trie.addToTree(subscription);
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
+        }
+    }
+
+    @Override
+    public Set<Subscription> matchWithoutQosSharpening(Topic topic) {
+        return trie.recursiveMatch(topic);
+    }
+
+    @Override
+    public Set<Subscription> matchQosSharpening(Topic topic) {
+        final Set<Subscription> subscriptions = new HashSet<>();
+        matchQosSharpening(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    @Override
+    public void matchQosSharpening(Topic topic, Consumer<Subscription> consumer) {
+        final MatchScratch scratch = MatchScratch.acquire();
+        try {
+            trie.recursiveMatch(topic, scratch);
+            scratch.selected().forEach(consumer);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    @Override
+    public ClientIds clientIds() {
+        return clientIds;
+    }
+
+    @Override
+    public void add(Subscription newSubscription) {
+        trie.addToTree(newSubscription);
+        subscriptionsRepository.addNewSubscription(newSubscription);
+    }
+
+    @Override
+    public void removeSubscription(Topic topic, String clientID) {
+        trie.removeFromTree(topic, clientID);
+        this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
+    }
+
+    @Override
+    public int compact(int maxReclaimed) {
+        return trie.compact(maxReclaimed);
+    }
+
+    @Override
+    public int size() {
+        return trie.size();
+    }
+
+    @Override
+    public SubscriptionsMetrics metrics() {
+        return trie.computeMetrics();
+    }
+
+    @Override
+    public String dumpTree() {
+        return trie.dumpTree();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Set of independent CTries, the filters are distributed by the hash of their first token, so that subscribes
+ * creating new top level tokens CAS different roots instead of all retrying on the same one. A topic can be
+ * matched only by the filters with its own first token, in a single shard, and by the filters starting with a
+ * wildcard, that are kept in a dedicated CTrie visited by every match.
+ */
+class ShardedCTrie {
+
+    private static final int TOP_LEVEL_WILDCARDS = -1;
+
+    private final CTrie[] shards;
+    private final CTrie topLevelWildcards;
+
+    ShardedCTrie(int shardsCount) {
+        this(shardsCount, new ClientIds());
+    }
+
+    /**
+     * @param shardsCount the number of shards for the filters starting with a literal token, rounded up to a
+     *                    power of two.
+     * @param clientIds the dictionary of the client ids, shared by all the shards.
+     */
+    ShardedCTrie(int shardsCount, ClientIds clientIds) {
+        if (shardsCount < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive, was " + shardsCount);
+        }
+        final int size = shardsCount == 1 ? 1 : Integer.highestOneBit(shardsCount - 1) << 1;
+        this.shards = new CTrie[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = new CTrie(clientIds);
+        }
+        this.topLevelWildcards = new CTrie(clientIds);
+    }
+
+    /**
+     * @return a number of shards that makes unlikely the collision of concurrent subscribes on all the cores.
+     */
+    static int defaultShardsCount() {
+        return Runtime.getRuntime().availableProcessors() * 4;
+    }
+
+    int shardsCount() {
+        return shards.length;
+    }
+
+    private CTrie shardFor(List<Token> tokens) {
+        final int index = shardIndex(tokens);
+        return index == TOP_LEVEL_WILDCARDS ? topLevelWildcards : shards[index];
+    }
+
+    private int shardIndex(List<Token> tokens) {
+        if (tokens == null || tokens.isEmpty()) {
+            return TOP_LEVEL_WILDCARDS;
+        }
+        final Token first = tokens.get(0);
+        if (Token.SINGLE.equals(first) || Token.MULTI.equals(first)) {
+            return TOP_LEVEL_WILDCARDS;
+        }
+        final int hash = first.hashCode();
+        return (hash ^ (hash >>> 16)) & (shards.length - 1);
+    }
+
+    void addToTree(Subscription newSubscription) {
+        shardFor(newSubscription.topicFilter.getTokens()).addToTree(newSubscription);
+    }
+
+    void removeFromTree(Topic topic, String clientID) {
+        shardFor(topic.getTokens()).removeFromTree(topic, clientID);
+    }
+
+    Set<Subscription> recursiveMatch(Topic topic) {
+        final Set<Subscription> subscriptions = new HashSet<>();
+        recursiveMatch(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    void recursiveMatch(Topic topic, Consumer<Subscription> visitor) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return;
+        }
+        topLevelWildcards.recursiveMatch(topic, visitor);
+        final CTrie shard = shardFor(tokens);
+        if (shard != topLevelWildcards) {
+            shard.recursiveMatch(topic, visitor);
+        }
+    }
+
+    /**
+     * Bulk load every shard with its own filters, on empty shards.
+     */
+    void bulkLoad(Collection<Subscription> subscriptions, boolean parallel) {
+        final List<Subscription> wildcardsGroup = new ArrayList<>();
+        final List<List<Subscription>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (Subscription subscription : subscriptions) {
+            final int index = shardIndex(subscription.topicFilter.getTokens());
+            if (index == TOP_LEVEL_WILDCARDS) {
+                wildcardsGroup.add(subscription);
+            } else {
+                groups.get(index).add(subscription);
+            }
+        }
+        topLevelWildcards.bulkLoad(wildcardsGroup, parallel);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].bulkLoad(groups.get(i), parallel);
+        }
+    }
+
+    /**
+     * @param maxReclaimed the max number of nodes to remove, shared among all the shards.
+     * @return the number of nodes removed.
+     */
+    int compact(int maxReclaimed) {
+        int reclaimed = topLevelWildcards.compact(maxReclaimed);
+        for (CTrie shard : shards) {
+            if (reclaimed >= maxReclaimed) {
+                break;
+            }
+            reclaimed += shard.compact(maxReclaimed - reclaimed);
+        }
+        return reclaimed;
+    }
+
+    int size() {
+        int size = topLevelWildcards.size();
+        for (CTrie shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * The roots of the shards are a fixed overhead and aren't counted as nodes.
+     */
+    SubscriptionsMetrics computeMetrics() {
+        long subscriptions = 0;
+        long wildcardSubscriptions = 0;
+        long nodes = 0;
+        long tombstones = 0;
+        for (CTrie trie : allTries()) {
+            final SubscriptionsMetrics metrics = trie.computeMetrics();
+            subscriptions += metrics.subscriptions();
+            wildcardSubscriptions += metrics.wildcardSubscriptions();
+            nodes += metrics.nodes() - 1;
+            tombstones += metrics.tombstones();
+        }
+        return new SubscriptionsMetrics(subscriptions, wildcardSubscriptions, nodes, tombstones);
+    }
+
+    String dumpTree() {
+        final StringBuilder dump = new StringBuilder();
+        for (CTrie trie : allTries()) {
+            if (trie.size() > 0) {
+                dump.append(trie.dumpTree());
+            }
+        }
+        return dump.toString();
+    }
+
+    private List<CTrie> allTries() {
+        final List<CTrie> tries = new ArrayList<>(shards.length + 1);
+        tries.add(topLevelWildcards);
+        for (CTrie shard : shards) {
+            tries.add(shard);
+        }
+        return tries;
+    }
+}
@@ -29,23 +29,43 @@ public final class Subscription implements Serializable {
     private final MqttQoS requestedQos; // max QoS acceptable
     final String clientId;
     final Topic topicFilter;
+    // not serialized, assigned by the directory storing the subscription
+    final transient int clientIntId;
 
     public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos) {
         this.requestedQos = requestedQos;
         this.clientId = clientId;
         this.topicFilter = topicFilter;
+        this.clientIntId = ClientIds.UNKNOWN;
     }
 
     public Subscription(Subscription orig) {
+        this(orig, orig.clientIntId);
+    }
+
+    Subscription(Subscription orig, int clientIntId) {
         this.requestedQos = orig.requestedQos;
         this.clientId = orig.clientId;
         this.topicFilter = orig.topicFilter;
+        this.clientIntId = clientIntId;
+    }
+
+    private Object readResolve() {
+        return new Subscription(clientId, topicFilter, requestedQos);
     }
 
     public String getClientId() {
         return clientId;
     }
 
+    /**
+     * @return the id assigned to the client by the {@link ClientIds} of the directory storing the subscription,
+     * {@link ClientIds#UNKNOWN} if not stored.
+     */
+    public int getClientIntId() {
+        return clientIntId;
+    }
+
     public MqttQoS getRequestedQos() {
         return requestedQos;
     }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+/**
+ * Snapshot of the statistics of a subscriptions directory, maintained on every change so that reading them
+ * doesn't need to visit the subscriptions.
+ */
+public class SubscriptionsMetrics {
+
+    private final long subscriptions;
+    private final long wildcardSubscriptions;
+    private final long nodes;
+    private final long tombstones;
+
+    SubscriptionsMetrics(long subscriptions, long wildcardSubscriptions, long nodes, long tombstones) {
+        this.subscriptions = subscriptions;
+        this.wildcardSubscriptions = wildcardSubscriptions;
+        this.nodes = nodes;
+        this.tombstones = tombstones;
+    }
+
+    /**
+     * @return the number of subscriptions.
+     */
+    public long subscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * @return the number of subscriptions with a + or # in the topic filter.
+     */
+    public long wildcardSubscriptions() {
+        return wildcardSubscriptions;
+    }
+
+    /**
+     * @return the number of nodes used to store the subscriptions, tombstones excluded.
+     */
+    public long nodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of removed nodes not yet unlinked from their parent.
+     */
+    public long tombstones() {
+        return tombstones;
+    }
+}
@@ -17,9 +17,16 @@ package io.moquette.broker.subscriptions;
 
 class TNode extends CNode {
 
+    /**
+     * @param token the token of the node this tomb replaces, used to unlink it from the parent.
+     */
+    TNode(Token token) {
+        this.token = token;
+    }
+
     @Override
     INode childOf(Token token) {
-        throw new IllegalStateException("Can't be invoked on TNode");
+        return null;
     }
 
     @Override
@@ -28,7 +35,7 @@ class TNode extends CNode {
     }
 
     @Override
-    public void add(INode newINode) {
+    public INode add(INode newINode) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -38,22 +45,17 @@ class TNode extends CNode {
     }
 
     @Override
-    boolean containsOnly(String clientId) {
+    boolean containsOnly(int clientIntId) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    public boolean contains(String clientId) {
+    public boolean contains(int clientIntId) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    void removeSubscriptionsFor(String clientId) {
+    void removeSubscriptionsFor(int clientIntId) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
-
-    @Override
-    boolean anyChildrenMatch(Token token) {
-        return false;
-    }
 }
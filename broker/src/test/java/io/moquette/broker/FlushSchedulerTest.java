@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FlushSchedulerTest {
+
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+        final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes.incrementAndGet();
+            super.flush(ctx);
+        }
+    }
+
+    @Test
+    public void testAChannelIsFlushedOnceAtTheEndOfTheLoopRun() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel channel = new EmbeddedChannel(counter);
+
+        // the embedded channel runs the pending tasks on every write, so writes first
+        for (int i = 0; i < 10; i++) {
+            channel.write("message " + i);
+        }
+        final FlushScheduler sut = new FlushScheduler(channel);
+        for (int i = 0; i < 10; i++) {
+            sut.scheduleFlush();
+        }
+
+        assertEquals("Nothing is flushed before the loop runs its tasks", 0, counter.flushes.get());
+        assertTrue(channel.outboundMessages().isEmpty());
+
+        channel.runPendingTasks();
+
+        assertEquals(1, counter.flushes.get());
+        assertEquals(10, channel.outboundMessages().size());
+    }
+
+    @Test
+    public void testWritesAfterTheFlushAreFlushedInTheNextRun() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel channel = new EmbeddedChannel(counter);
+        final FlushScheduler sut = new FlushScheduler(channel);
+        channel.write("first");
+        sut.scheduleFlush();
+        channel.runPendingTasks();
+
+        channel.write("second");
+        sut.scheduleFlush();
+        channel.runPendingTasks();
+
+        assertEquals(2, counter.flushes.get());
+        assertEquals(2, channel.outboundMessages().size());
+    }
+}
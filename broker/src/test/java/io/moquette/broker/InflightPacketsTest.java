@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InflightPacketsTest {
+
+    private final InflightPackets sut = new InflightPackets();
+    private final ResentCollector collector = new ResentCollector();
+
+    private static final class ResentCollector implements InflightPackets.Resender {
+
+        final List<Integer> resent = new ArrayList<>();
+        final List<Integer> resends = new ArrayList<>();
+
+        @Override
+        public long resend(int packetId, SessionRegistry.EnqueuedMessage msg, int resends) {
+            this.resent.add(packetId);
+            this.resends.add(resends);
+            return 500;
+        }
+    }
+
+    @Test
+    public void packetsAreFoundByPacketId() {
+        final SessionRegistry.EnqueuedMessage first = new SessionRegistry.PubRelMarker();
+        final SessionRegistry.EnqueuedMessage second = new SessionRegistry.PubRelMarker();
+        sut.add(1, first, 100, 1100);
+        sut.add(2, second, 200, 1200);
+
+        assertSame(first, sut.get(1));
+        assertSame(second, sut.get(2));
+        assertNull(sut.get(3));
+        assertEquals(200, sut.firstSendTime(2));
+        assertEquals(InflightPackets.NO_SEND_TIME, sut.firstSendTime(3));
+    }
+
+    @Test
+    public void resendsTheDuePacketsInSendOrderSkippingTheOnesAcknowledged() {
+        sut.add(1, new SessionRegistry.PubRelMarker(), 100, 1100);
+        sut.add(2, new SessionRegistry.PubRelMarker(), 200, 1200);
+        sut.add(3, new SessionRegistry.PubRelMarker(), 300, 1300);
+        sut.remove(2);
+
+        assertEquals(2, sut.resendDue(2000, 2000, 10, collector));
+
+        assertEquals(Arrays.asList(1, 3), collector.resent);
+        assertEquals(InflightPackets.NO_SEND_TIME, sut.firstSendTime(1));
+    }
+
+    @Test
+    public void resendsAtMostMaxPacketsPerWalk() {
+        sut.add(1, new SessionRegistry.PubRelMarker(), 100, 1100);
+        sut.add(2, new SessionRegistry.PubRelMarker(), 200, 1200);
+        sut.add(3, new SessionRegistry.PubRelMarker(), 300, 1300);
+
+        assertEquals(2, sut.resendDue(2000, 2000, 2, collector));
+        assertEquals(Arrays.asList(1, 2), collector.resent);
+
+        // the first two wait for their next resend time, the last is still due
+        assertEquals(1, sut.resendDue(2000, 2000, 2, collector));
+        assertEquals(Arrays.asList(1, 2, 3), collector.resent);
+    }
+
+    @Test
+    public void resentPacketKeepsItsPlaceAndWaitsForTheDelayGivenByTheResender() {
+        sut.add(1, new SessionRegistry.PubRelMarker(), 100, 1100);
+        sut.add(2, new SessionRegistry.PubRelMarker(), 200, 1200);
+
+        assertEquals(1, sut.resendDue(1100, 1100, 10, collector));
+        assertEquals(1, sut.resendDue(1200, 1200, 10, collector));
+        assertEquals(0, sut.resendDue(1500, 1500, 10, collector));
+        // 1100 + 500 for the packet 1, 1200 + 500 for the packet 2
+        assertEquals(2, sut.resendDue(1700, 1700, 10, collector));
+
+        assertEquals(Arrays.asList(1, 2, 1, 2), collector.resent);
+        assertEquals(Arrays.asList(0, 0, 1, 1), collector.resends);
+    }
+
+    @Test
+    public void walkStopsAtTheFirstPacketSentTooRecently() {
+        sut.add(1, new SessionRegistry.PubRelMarker(), 100, 0);
+        sut.add(2, new SessionRegistry.PubRelMarker(), 200, 0);
+
+        assertEquals(1, sut.resendDue(2000, 150, 10, collector));
+
+        assertEquals(Collections.singletonList(1), collector.resent);
+    }
+
+    @Test
+    public void resenderCanRemoveThePacketItResends() {
+        sut.add(1, new SessionRegistry.PubRelMarker(), 100, 1100);
+        sut.add(2, new SessionRegistry.PubRelMarker(), 200, 1200);
+
+        assertEquals(2, sut.resendDue(2000, 2000, 10, (packetId, msg, resends) -> {
+            sut.remove(packetId);
+            return 500;
+        }));
+
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void growsAndCompactsKeepingTheSendOrder() {
+        // a long lived packet at the head while many others come and go
+        sut.add(1, new SessionRegistry.PubRelMarker(), 0, 0);
+        for (int i = 2; i < 1000; i++) {
+            sut.add(i, new SessionRegistry.PubRelMarker(), i, i);
+            if (i % 3 != 0) {
+                sut.remove(i);
+            }
+        }
+
+        assertEquals(334, sut.resendDue(1000, 1000, 1000, collector));
+
+        assertEquals(Integer.valueOf(1), collector.resent.get(0));
+        for (int i = 1; i < collector.resent.size(); i++) {
+            assertEquals(Integer.valueOf(3 * i), collector.resent.get(i));
+        }
+    }
+
+    @Test
+    public void behavesAsAMapUnderRandomAddsAndRemoves() {
+        final Map<Integer, SessionRegistry.EnqueuedMessage> expected = new HashMap<>();
+        final Random random = new Random(17);
+        for (int i = 0; i < 100_000; i++) {
+            final int packetId = 1 + random.nextInt(300);
+            if (expected.containsKey(packetId)) {
+                assertSame(expected.remove(packetId), sut.remove(packetId));
+            } else {
+                final SessionRegistry.EnqueuedMessage msg = new SessionRegistry.PubRelMarker();
+                expected.put(packetId, msg);
+                sut.add(packetId, msg, i, i + 1000);
+            }
+        }
+        assertEquals(expected.size(), sut.size());
+        for (int packetId = 1; packetId <= 300; packetId++) {
+            assertSame(expected.get(packetId), sut.get(packetId));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.config.MemoryConfig;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InflightWindowTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void fixedWindowNeverChanges() {
+        final InflightWindow sut = new InflightWindow(10);
+
+        assertEquals(0, ackWindow(sut, RTT, true));
+        assertEquals(0, sut.resent());
+        assertEquals(10, sut.size());
+        assertFalse(sut.isAdaptive());
+    }
+
+    @Test
+    public void adaptiveWindowGrowsByOneEachWindowOfTimelyAcks() {
+        final InflightWindow sut = adaptive(10, 1, 100);
+
+        assertEquals(1, ackWindow(sut, RTT, true));
+        assertEquals(11, sut.size());
+        assertEquals(1, ackWindow(sut, RTT, true));
+        assertEquals(12, sut.size());
+    }
+
+    @Test
+    public void adaptiveWindowIsHalvedWhenTheChannelIsNotWritable() {
+        final InflightWindow sut = adaptive(10, 1, 100);
+
+        assertEquals(-5, ackWindow(sut, RTT, false));
+        assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void adaptiveWindowIsHalvedWhenTheRoundTripTimeRaises() {
+        final InflightWindow sut = adaptive(10, 1, 100);
+        ackWindow(sut, RTT, true);
+
+        int delta = 0;
+        for (int i = 0; i < 5 && delta >= 0; i++) {
+            delta = ackWindow(sut, RTT * 10, true);
+        }
+
+        assertTrue("Window should shrink, size: " + sut.size(), delta < 0);
+    }
+
+    @Test
+    public void adaptiveWindowStaysWithinItsBounds() {
+        final InflightWindow sut = adaptive(4, 3, 5);
+
+        assertEquals(-1, sut.resent());
+        assertEquals(0, sut.resent());
+        assertEquals(3, sut.size());
+
+        ackWindow(sut, RTT, true);
+        ackWindow(sut, RTT, true);
+        ackWindow(sut, RTT, true);
+        assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void sizeOfTheClientTakesPrecedenceOverTheOneOfTheUser() {
+        final Properties props = new Properties();
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME, "20");
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME, "sensor-1:100, urn:dev:2:50");
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_USERS_PROPERTY_NAME, "gateway:200,broken");
+        final InflightWindow.Sizing sizing = new BrokerConfiguration(new MemoryConfig(props))
+            .getInflightWindowSizing();
+
+        assertEquals(100, sizing.windowFor("sensor-1", "gateway").size());
+        assertEquals(50, sizing.windowFor("urn:dev:2", null).size());
+        assertEquals(200, sizing.windowFor("sensor-3", "gateway").size());
+        assertEquals(20, sizing.windowFor("sensor-3", null).size());
+        assertFalse(sizing.windowFor("sensor-3", null).isAdaptive());
+    }
+
+    @Test
+    public void adaptiveWindowStartsFromTheConfiguredSizeWithinTheBounds() {
+        final Properties props = new Properties();
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME, "sensor-1:100");
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME, "true");
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME, "50");
+        final InflightWindow.Sizing sizing = new BrokerConfiguration(new MemoryConfig(props))
+            .getInflightWindowSizing();
+
+        final InflightWindow window = sizing.windowFor("sensor-1", null);
+        assertTrue(window.isAdaptive());
+        assertEquals(50, window.size());
+        assertEquals(BrokerConstants.DEFAULT_INFLIGHT_WINDOW_SIZE, sizing.windowFor("sensor-2", null).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroSizeIsRejectedAtStartup() {
+        sizingOf(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME, "0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSizeOfAClientIsRejectedAtStartup() {
+        sizingOf(BrokerConstants.INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME, "sensor-1:-5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeBeyondThePacketIdsIsRejectedAtStartup() {
+        sizingOf(BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME, "65536");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minGreaterThanMaxIsRejectedAtStartup() {
+        final Properties props = new Properties();
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_MIN_PROPERTY_NAME, "20");
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME, "10");
+        new BrokerConfiguration(new MemoryConfig(props));
+    }
+
+    private static InflightWindow.Sizing sizingOf(String property, String value) {
+        final Properties props = new Properties();
+        props.setProperty(property, value);
+        return new BrokerConfiguration(new MemoryConfig(props)).getInflightWindowSizing();
+    }
+
+    private static InflightWindow adaptive(int size, int min, int max) {
+        final Properties props = new Properties();
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME, String.valueOf(size));
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME, "true");
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_MIN_PROPERTY_NAME, String.valueOf(min));
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_MAX_PROPERTY_NAME, String.valueOf(max));
+        return new BrokerConfiguration(new MemoryConfig(props)).getInflightWindowSizing().windowFor("client", null);
+    }
+
+    /**
+     * @return the change of size after the acks of a whole window.
+     */
+    private static int ackWindow(InflightWindow window, long rttNanos, boolean writable) {
+        int delta = 0;
+        final int size = window.size();
+        for (int i = 0; i < size; i++) {
+            delta += window.acked(rttNanos, writable);
+        }
+        return delta;
+    }
+}
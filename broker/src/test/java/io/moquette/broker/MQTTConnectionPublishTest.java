@@ -15,13 +15,17 @@
  */
 package io.moquette.broker;
 
+import io.moquette.BrokerConstants;
+import io.moquette.broker.config.MemoryConfig;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
@@ -30,10 +34,14 @@ import io.netty.handler.codec.mqtt.MqttVersion;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Properties;
+
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class MQTTConnectionPublishTest {
 
@@ -93,4 +101,170 @@ public class MQTTConnectionPublishTest {
         assertFalse("Connection should be closed by the broker", channel.isOpen());
     }
 
+    @Test
+    public void qos0PublishesOverflowingTheOutboundBufferAreDroppedOldestFirst() {
+        connectWithOutboundBuffer(2, OutboundBuffer.OverflowPolicy.DROP_QOS0);
+        makeChannelNotWritable();
+
+        for (int i = 0; i < 3; i++) {
+            sendQos0("message " + i);
+        }
+
+        final Session session = sessionRegistry.retrieve(FAKE_CLIENT_ID);
+        assertEquals(1, session.droppedMessages());
+        assertTrue(channel.isOpen());
+
+        // Exercise, the channel is writable again
+        channel.flushOutbound();
+        channel.outboundMessages().clear();
+        sut.writabilityChanged();
+
+        // Verify
+        ConnectionTestUtils.verifyPublishIsReceived(channel, MqttQoS.AT_MOST_ONCE, "message 1");
+        ConnectionTestUtils.verifyPublishIsReceived(channel, MqttQoS.AT_MOST_ONCE, "message 2");
+    }
+
+    @Test
+    public void publishNotInFlightOverflowingTheOutboundBufferIsCountedAsDropped() {
+        connectWithOutboundBuffer(1, OutboundBuffer.OverflowPolicy.SPILL);
+        makeChannelNotWritable();
+
+        // Exercise, publishes with packet id the session has no inflight record of, so they can't be spilled
+        for (int i = 0; i < 2; i++) {
+            sut.sendPublish(MQTTConnection.notRetainedPublishWithMessageId("/news", MqttQoS.AT_LEAST_ONCE,
+                                                                           Unpooled.copiedBuffer("message " + i, UTF_8),
+                                                                           42 + i));
+        }
+
+        // Verify
+        final Session session = sessionRegistry.retrieve(FAKE_CLIENT_ID);
+        assertEquals(1, session.droppedMessages());
+        assertEquals(0, session.spilledMessages());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void slowConsumerIsDisconnectedWhenTheOutboundBufferOverflows() {
+        connectWithOutboundBuffer(2, OutboundBuffer.OverflowPolicy.DISCONNECT);
+        makeChannelNotWritable();
+
+        for (int i = 0; i < 3; i++) {
+            sendQos0("message " + i);
+        }
+
+        assertFalse("Slow consumer should be disconnected", channel.isOpen());
+    }
+
+    @Test
+    public void notAcknowledgedPublishesAreResentInAFlushedBatchAtMostMaxPerCheck() throws InterruptedException {
+        Properties props = new Properties();
+        props.put(BrokerConstants.RESEND_INITIAL_DELAY_PROPERTY_NAME, "50");
+        props.put(BrokerConstants.RESEND_JITTER_PERCENT_PROPERTY_NAME, "0");
+        props.put(BrokerConstants.RESEND_MAX_PER_CHECK_PROPERTY_NAME, "2");
+        createMQTTConnection(new BrokerConfiguration(new MemoryConfig(props)));
+        sut.processConnect(connMsg.clientId(FAKE_CLIENT_ID).build());
+        ConnectionTestUtils.assertConnectAccepted(channel);
+
+        final Session session = sessionRegistry.retrieve(FAKE_CLIENT_ID);
+        for (int i = 0; i < 3; i++) {
+            session.sendPublishOnSessionAtQos(new Topic("/news"), MqttQoS.AT_LEAST_ONCE,
+                                              Unpooled.copiedBuffer("message " + i, UTF_8));
+        }
+        channel.flushOutbound();
+        for (int i = 0; i < 3; i++) {
+            ConnectionTestUtils.verifyPublishIsReceived(channel, MqttQoS.AT_LEAST_ONCE, "message " + i);
+        }
+
+        // Exercise, the initial delay expires with no ack
+        Thread.sleep(60);
+        sut.resendNotAckedPublishes();
+
+        // Verify, the resends are flushed with no need of the flush scheduler
+        assertEquals(2, session.resentMessages());
+        verifyDuplicatePublishIsReceived("message 0");
+        verifyDuplicatePublishIsReceived("message 1");
+        assertTrue(channel.outboundMessages().isEmpty());
+
+        // Exercise, the next check resends the last, the first two wait for the doubled delay
+        sut.resendNotAckedPublishes();
+
+        // Verify
+        assertEquals(3, session.resentMessages());
+        verifyDuplicatePublishIsReceived("message 2");
+        assertTrue(channel.outboundMessages().isEmpty());
+    }
+
+    @Test
+    public void duplicateOverflowingTheOutboundBufferKeepsItsPacketId() throws InterruptedException {
+        Properties props = new Properties();
+        props.put(BrokerConstants.IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME, "true");
+        props.put(BrokerConstants.OUTBOUND_BUFFER_MAX_MESSAGES_PROPERTY_NAME, "1");
+        props.put(BrokerConstants.OUTBOUND_BUFFER_OVERFLOW_POLICY_PROPERTY_NAME, "spill");
+        props.put(BrokerConstants.RESEND_INITIAL_DELAY_PROPERTY_NAME, "50");
+        props.put(BrokerConstants.RESEND_JITTER_PERCENT_PROPERTY_NAME, "0");
+        createMQTTConnection(new BrokerConfiguration(new MemoryConfig(props)));
+        sut.processConnect(connMsg.clientId(FAKE_CLIENT_ID).build());
+        ConnectionTestUtils.assertConnectAccepted(channel);
+
+        final Session session = sessionRegistry.retrieve(FAKE_CLIENT_ID);
+        for (int i = 0; i < 2; i++) {
+            session.sendPublishOnSessionAtQos(new Topic("/news"), MqttQoS.EXACTLY_ONCE,
+                                              Unpooled.copiedBuffer("message " + i, UTF_8));
+        }
+        final int firstPacketId = verifyPublishIsReceived(false, "message 0");
+        final int secondPacketId = verifyPublishIsReceived(false, "message 1");
+        makeChannelNotWritable();
+
+        // Exercise, the resent duplicates overflow the outbound buffer
+        Thread.sleep(60);
+        sut.resendNotAckedPublishes();
+
+        // Verify, the newest duplicate is dropped, not moved back to the queue under a new packet id
+        assertEquals(0, session.spilledMessages());
+        assertEquals(1, session.droppedMessages());
+        channel.flushOutbound();
+        channel.outboundMessages().clear();
+        channel.config().setWriteBufferWaterMark(WriteBufferWaterMark.DEFAULT);
+        sut.writabilityChanged();
+        assertEquals(firstPacketId, verifyPublishIsReceived(true, "message 0"));
+        assertTrue("No publish must be sent again from the queue", channel.outboundMessages().isEmpty());
+
+        // Exercise, the resend policy retries the dropped duplicate
+        Thread.sleep(110);
+        sut.resendNotAckedPublishes();
+
+        // Verify
+        assertEquals(firstPacketId, verifyPublishIsReceived(true, "message 0"));
+        assertEquals(secondPacketId, verifyPublishIsReceived(true, "message 1"));
+    }
+
+    private int verifyPublishIsReceived(boolean duplicate, String expectedPayload) {
+        final MqttPublishMessage publish = channel.readOutbound();
+        assertEquals(duplicate, publish.fixedHeader().isDup());
+        assertEquals(expectedPayload, publish.payload().toString(UTF_8));
+        return publish.variableHeader().packetId();
+    }
+
+    private void verifyDuplicatePublishIsReceived(String expectedPayload) {
+        final MqttPublishMessage publish = channel.readOutbound();
+        assertTrue("Resent publish must be flagged as duplicate", publish.fixedHeader().isDup());
+        assertEquals(expectedPayload, publish.payload().toString(UTF_8));
+    }
+
+    private void connectWithOutboundBuffer(int maxMessages, OutboundBuffer.OverflowPolicy policy) {
+        createMQTTConnection(new BrokerConfiguration(true, true, false, true, maxMessages, 1024 * 1024, policy));
+        sut.processConnect(connMsg.clientId(FAKE_CLIENT_ID).build());
+        ConnectionTestUtils.assertConnectAccepted(channel);
+    }
+
+    private void makeChannelNotWritable() {
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        channel.write(Unpooled.wrappedBuffer(new byte[64]));
+        assertFalse(channel.isWritable());
+    }
+
+    private void sendQos0(String message) {
+        sut.sendPublishNotRetainedQos0(new Topic("/news"), MqttQoS.AT_MOST_ONCE,
+                                       Unpooled.copiedBuffer(message, UTF_8), null);
+    }
 }
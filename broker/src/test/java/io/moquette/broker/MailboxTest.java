@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MailboxTest {
+
+    private EventLoop loop;
+    private EventLoop otherLoop;
+
+    @Before
+    public void setUp() {
+        loop = new DefaultEventLoop();
+        otherLoop = new DefaultEventLoop();
+    }
+
+    @After
+    public void tearDown() {
+        loop.shutdownGracefully();
+        otherLoop.shutdownGracefully();
+    }
+
+    @Test
+    public void testMessagesFromManyThreadsAreConsumedOnTheOwnerLoopInPostingOrder() throws InterruptedException {
+        final int producers = 4;
+        final int messagesPerProducer = 10_000;
+        final CountDownLatch allConsumed = new CountDownLatch(producers * messagesPerProducer);
+        final AtomicInteger consumedOutOfLoop = new AtomicInteger();
+        final int[] lastPerProducer = new int[producers];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final Mailbox<int[]> mailbox = new Mailbox<>(() -> loop, 16, message -> {
+            if (!loop.inEventLoop()) {
+                consumedOutOfLoop.incrementAndGet();
+            }
+            if (message[1] != lastPerProducer[message[0]] + 1) {
+                outOfOrder.incrementAndGet();
+            }
+            lastPerProducer[message[0]] = message[1];
+            allConsumed.countDown();
+        }, message -> fail("Nothing has to be discarded"));
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                for (int i = 1; i <= messagesPerProducer; i++) {
+                    mailbox.post(new int[] {producer, i});
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("All messages must be consumed", allConsumed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, consumedOutOfLoop.get());
+        assertEquals(0, outOfOrder.get());
+        assertTrue(mailbox.isEmpty());
+    }
+
+    @Test
+    public void testMessagesAreConsumedByThePosterWithoutOwnerLoop() {
+        final List<String> consumed = new ArrayList<>();
+        final Mailbox<String> mailbox = new Mailbox<>(() -> null, 16, consumed::add,
+                                                      message -> fail("Nothing has to be discarded"));
+
+        mailbox.post("first");
+        mailbox.post("second");
+
+        assertEquals(2, consumed.size());
+        assertEquals("first", consumed.get(0));
+    }
+
+    @Test
+    public void testDrainFollowsTheOwnerMovedToAnotherLoop() throws Exception {
+        final AtomicReference<EventLoop> owner = new AtomicReference<>(loop);
+        final CountDownLatch consumed = new CountDownLatch(1);
+        final AtomicReference<Boolean> consumedOnOtherLoop = new AtomicReference<>();
+        final Mailbox<String> mailbox = new Mailbox<>(owner::get, 16, message -> {
+            consumedOnOtherLoop.set(otherLoop.inEventLoop());
+            consumed.countDown();
+        }, message -> fail("Nothing has to be discarded"));
+
+        // keep the loop busy until the owner moved
+        final CountDownLatch moved = new CountDownLatch(1);
+        loop.execute(() -> {
+            try {
+                moved.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        mailbox.post("hello");
+        owner.set(otherLoop);
+        moved.countDown();
+
+        assertTrue(consumed.await(5, TimeUnit.SECONDS));
+        assertTrue("Must be consumed on the current loop of the owner", consumedOnOtherLoop.get());
+    }
+
+    @Test
+    public void testMessagesAreDiscardedWhenTheLoopIsShutDown() throws InterruptedException {
+        loop.shutdownGracefully(0, 0, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        final List<String> discarded = new ArrayList<>();
+        final Mailbox<String> mailbox = new Mailbox<>(() -> loop, 16,
+                                                      message -> fail("Nothing can be consumed"), discarded::add);
+
+        mailbox.post("lost");
+
+        assertEquals(1, discarded.size());
+        assertTrue(mailbox.isEmpty());
+    }
+}
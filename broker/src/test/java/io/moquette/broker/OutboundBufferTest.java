@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundBufferTest {
+
+    @Test
+    public void overflowsBeyondTheMaxNumberOfMessages() {
+        final OutboundBuffer sut = new OutboundBuffer(2, 1024);
+        sut.add(publish(MqttQoS.AT_MOST_ONCE, 0, "a"));
+        sut.add(publish(MqttQoS.AT_MOST_ONCE, 0, "b"));
+        assertFalse(sut.isOverflowing());
+
+        sut.add(publish(MqttQoS.AT_MOST_ONCE, 0, "c"));
+        assertTrue(sut.isOverflowing());
+    }
+
+    @Test
+    public void overflowsBeyondTheMaxBytes() {
+        final OutboundBuffer sut = new OutboundBuffer(100, 64);
+        sut.add(publish(MqttQoS.AT_MOST_ONCE, 0, "small"));
+        assertFalse(sut.isOverflowing());
+
+        sut.add(publish(MqttQoS.AT_MOST_ONCE, 0, new String(new char[64]).replace('\0', 'x')));
+        assertTrue(sut.isOverflowing());
+
+        sut.poll();
+        sut.poll();
+        assertEquals(0, sut.bytes());
+    }
+
+    @Test
+    public void keepsTheOrderOfTheMessages() {
+        final OutboundBuffer sut = new OutboundBuffer(10, 1024);
+        final MqttPublishMessage first = publish(MqttQoS.AT_LEAST_ONCE, 1, "a");
+        final MqttPublishMessage second = publish(MqttQoS.AT_MOST_ONCE, 0, "b");
+        sut.add(first);
+        sut.add(second);
+
+        assertSame(first, sut.poll());
+        assertSame(second, sut.poll());
+        assertNull(sut.poll());
+    }
+
+    @Test
+    public void removesTheOldestQos0Publish() {
+        final OutboundBuffer sut = new OutboundBuffer(10, 1024);
+        final MqttPublishMessage qos1 = publish(MqttQoS.AT_LEAST_ONCE, 1, "a");
+        final MqttPublishMessage oldest = publish(MqttQoS.AT_MOST_ONCE, 0, "b");
+        final MqttPublishMessage newest = publish(MqttQoS.AT_MOST_ONCE, 0, "c");
+        sut.add(qos1);
+        sut.add(oldest);
+        sut.add(newest);
+
+        assertSame(oldest, sut.removeOldestQos0Publish());
+        assertSame(newest, sut.removeOldestQos0Publish());
+        assertNull(sut.removeOldestQos0Publish());
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void removesTheNewestPublishWithPacketIdSkippingTheAcks() {
+        final OutboundBuffer sut = new OutboundBuffer(10, 1024);
+        final MqttPublishMessage oldest = publish(MqttQoS.AT_LEAST_ONCE, 1, "a");
+        final MqttPublishMessage newest = publish(MqttQoS.EXACTLY_ONCE, 2, "b");
+        final MqttMessage ack = new MqttPubAckMessage(
+            new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+            MqttMessageIdVariableHeader.from(3));
+        sut.add(oldest);
+        sut.add(newest);
+        sut.add(ack);
+
+        assertSame(newest, sut.removeNewestPublishWithPacketId());
+        assertSame(oldest, sut.removeNewestPublishWithPacketId());
+        assertNull(sut.removeNewestPublishWithPacketId());
+        assertSame(ack, sut.poll());
+    }
+
+    @Test
+    public void clearReleasesTheMessages() {
+        final OutboundBuffer sut = new OutboundBuffer(10, 1024);
+        final MqttPublishMessage msg = publish(MqttQoS.AT_MOST_ONCE, 0, "a");
+        final ByteBuf payload = msg.payload();
+        sut.add(msg);
+
+        sut.clear();
+
+        assertTrue(sut.isEmpty());
+        assertEquals(0, payload.refCnt());
+    }
+
+    private static MqttPublishMessage publish(MqttQoS qos, int packetId, String payload) {
+        return MqttMessageBuilders.publish()
+            .topicName("/news")
+            .qos(qos)
+            .messageId(packetId)
+            .payload(Unpooled.copiedBuffer(payload, UTF_8))
+            .build();
+    }
+}
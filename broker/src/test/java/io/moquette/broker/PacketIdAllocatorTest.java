@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.Test;
+
+import static io.moquette.broker.PacketIdAllocator.MAX_PACKET_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PacketIdAllocatorTest {
+
+    private final PacketIdAllocator sut = new PacketIdAllocator();
+
+    @Test
+    public void packetIdsStartFromOneAndIncrease() {
+        assertEquals(1, sut.allocate());
+        assertEquals(2, sut.allocate());
+        assertEquals(3, sut.allocate());
+        assertEquals(3, sut.inUse());
+    }
+
+    @Test
+    public void releasedPacketIdIsFree() {
+        final int packetId = sut.allocate();
+
+        assertTrue(sut.release(packetId));
+
+        assertFalse(sut.isInUse(packetId));
+        assertFalse("A packet id can't be released twice", sut.release(packetId));
+        assertFalse(sut.release(0));
+        assertFalse(sut.release(MAX_PACKET_ID + 1));
+        assertEquals(0, sut.inUse());
+    }
+
+    @Test
+    public void packetIdsWrapAroundSkippingTheOnesStillInUse() {
+        for (int i = 1; i <= MAX_PACKET_ID; i++) {
+            assertEquals(i, sut.allocate());
+        }
+        // all in use but 2, 64 and 65535
+        sut.release(2);
+        sut.release(64);
+        sut.release(MAX_PACKET_ID);
+
+        assertEquals(2, sut.allocate());
+        assertEquals(64, sut.allocate());
+        assertEquals(MAX_PACKET_ID, sut.allocate());
+    }
+
+    @Test
+    public void neverHandsOutAPacketIdInUseOverManyTurns() {
+        // a long lived inflight packet while many others go and come back
+        final int longLived = sut.allocate();
+        int previous = sut.allocate();
+        for (int i = 0; i < 3 * MAX_PACKET_ID; i++) {
+            final int packetId = sut.allocate();
+            assertTrue(packetId >= 1 && packetId <= MAX_PACKET_ID);
+            assertTrue(packetId != longLived && packetId != previous);
+            assertTrue(sut.release(previous));
+            previous = packetId;
+        }
+        assertTrue(sut.isInUse(longLived));
+        assertEquals(2, sut.inUse());
+    }
+
+    @Test
+    public void failsWhenAllThePacketIdsAreInUse() {
+        for (int i = 1; i <= MAX_PACKET_ID; i++) {
+            sut.allocate();
+        }
+        try {
+            sut.allocate();
+            fail("No packet id should be available");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+}
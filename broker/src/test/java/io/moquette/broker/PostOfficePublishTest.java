@@ -151,8 +151,12 @@ public class PostOfficePublishTest {
     }
 
     private MQTTConnection connectAs(String clientId) {
+        return connectAs(clientId, CONFIG);
+    }
+
+    private MQTTConnection connectAs(String clientId, BrokerConfiguration config) {
         EmbeddedChannel channel = new EmbeddedChannel();
-        MQTTConnection connection = createMQTTConnection(CONFIG, channel);
+        MQTTConnection connection = createMQTTConnection(config, channel);
         connection.processConnect(ConnectionTestUtils.buildConnect(clientId));
         ConnectionTestUtils.assertConnectAccepted(channel);
         return connection;
@@ -223,6 +227,84 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "Hello world!");
     }
 
+    @Test
+    public void testFanOutBeyondTheInlineThresholdIsServedByTheSubscribersEventLoops() {
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        sut = new PostOffice(subscriptions, retainedRepository, sessionRegistry,
+                             ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll, new FanOut(1, 10));
+        // flushing every write, so the publishes served inline are readable without running the loops tasks
+        final BrokerConfiguration immediateFlush = new BrokerConfiguration(true, true, false, true);
+        final MQTTConnection subscriber1 = connectAs("subscriber1", immediateFlush);
+        subscribe(subscriber1, NEWS_TOPIC, AT_MOST_ONCE);
+        final MQTTConnection subscriber2 = connectAs("subscriber2", immediateFlush);
+        final EmbeddedChannel channel1 = (EmbeddedChannel) subscriber1.channel;
+        final EmbeddedChannel channel2 = (EmbeddedChannel) subscriber2.channel;
+        sut.subscribeClientToTopics(MqttMessageBuilders.subscribe()
+            .addSubscription(AT_MOST_ONCE, NEWS_TOPIC)
+            .messageId(1)
+            .build(), subscriber2.getClientId(), null, subscriber2);
+        assertTrue(channel2.readOutbound() instanceof MqttSubAckMessage);
+
+        // Exercise
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset());
+        sut.receivedPublishQos0(new Topic(NEWS_TOPIC), TEST_USER, FAKE_CLIENT_ID, payload, false,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build());
+
+        // Verify
+        assertEquals("Only the first subscriber is served inline",
+                     1, channel1.outboundMessages().size() + channel2.outboundMessages().size());
+        ConnectionTestUtils.verifyReceivePublish(channel1, NEWS_TOPIC, "Hello world!");
+        ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "Hello world!");
+    }
+
+    @Test
+    public void testInlinePublishOnTheSubscriberLoopDoesNotOvertakeItsQueuedChunk() {
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        final PostOffice chunking = new PostOffice(subscriptions, retainedRepository, sessionRegistry,
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll, new FanOut(1, 10));
+        final PostOffice inline = new PostOffice(subscriptions, retainedRepository, sessionRegistry,
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll, FanOut.INLINE);
+        final BrokerConfiguration immediateFlush = new BrokerConfiguration(true, true, false, true);
+        final MQTTConnection subscriber1 = connectAs("subscriber1", immediateFlush);
+        subscribe(subscriber1, NEWS_TOPIC, AT_MOST_ONCE);
+        final MQTTConnection subscriber2 = connectAs("subscriber2", immediateFlush);
+        final EmbeddedChannel channel1 = (EmbeddedChannel) subscriber1.channel;
+        final EmbeddedChannel channel2 = (EmbeddedChannel) subscriber2.channel;
+        sut.subscribeClientToTopics(MqttMessageBuilders.subscribe()
+            .addSubscription(AT_MOST_ONCE, NEWS_TOPIC)
+            .messageId(1)
+            .build(), subscriber2.getClientId(), null, subscriber2);
+        assertTrue(channel2.readOutbound() instanceof MqttSubAckMessage);
+        // one of the subscribers has the first publish in a chunk still queued on its loop
+        publishQos0(chunking, "First");
+        assertEquals(1, channel1.outboundMessages().size() + channel2.outboundMessages().size());
+
+        // Exercise, a publish served inline to both, as if processed by the loops of the subscribers
+        publishQos0(inline, "Second");
+        channel1.runPendingTasks();
+        channel2.runPendingTasks();
+
+        // Verify
+        ConnectionTestUtils.verifyReceivePublish(channel1, NEWS_TOPIC, "First");
+        ConnectionTestUtils.verifyReceivePublish(channel1, NEWS_TOPIC, "Second");
+        ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "First");
+        ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "Second");
+    }
+
+    private static void publishQos0(PostOffice postOffice, String message) {
+        final ByteBuf payload = Unpooled.copiedBuffer(message, Charset.defaultCharset());
+        postOffice.receivedPublishQos0(new Topic(NEWS_TOPIC), TEST_USER, FAKE_CLIENT_ID, payload, false,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build());
+    }
+
     @Test
     public void testPublishWithEmptyPayloadClearRetainedStore() {
         connection.processConnect(connectMessage);
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class PublishDispatcherTest {
+
+    private PublishDispatcher sut;
+
+    @After
+    public void tearDown() {
+        if (sut != null) {
+            sut.shutdown();
+        }
+    }
+
+    @Test
+    public void testWithoutWorkersRoutesOnThePublishingThread() {
+        sut = new PublishDispatcher(0);
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello", UTF_8);
+        final List<Thread> routingThreads = new ArrayList<>();
+
+        sut.dispatch(new Topic("/news"), payload, routed -> routingThreads.add(Thread.currentThread()));
+
+        assertEquals(Collections.singletonList(Thread.currentThread()), routingThreads);
+        assertEquals(1, payload.refCnt());
+    }
+
+    @Test
+    public void testEveryTopicIsRoutedInOrderBySingleWorker() throws InterruptedException {
+        sut = new PublishDispatcher(4);
+        final int topics = 16;
+        final int publishesPerTopic = 1000;
+        final CountDownLatch allRouted = new CountDownLatch(topics * publishesPerTopic);
+        final Map<String, List<Integer>> routedPerTopic = new HashMap<>();
+        final Map<String, Thread> workerPerTopic = new HashMap<>();
+        final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello", UTF_8);
+
+        for (int i = 0; i < publishesPerTopic; i++) {
+            for (int t = 0; t < topics; t++) {
+                final String topicName = "/sensors/" + t;
+                final int sequence = i;
+                sut.dispatch(new Topic(topicName), payload, routed -> {
+                    synchronized (routedPerTopic) {
+                        final Thread worker = workerPerTopic.putIfAbsent(topicName, Thread.currentThread());
+                        if (worker != null && worker != Thread.currentThread()) {
+                            violations.add(topicName + " routed by more workers");
+                        }
+                        routedPerTopic.computeIfAbsent(topicName, k -> new ArrayList<>()).add(sequence);
+                    }
+                    allRouted.countDown();
+                });
+            }
+        }
+
+        assertTrue("All publishes must be routed", allRouted.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.emptyList(), violations);
+        for (List<Integer> sequences : routedPerTopic.values()) {
+            for (int i = 0; i < sequences.size(); i++) {
+                assertEquals("Publishes of a topic must keep their order", i, (int) sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testShutdownInterruptsTheRoutingStillRunningAfterTheTimeout() throws InterruptedException {
+        sut = new PublishDispatcher(1);
+        final CountDownLatch routing = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello", UTF_8);
+        sut.dispatch(new Topic("/news"), payload, routed -> {
+            routing.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+            }
+        });
+        final ByteBuf queuedPayload = Unpooled.copiedBuffer("Queued", UTF_8);
+        sut.dispatch(new Topic("/news"), queuedPayload, routed -> fail("Queued after the timeout, must be dropped"));
+        assertTrue(routing.await(10, TimeUnit.SECONDS));
+
+        sut.shutdown(100, TimeUnit.MILLISECONDS);
+
+        assertTrue("The routing must be interrupted", interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals("The payload of the dropped publish must be released", 1, queuedPayload.refCnt());
+    }
+}
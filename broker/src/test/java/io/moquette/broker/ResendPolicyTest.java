@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResendPolicyTest {
+
+    @Test
+    public void delayDoublesAtEachResendUpToTheMax() {
+        final ResendPolicy sut = new ResendPolicy(1_000, 5_000, 30_000, 0, 10);
+
+        assertEquals(MILLISECONDS.toNanos(5_000), sut.delayNanos(0));
+        assertEquals(MILLISECONDS.toNanos(10_000), sut.delayNanos(1));
+        assertEquals(MILLISECONDS.toNanos(20_000), sut.delayNanos(2));
+        assertEquals(MILLISECONDS.toNanos(30_000), sut.delayNanos(3));
+        assertEquals(MILLISECONDS.toNanos(30_000), sut.delayNanos(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void jitterSpreadsTheDelayAroundTheBackoff() {
+        final ResendPolicy sut = new ResendPolicy(1_000, 5_000, 60_000, 20, 10);
+
+        for (int i = 0; i < 1_000; i++) {
+            final long delay = sut.delayNanos(1);
+            assertTrue("Delay too short " + delay, delay >= MILLISECONDS.toNanos(8_000));
+            assertTrue("Delay too long " + delay, delay <= MILLISECONDS.toNanos(12_000));
+        }
+        assertEquals(MILLISECONDS.toNanos(4_000), sut.minDelayNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxDelayShorterThanTheInitialIsRejected() {
+        new ResendPolicy(1_000, 5_000, 1_000, 20, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jitterOfTheWholeDelayIsRejected() {
+        new ResendPolicy(1_000, 5_000, 60_000, 100, 10);
+    }
+}
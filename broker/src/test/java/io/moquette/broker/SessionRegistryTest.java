@@ -17,13 +17,17 @@ package io.moquette.broker;
 
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.ClientIds;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.netty.channel.Channel;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttVersion;
 import org.junit.Before;
 import org.junit.Test;
@@ -32,7 +36,11 @@ import static io.moquette.broker.NettyChannelAssertions.assertEqualsConnAck;
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.CONNECTION_ACCEPTED;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class SessionRegistryTest {
@@ -48,6 +56,7 @@ public class SessionRegistryTest {
     private static final BrokerConfiguration ALLOW_ANONYMOUS_AND_ZEROBYTE_CLIENT_ID =
         new BrokerConfiguration(true, true, false, false);
     private MemoryQueueRepository queueRepository;
+    private ISubscriptionsDirectory subscriptions;
 
     @Before
     public void setUp() {
@@ -65,7 +74,7 @@ public class SessionRegistryTest {
         IAuthenticator mockAuthenticator = new MockAuthenticator(singleton(FAKE_CLIENT_ID),
                                                                  singletonMap(TEST_USER, TEST_PWD));
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions = new CTrieSubscriptionDirectory();
         ISubscriptionsRepository subscriptionsRepository = new MemorySubscriptionsRepository();
         subscriptions.init(subscriptionsRepository);
         queueRepository = new MemoryQueueRepository();
@@ -126,4 +135,48 @@ public class SessionRegistryTest {
         Session session = sut.retrieve(FAKE_CLIENT_ID);
         assertFalse(session.isClean());
     }
+
+    @Test
+    public void testSubscriptionResolvesToTheCurrentSessionAcrossTakeover() {
+        final Subscription subscription = new Subscription(FAKE_CLIENT_ID, new Topic("a/b"), MqttQoS.AT_MOST_ONCE);
+        assertNull(sut.retrieve(subscription));
+
+        MqttConnectMessage msg = connMsg.clientId(FAKE_CLIENT_ID).build();
+        sut.bindToSession(connection, msg, FAKE_CLIENT_ID);
+        final Session first = sut.retrieve(FAKE_CLIENT_ID);
+        assertSame(first, sut.retrieve(subscription));
+
+        // Exercise, another connection with the same client id takes over the connected session
+        EmbeddedChannel anotherChannel = new EmbeddedChannel();
+        MQTTConnection anotherConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZEROBYTE_CLIENT_ID,
+                                                                anotherChannel);
+        sut.bindToSession(anotherConnection, msg, FAKE_CLIENT_ID);
+
+        // Verify
+        final Session second = sut.retrieve(FAKE_CLIENT_ID);
+        assertNotSame(first, second);
+        assertSame(second, sut.retrieve(subscription));
+
+        sut.remove(FAKE_CLIENT_ID);
+        assertNull(sut.retrieve(subscription));
+    }
+
+    @Test
+    public void testRemoveReleasesTheRefAndTheClientId() {
+        final ClientIds clientIds = subscriptions.clientIds();
+        sut.bindToSession(connection, connMsg.clientId(FAKE_CLIENT_ID).build(), FAKE_CLIENT_ID);
+        final int removedId = clientIds.idOf(FAKE_CLIENT_ID);
+
+        sut.remove(FAKE_CLIENT_ID);
+
+        assertNull(sut.retrieve(FAKE_CLIENT_ID));
+        assertEquals(ClientIds.UNKNOWN, clientIds.idOf(FAKE_CLIENT_ID));
+
+        // the freed id goes to the next client, and resolves to its session only
+        sut.bindToSession(connection, connMsg.clientId("Other").build(), "Other");
+        subscriptions.add(new Subscription("Other", new Topic("a/b"), MqttQoS.AT_MOST_ONCE));
+        final Subscription reusingTheId = subscriptions.matchQosSharpening(new Topic("a/b")).iterator().next();
+        assertEquals(removedId, reusingTheId.getClientIntId());
+        assertSame(sut.retrieve("Other"), sut.retrieve(reusingTheId));
+    }
 }
@@ -1,13 +1,17 @@
 package io.moquette.broker;
 
+import io.moquette.BrokerConstants;
+import io.moquette.broker.config.MemoryConfig;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.Test;
 
+import java.util.Properties;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -41,6 +45,88 @@ public class SessionTest {
         assertTrue("Messages should be drained", queuedMessages.isEmpty());
     }
 
+    @Test
+    public void testInflightWindowIsSizedForTheClient() {
+        final Queue<SessionRegistry.EnqueuedMessage> queuedMessages = new ConcurrentLinkedQueue<>();
+        final Session client = new Session("Subscriber", true, null, queuedMessages);
+        final Properties props = new Properties();
+        props.setProperty(BrokerConstants.INFLIGHT_WINDOW_CLIENTS_PROPERTY_NAME, "Subscriber:2");
+        BrokerConfiguration brokerConfiguration = new BrokerConfiguration(new MemoryConfig(props));
+        MQTTConnection mqttConnection = new MQTTConnection(new EmbeddedChannel(), brokerConfiguration, null, null,
+                                                           null);
+        client.markConnected();
+        client.bind(mqttConnection);
+
+        final Topic destinationTopic = new Topic("/a/b");
+        for (int i = 0; i < 3; i++) {
+            sendQoS1To(client, destinationTopic, "Hello World " + i + "!");
+        }
+
+        assertEquals(2, client.inflightWindowSize());
+        assertEquals("The 3rd message must be queued", 1, queuedMessages.size());
+    }
+
+    @Test
+    public void testPublishOnTheLoopWaitsForThePublishQueuedBeforeIt() {
+        final Session client = new Session("Subscriber", true, null, new ConcurrentLinkedQueue<>());
+        final EmbeddedChannel testChannel = new EmbeddedChannel();
+        // flushing every write
+        BrokerConfiguration immediateFlush = new BrokerConfiguration(true, true, false, true);
+        MQTTConnection mqttConnection = new MQTTConnection(testChannel, immediateFlush, null, null, null);
+        client.markConnected();
+        client.bind(mqttConnection);
+        final Topic destinationTopic = new Topic("/a/b");
+        assertSame(testChannel.eventLoop(), client.reserveQueuedPublish());
+
+        // Exercise, the event loop sends a publish before running the task queued for the first one
+        client.sendPublishOnSessionAtQos(destinationTopic, MqttQoS.AT_MOST_ONCE, payloadOf("Second"));
+        assertNull("Must wait for the publish queued before it", testChannel.readOutbound());
+        client.deliverQueuedPublish(destinationTopic, MqttQoS.AT_MOST_ONCE, payloadOf("First"), null);
+        testChannel.runPendingTasks();
+
+        // Verify
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "/a/b", "First");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "/a/b", "Second");
+    }
+
+    @Test
+    public void testRetainedPublishesGoThroughTheInflightWindow() {
+        final Queue<SessionRegistry.EnqueuedMessage> queuedMessages = new ConcurrentLinkedQueue<>();
+        final Session client = new Session("Subscriber", true, null, queuedMessages);
+        final EmbeddedChannel testChannel = new EmbeddedChannel();
+        BrokerConfiguration immediateFlush = new BrokerConfiguration(true, true, false, true);
+        MQTTConnection mqttConnection = new MQTTConnection(testChannel, immediateFlush, null, null, null);
+        client.markConnected();
+        client.bind(mqttConnection);
+
+        final Topic destinationTopic = new Topic("/a/b");
+        for (int i = 0; i < 11; i++) {
+            client.sendRetainedPublishOnSessionAtQos(destinationTopic, MqttQoS.AT_LEAST_ONCE,
+                                                     payloadOf("Retained " + i));
+        }
+        assertEquals("Inflight zone must be full, and the 11th retained message must be queued",
+            1, queuedMessages.size());
+        for (int i = 0; i < 10; i++) {
+            MqttPublishMessage publish = testChannel.readOutbound();
+            assertTrue(publish.fixedHeader().isRetain());
+            publish.release();
+        }
+
+        // Exercise
+        client.pubAckReceived(1);
+
+        // Verify
+        assertTrue("Messages should be drained", queuedMessages.isEmpty());
+        MqttPublishMessage drained = testChannel.readOutbound();
+        assertTrue("The drained publish must stay retained", drained.fixedHeader().isRetain());
+        assertEquals(11, drained.variableHeader().packetId());
+        drained.release();
+    }
+
+    private static ByteBuf payloadOf(String message) {
+        return ByteBufUtil.writeUtf8(UnpooledByteBufAllocator.DEFAULT, message);
+    }
+
     private void sendQoS1To(Session client, Topic destinationTopic, String message) {
         final ByteBuf payload = ByteBufUtil.writeUtf8(UnpooledByteBufAllocator.DEFAULT, message);
         client.sendPublishOnSessionAtQos(destinationTopic, MqttQoS.AT_LEAST_ONCE, payload);
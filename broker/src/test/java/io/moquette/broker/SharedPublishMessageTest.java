@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class SharedPublishMessageTest {
+
+    private static final String TOPIC = "/sensors/temperature/kitchen";
+
+    @Test
+    public void testEncodesAsTheMqttEncoderQos0() {
+        verifySameBytesOfMqttEncoder(MqttQoS.AT_MOST_ONCE, 0, "Hello World!");
+    }
+
+    @Test
+    public void testEncodesAsTheMqttEncoderQos1() {
+        verifySameBytesOfMqttEncoder(MqttQoS.AT_LEAST_ONCE, 42, "Hello World!");
+    }
+
+    @Test
+    public void testEncodesAsTheMqttEncoderWithMultiBytesRemainingLength() {
+        final StringBuilder longPayload = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            longPayload.append('x');
+        }
+        verifySameBytesOfMqttEncoder(MqttQoS.EXACTLY_ONCE, 65535, longPayload.toString());
+    }
+
+    @Test
+    public void testPayloadAndTopicAreSharedNotCopied() {
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello World!", UTF_8);
+        final ByteBuf encodedTopic = SharedPublishMessage.encodeTopic(TOPIC, ByteBufAllocator.DEFAULT);
+
+        final ByteBuf first = encodeShared(MqttQoS.AT_LEAST_ONCE, 1, payload.retainedDuplicate(), encodedTopic);
+        final ByteBuf second = encodeShared(MqttQoS.AT_LEAST_ONCE, 2, payload.retainedDuplicate(), encodedTopic);
+        encodedTopic.release();
+
+        // the frames still reference the original payload, a change on it is visible by both
+        payload.setByte(0, 'J');
+        assertEquals('J', first.getByte(first.writerIndex() - payload.readableBytes()));
+        assertEquals('J', second.getByte(second.writerIndex() - payload.readableBytes()));
+
+        first.release();
+        second.release();
+        assertEquals("Topic buffer must be released with the last frame", 0, encodedTopic.refCnt());
+        assertEquals(1, payload.refCnt());
+        payload.release();
+    }
+
+    @Test
+    public void testTopicIsAllocatedByTheGivenAllocator() {
+        final ByteBufAllocator allocator = new UnpooledByteBufAllocator(false);
+
+        final ByteBuf encodedTopic = SharedPublishMessage.encodeTopic(TOPIC, allocator);
+
+        assertSame(allocator, encodedTopic.alloc());
+        encodedTopic.release();
+    }
+
+    private void verifySameBytesOfMqttEncoder(MqttQoS qos, int packetId, String message) {
+        final ByteBuf payload = Unpooled.copiedBuffer(message, UTF_8);
+        final ByteBuf encodedTopic = SharedPublishMessage.encodeTopic(TOPIC, ByteBufAllocator.DEFAULT);
+
+        final ByteBuf shared = encodeShared(qos, packetId, payload.retainedDuplicate(), encodedTopic);
+        encodedTopic.release();
+
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        final MqttPublishMessage plain = MQTTConnection.notRetainedPublishWithMessageId(TOPIC, qos,
+                                                                                        payload.retainedDuplicate(),
+                                                                                        packetId);
+        channel.writeOutbound(plain);
+        final ByteBuf expected = channel.readOutbound();
+
+        assertTrue("Expected " + ByteBufUtil.hexDump(expected) + " but was " + ByteBufUtil.hexDump(shared),
+                   ByteBufUtil.equals(expected, shared));
+        expected.release();
+        shared.release();
+        payload.release();
+    }
+
+    private ByteBuf encodeShared(MqttQoS qos, int packetId, ByteBuf payload, ByteBuf encodedTopic) {
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE,
+                                                            SharedPublishMessage.Encoder.INSTANCE);
+        final MqttPublishMessage publish = MQTTConnection.notRetainedPublishWithMessageId(TOPIC, qos, payload,
+                                                                                          packetId, encodedTopic);
+        assertTrue(publish instanceof SharedPublishMessage);
+        channel.writeOutbound(publish);
+        return channel.readOutbound();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private TimingWheel sut;
+    private List<String> expired;
+
+    private final class RecordingTimeout extends TimingWheel.Timeout {
+
+        private final String name;
+
+        RecordingTimeout(String name) {
+            this.name = name;
+        }
+
+        @Override
+        void expired() {
+            expired.add(name);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sut = new TimingWheel();
+        expired = new ArrayList<>();
+    }
+
+    @Test
+    public void timeoutExpiresOnTheFirstTickAfterItsDeadline() {
+        final RecordingTimeout timeout = new RecordingTimeout("t");
+        sut.schedule(timeout, 250, TimeUnit.MILLISECONDS);
+
+        tick(2);
+        assertTrue(expired.isEmpty());
+        assertTrue(timeout.isScheduled());
+
+        tick(1);
+        assertEquals(1, expired.size());
+        assertFalse(timeout.isScheduled());
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void reschedulingMovesTheDeadline() {
+        final RecordingTimeout timeout = new RecordingTimeout("t");
+        sut.schedule(timeout, 100, TimeUnit.MILLISECONDS);
+        sut.schedule(timeout, 500, TimeUnit.MILLISECONDS);
+        assertEquals(1, sut.size());
+
+        tick(4);
+        assertTrue(expired.isEmpty());
+
+        tick(1);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void cancelledTimeoutNeverExpires() {
+        final RecordingTimeout timeout = new RecordingTimeout("t");
+        sut.schedule(timeout, 100, TimeUnit.MILLISECONDS);
+
+        sut.cancel(timeout);
+        tick(10);
+
+        assertTrue(expired.isEmpty());
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void timeoutLongerThanATurnOfTheWheelExpiresAtItsDeadline() {
+        sut.schedule(new RecordingTimeout("t"), 60, TimeUnit.SECONDS);
+
+        tick(599);
+        assertTrue(expired.isEmpty());
+
+        tick(1);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void timeoutCancelledByTheExpiryOfAnotherInTheSameTickDoesntExpire() {
+        final RecordingTimeout first = new RecordingTimeout("first");
+        final RecordingTimeout second = new RecordingTimeout("second");
+        final RecordingTimeout third = new RecordingTimeout("third");
+        final TimingWheel.Timeout canceller = new TimingWheel.Timeout() {
+            @Override
+            void expired() {
+                sut.cancel(first);
+                sut.cancel(second);
+                expired.add("canceller");
+            }
+        };
+        // the bucket is visited from the last scheduled
+        sut.schedule(third, 100, TimeUnit.MILLISECONDS);
+        sut.schedule(second, 100, TimeUnit.MILLISECONDS);
+        sut.schedule(first, 100, TimeUnit.MILLISECONDS);
+        sut.schedule(canceller, 100, TimeUnit.MILLISECONDS);
+
+        tick(1);
+
+        assertEquals(2, expired.size());
+        assertEquals("canceller", expired.get(0));
+        assertEquals("third", expired.get(1));
+    }
+
+    @Test
+    public void timeoutRescheduledByItsExpiryExpiresOnlyOncePerTick() {
+        final TimingWheel.Timeout periodic = new TimingWheel.Timeout() {
+            @Override
+            void expired() {
+                expired.add("periodic");
+                sut.schedule(this, 100, TimeUnit.MILLISECONDS);
+            }
+        };
+        sut.schedule(periodic, 100, TimeUnit.MILLISECONDS);
+
+        tick(3);
+
+        assertEquals(3, expired.size());
+        assertTrue(periodic.isScheduled());
+    }
+
+    @Test
+    public void eventLoopTicksOnlyWhileTheWheelHoldsTimeouts() throws InterruptedException {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        sut = TimingWheel.of(channel.eventLoop());
+        assertFalse("An empty wheel must not tick", sut.isTicking());
+
+        sut.schedule(new RecordingTimeout("t"), 100, TimeUnit.MILLISECONDS);
+        assertTrue(sut.isTicking());
+
+        // Exercise, the event loop runs the tick expiring the only timeout
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(TimingWheel.TICK_NANOS) + 20);
+        channel.runScheduledPendingTasks();
+
+        // Verify
+        assertEquals(1, expired.size());
+        assertFalse("The wheel left empty must stop ticking", sut.isTicking());
+
+        sut.schedule(new RecordingTimeout("again"), 100, TimeUnit.MILLISECONDS);
+        assertTrue("A new timeout must start the ticks again", sut.isTicking());
+        channel.finishAndReleaseAll();
+    }
+
+    private void tick(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            sut.tick();
+        }
+    }
+}
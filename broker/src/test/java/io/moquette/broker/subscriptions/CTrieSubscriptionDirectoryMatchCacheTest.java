@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CTrieSubscriptionDirectoryMatchCacheTest {
+
+    private static final int CACHE_SIZE = 64;
+
+    private CTrieSubscriptionDirectory sut;
+
+    @Before
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory(CACHE_SIZE);
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    @Test
+    public void testRepeatedMatchIsServedByTheCache() {
+        final Subscription sub = clientSubOnTopic("Sensor1", "a/+");
+        sut.add(sub);
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub);
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub);
+
+        final MatchCacheMetrics metrics = sut.matchCacheMetrics().get();
+        assertThat(metrics.misses()).isEqualTo(1);
+        assertThat(metrics.hits()).isEqualTo(1);
+        assertThat(metrics.hitRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void testAddInvalidatesTheCachedMatches() {
+        sut.add(new Subscription("Sensor1", asTopic("a/+"), MqttQoS.AT_MOST_ONCE));
+        sut.matchQosSharpening(asTopic("a/b"));
+
+        final Subscription higherQos = new Subscription("Sensor1", asTopic("a/b"), MqttQoS.EXACTLY_ONCE);
+        sut.add(higherQos);
+        final Subscription other = clientSubOnTopic("Sensor2", "#");
+        sut.add(other);
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactlyInAnyOrder(higherQos, other);
+        assertThat(sut.matchQosSharpening(asTopic("a/b")))
+            .extracting("requestedQos").contains(MqttQoS.EXACTLY_ONCE);
+    }
+
+    @Test
+    public void testRemoveInvalidatesTheCachedMatches() {
+        sut.add(clientSubOnTopic("Sensor1", "a/b"));
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).isNotEmpty();
+
+        sut.removeSubscription(asTopic("a/b"), "Sensor1");
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).isEmpty();
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        sut.add(clientSubOnTopic("Sensor1", "#"));
+
+        for (int i = 0; i < CACHE_SIZE * 10; i++) {
+            sut.matchQosSharpening(asTopic("a/" + i));
+        }
+
+        final MatchCacheMetrics metrics = sut.matchCacheMetrics().get();
+        assertThat(metrics.size()).isLessThanOrEqualTo(CACHE_SIZE);
+        assertThat(metrics.evictions()).isGreaterThanOrEqualTo(CACHE_SIZE * 9);
+    }
+
+    @Test
+    public void testNoMetricsWhenCacheDisabled() {
+        final CTrieSubscriptionDirectory uncached = new CTrieSubscriptionDirectory();
+        uncached.init(new MemorySubscriptionsRepository());
+
+        assertThat(uncached.matchCacheMetrics().isPresent()).isFalse();
+    }
+}
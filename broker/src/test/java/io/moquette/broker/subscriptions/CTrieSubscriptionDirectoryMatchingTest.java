@@ -22,7 +22,12 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
 
 import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
@@ -268,4 +273,171 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         // client1SubQoS2 should override client1SubQoS0
         assertThat(client1Sub.getRequestedQos()).isEqualTo(client1SubQoS2.getRequestedQos());
     }
+
+    @Test
+    public void testStreamingMatchVisitsEveryClientOnceWithHigherQos() {
+        Subscription genericSub = new Subscription("Sensor1", asTopic("a/+"), MqttQoS.EXACTLY_ONCE);
+        sut.add(genericSub);
+        sut.add(new Subscription("Sensor1", asTopic("a/b"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("Sensor1", asTopic("#"), MqttQoS.AT_LEAST_ONCE));
+        Subscription otherClientSub = new Subscription("Sensor2", asTopic("a/b"), MqttQoS.AT_LEAST_ONCE);
+        sut.add(otherClientSub);
+
+        //Exercise
+        final List<Subscription> visited = new ArrayList<>();
+        sut.matchQosSharpening(asTopic("a/b"), visited::add);
+
+        // Verify
+        assertThat(visited).hasSize(2);
+        assertThat(visited).extracting("requestedQos").containsOnly(MqttQoS.EXACTLY_ONCE, MqttQoS.AT_LEAST_ONCE);
+        assertThat(visited).contains(genericSub, otherClientSub);
+        assertThat(visited).containsOnlyElementsOf(sut.matchQosSharpening(asTopic("a/b")));
+    }
+
+    @Test
+    public void testStreamingMatchInvokedFromTheConsumer() {
+        sut.add(clientSubOnTopic("Sensor1", "a/b"));
+        sut.add(clientSubOnTopic("Sensor2", "c/d"));
+
+        //Exercise
+        final List<Subscription> outer = new ArrayList<>();
+        final List<Subscription> inner = new ArrayList<>();
+        sut.matchQosSharpening(asTopic("a/b"), sub -> {
+            outer.add(sub);
+            sut.matchQosSharpening(asTopic("c/d"), inner::add);
+        });
+
+        // Verify
+        assertThat(outer).extracting("clientId").containsExactly("Sensor1");
+        assertThat(inner).extracting("clientId").containsExactly("Sensor2");
+    }
+
+    @Test
+    public void testLiteralFilterMatchesTopicsWithSameTokens() {
+        // "a/" and "a//" are parsed to the same tokens
+        Subscription trailingSlashSub = clientSubOnTopic("Sensor1", "a/");
+        sut.add(trailingSlashSub);
+
+        assertThat(sut.matchWithoutQosSharpening(asTopic("a//"))).containsExactly(trailingSlashSub);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("a"))).isEmpty();
+
+        sut.removeSubscription(asTopic("a//"), "Sensor1");
+        assertThat(sut.matchWithoutQosSharpening(asTopic("a/"))).isEmpty();
+    }
+
+    @Test
+    public void testSplitLiteralAndWildcardFiltersMatchesLikeTheSingleTrie() {
+        final String[] levels = {"a", "b", "c", "+", "#", ""};
+        final MqttQoS[] qos = {MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE};
+        final Random random = new Random(42);
+        final CTrie reference = new CTrie();
+        for (int i = 0; i < 2000; i++) {
+            final Topic filter = asTopic(randomTopic(random, levels));
+            if (!filter.isValid()) {
+                continue;
+            }
+            final Subscription sub = new Subscription("client" + random.nextInt(50), filter,
+                                                      qos[random.nextInt(qos.length)]);
+            sut.add(sub);
+            reference.addToTree(sub);
+            if (random.nextInt(5) == 0) {
+                sut.removeSubscription(filter, sub.clientId);
+                reference.removeFromTree(filter, sub.clientId);
+            }
+        }
+
+        final String[] topicLevels = {"a", "b", "c", ""};
+        for (int i = 0; i < 500; i++) {
+            final String topicName = randomTopic(random, topicLevels);
+            final Map<String, MqttQoS> expected = sharpen(reference.recursiveMatch(asTopic(topicName)));
+
+            final Map<String, MqttQoS> actual = new HashMap<>();
+            sut.matchQosSharpening(asTopic(topicName), sub -> actual.put(sub.clientId, sub.getRequestedQos()));
+
+            // with many subscriptions of same QoS the selected one is arbitrary, so compare the qos by client
+            assertThat(actual).as("matches of " + topicName).isEqualTo(expected);
+        }
+    }
+
+    private static String randomTopic(Random random, String[] levels) {
+        final int depth = 1 + random.nextInt(4);
+        final StringBuilder topic = new StringBuilder(levels[random.nextInt(levels.length)]);
+        for (int i = 1; i < depth; i++) {
+            topic.append('/').append(levels[random.nextInt(levels.length)]);
+        }
+        return topic.toString();
+    }
+
+    private static Map<String, MqttQoS> sharpen(Set<Subscription> matched) {
+        final Map<String, MqttQoS> qosByClient = new HashMap<>();
+        for (Subscription sub : matched) {
+            qosByClient.merge(sub.clientId, sub.getRequestedQos(),
+                (existing, qos) -> existing.value() >= qos.value() ? existing : qos);
+        }
+        return qosByClient;
+    }
+
+    @Test
+    public void testSharpeningOnManyClientsMatchedTwice() {
+        for (int i = 0; i < 2000; i++) {
+            sut.add(new Subscription("Client" + i, asTopic("a/+"), MqttQoS.AT_MOST_ONCE));
+            if (i % 3 == 0) {
+                sut.add(new Subscription("Client" + i, asTopic("a/#"), MqttQoS.EXACTLY_ONCE));
+            }
+        }
+
+        final Map<String, MqttQoS> qosByClient = new HashMap<>();
+        sut.matchQosSharpening(asTopic("a/b"), sub -> {
+            assertThat(qosByClient.put(sub.clientId, sub.getRequestedQos())).isNull();
+        });
+
+        assertEquals(2000, qosByClient.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i % 3 == 0 ? MqttQoS.EXACTLY_ONCE : MqttQoS.AT_MOST_ONCE, qosByClient.get("Client" + i));
+        }
+        // the scratch is reused clean by the next match
+        assertThat(sut.matchQosSharpening(asTopic("a"))).extracting("clientId").hasSize(667);
+    }
+
+    @Test
+    public void testMetricsCountLiteralAndWildcardSubscriptions() {
+        sut.add(clientSubOnTopic("Sensor1", "a/b"));
+        sut.add(clientSubOnTopic("Sensor2", "a/b"));
+        sut.add(clientSubOnTopic("Sensor1", "a/+"));
+
+        SubscriptionsMetrics metrics = sut.metrics();
+        assertThat(sut.size()).isEqualTo(3);
+        assertThat(metrics.subscriptions()).isEqualTo(3);
+        assertThat(metrics.wildcardSubscriptions()).isEqualTo(1);
+        // a, + in the trie and one literal filter, the roots of the trie shards are not counted
+        assertThat(metrics.nodes()).isEqualTo(3);
+
+        sut.removeSubscription(asTopic("a/b"), "Sensor1");
+        sut.removeSubscription(asTopic("a/b"), "Sensor2");
+
+        metrics = sut.metrics();
+        assertThat(metrics.subscriptions()).isEqualTo(1);
+        assertThat(metrics.nodes()).isEqualTo(2);
+    }
+
+    @Test
+    public void testClientIdIsReleasedWithTheLastSubscriptionOfTheClient() {
+        final ClientIds clientIds = sut.clientIds();
+        sut.add(new Subscription("Sensor1", asTopic("a/b"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("Sensor1", asTopic("a/b"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("Sensor1", asTopic("a/+"), MqttQoS.AT_MOST_ONCE));
+        final int sensor1 = clientIds.idOf("Sensor1");
+
+        sut.removeSubscription(asTopic("a/b"), "Sensor1");
+        sut.removeSubscription(asTopic("a/b"), "Sensor1");
+        assertEquals(sensor1, clientIds.idOf("Sensor1"));
+
+        sut.removeSubscription(asTopic("a/+"), "Sensor1");
+        assertEquals(ClientIds.UNKNOWN, clientIds.idOf("Sensor1"));
+
+        // the freed id is reused by the next client
+        sut.add(new Subscription("Sensor2", asTopic("a/#"), MqttQoS.AT_MOST_ONCE));
+        assertEquals(sensor1, clientIds.idOf("Sensor2"));
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).extracting("clientId").containsOnly("Sensor2");
+    }
 }
@@ -20,11 +20,15 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
 import static io.moquette.broker.subscriptions.Topic.asTopic;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -224,6 +228,35 @@ public class CTrieTest {
         assertThat(matchingSubs).contains(expectedMatchingsub);
     }
 
+    @Test
+    public void testMatchDeepTopicWithWildcardsAtDifferentLevels() {
+        sut.addToTree(clientSubOnTopic("Room", "org/site/+/floor1/room/#"));
+        sut.addToTree(clientSubOnTopic("Sensor", "org/+/building/+/room/device/temp"));
+        sut.addToTree(clientSubOnTopic("Other", "org/site/building/floor2/room/device/temp"));
+
+        //Exercise
+        final Set<Subscription> matchingSubs = sut.recursiveMatch(asTopic("org/site/building/floor1/room/device/temp"));
+
+        //Verify
+        assertThat(matchingSubs).containsOnly(clientSubOnTopic("Room", "org/site/+/floor1/room/#"),
+                                              clientSubOnTopic("Sensor", "org/+/building/+/room/device/temp"));
+    }
+
+    @Test
+    public void testMatchOnWideLevelSelectsOnlyTheMatchingSibling() {
+        for (int i = 0; i < 1000; i++) {
+            sut.addToTree(clientSubOnTopic("Device" + i, "fleet/device" + i + "/telemetry"));
+        }
+        sut.addToTree(clientSubOnTopic("Monitor", "fleet/+/telemetry"));
+
+        //Exercise
+        final Set<Subscription> matchingSubs = sut.recursiveMatch(asTopic("fleet/device42/telemetry"));
+
+        //Verify
+        assertThat(matchingSubs).containsOnly(clientSubOnTopic("Device42", "fleet/device42/telemetry"),
+                                              clientSubOnTopic("Monitor", "fleet/+/telemetry"));
+    }
+
     @Test
     public void testRemovalInnerTopicOffRootSameClient() {
         sut.addToTree(clientSubOnTopic("TempSensor1", "temp"));
@@ -301,4 +334,147 @@ public class CTrieTest {
         assertThat(matchingSubs3).contains(expectedMatchingsub1);
         assertThat(matchingSubs4).doesNotContain(expectedMatchingsub2);
     }
+
+    @Test
+    public void testBulkLoadMatchesLikeOneByOneInsertion() {
+        final List<Subscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            subscriptions.add(clientSubOnTopic("Device" + i, "fleet/device" + (i % 50) + "/telemetry"));
+            subscriptions.add(clientSubOnTopic("Device" + i, "site" + (i % 7) + "/+/alarm/#"));
+        }
+        subscriptions.add(clientSubOnTopic("Monitor", "#"));
+        subscriptions.add(clientSubOnTopic("Monitor", "/"));
+        final CTrie oneByOne = new CTrie();
+        subscriptions.forEach(oneByOne::addToTree);
+
+        //Exercise
+        sut.bulkLoad(subscriptions, true);
+
+        //Verify
+        assertThat(sut.size()).isEqualTo(oneByOne.size());
+        final SubscriptionsMetrics loaded = sut.computeMetrics();
+        final SubscriptionsMetrics inserted = oneByOne.computeMetrics();
+        assertThat(loaded.subscriptions()).isEqualTo(inserted.subscriptions());
+        assertThat(loaded.wildcardSubscriptions()).isEqualTo(inserted.wildcardSubscriptions());
+        assertThat(loaded.nodes()).isEqualTo(inserted.nodes());
+        for (String topic : Arrays.asList("fleet/device7/telemetry", "site3/x/alarm", "site3/x/alarm/fire", "/",
+                                          "fleet", "site1/alarm")) {
+            assertThat(sut.recursiveMatch(asTopic(topic))).as(topic)
+                .isEqualTo(oneByOne.recursiveMatch(asTopic(topic)));
+        }
+    }
+
+    @Test
+    public void testBulkLoadKeepsTheHigherQosForSameClientAndFilter() {
+        final Subscription qos0 = new Subscription("Sensor", asTopic("a/+"), MqttQoS.AT_MOST_ONCE);
+        final Subscription qos2 = new Subscription("Sensor", asTopic("a/+"), MqttQoS.EXACTLY_ONCE);
+
+        //Exercise
+        sut.bulkLoad(Arrays.asList(qos2, qos0), false);
+
+        //Verify
+        final Set<Subscription> matching = sut.recursiveMatch(asTopic("a/b"));
+        assertThat(matching).hasSize(1);
+        assertThat(matching.iterator().next().getRequestedQos()).isEqualTo(MqttQoS.EXACTLY_ONCE);
+    }
+
+    @Test
+    public void testBulkLoadOnNotEmptyTrieMergesTheSubscriptions() {
+        sut.addToTree(clientSubOnTopic("Existing", "a/b"));
+
+        //Exercise
+        sut.bulkLoad(Arrays.asList(clientSubOnTopic("Loaded", "a/b"), clientSubOnTopic("Loaded", "c")), false);
+
+        //Verify
+        assertThat(sut.recursiveMatch(asTopic("a/b"))).extracting("clientId").containsOnly("Existing", "Loaded");
+        assertThat(sut.recursiveMatch(asTopic("c"))).extracting("clientId").containsOnly("Loaded");
+    }
+
+    @Test
+    public void testMetricsFollowInsertionsAndRemovals() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b/c"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "a/b/c"));
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/+/c"));
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b/#"));
+
+        SubscriptionsMetrics metrics = sut.computeMetrics();
+        assertThat(metrics.subscriptions()).isEqualTo(4);
+        assertThat(metrics.wildcardSubscriptions()).isEqualTo(2);
+        // root, a, b, c, +, c, #
+        assertThat(metrics.nodes()).isEqualTo(7);
+        assertThat(metrics.tombstones()).isEqualTo(0);
+
+        //Exercise
+        sut.removeFromTree(asTopic("a/b/c"), "Sensor2");
+        sut.removeFromTree(asTopic("a/b/#"), "Sensor1");
+        sut.removeFromTree(asTopic("a/b/#"), "Sensor1");
+
+        //Verify
+        metrics = sut.computeMetrics();
+        assertThat(sut.size()).isEqualTo(2);
+        assertThat(metrics.subscriptions()).isEqualTo(2);
+        assertThat(metrics.wildcardSubscriptions()).isEqualTo(1);
+        assertThat(metrics.nodes()).isEqualTo(6);
+        assertThat(metrics.tombstones()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMetricsDoNotCountResubscriptions() {
+        sut.addToTree(new Subscription("Sensor1", asTopic("a/+"), MqttQoS.AT_MOST_ONCE));
+        sut.addToTree(new Subscription("Sensor1", asTopic("a/+"), MqttQoS.EXACTLY_ONCE));
+
+        assertThat(sut.computeMetrics().subscriptions()).isEqualTo(1);
+        assertThat(sut.computeMetrics().wildcardSubscriptions()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCompactPrunesTheBranchesLeftEmpty() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "a/b/c"));
+        sut.addToTree(clientSubOnTopic("Sensor3", "x"));
+        sut.removeFromTree(asTopic("a/b"), "Sensor1");
+        sut.removeFromTree(asTopic("a/b/c"), "Sensor2");
+        // root, a, b, x: the removals leave a and b without subscriptions
+        assertThat(sut.computeMetrics().nodes()).isEqualTo(4);
+
+        //Exercise
+        final int reclaimed = sut.compact(Integer.MAX_VALUE);
+
+        //Verify
+        assertThat(reclaimed).isEqualTo(2);
+        final SubscriptionsMetrics metrics = sut.computeMetrics();
+        assertThat(metrics.nodes()).isEqualTo(2);
+        assertThat(metrics.tombstones()).isEqualTo(0);
+        assertThat(sut.dumpTree()).doesNotContain("a");
+        assertThat(sut.recursiveMatch(asTopic("x"))).extracting("clientId").containsOnly("Sensor3");
+        assertEquals(0, sut.compact(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCompactStopsAtTheMaxReclaimedNodes() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "a/b/c"));
+        sut.removeFromTree(asTopic("a/b"), "Sensor1");
+        sut.removeFromTree(asTopic("a/b/c"), "Sensor2");
+
+        assertEquals(1, sut.compact(1));
+        assertEquals(1, sut.compact(1));
+        assertEquals(0, sut.compact(1));
+        assertThat(sut.computeMetrics().nodes()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSubscribeOnCompactedBranch() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "a/b/c"));
+        sut.removeFromTree(asTopic("a/b"), "Sensor1");
+        sut.removeFromTree(asTopic("a/b/c"), "Sensor2");
+        sut.compact(Integer.MAX_VALUE);
+
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b/c"));
+
+        assertThat(sut.recursiveMatch(asTopic("a/b/c"))).extracting("clientId").containsOnly("Sensor1");
+        // root, a, b, c
+        assertThat(sut.computeMetrics().nodes()).isEqualTo(4);
+    }
 }
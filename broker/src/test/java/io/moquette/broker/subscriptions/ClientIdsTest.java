@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClientIdsTest {
+
+    private final ClientIds sut = new ClientIds();
+
+    @Test
+    public void testIdIsFreedWithTheLastReference() {
+        final int id = sut.acquire("client");
+        assertEquals(id, sut.acquire("client"));
+
+        sut.release("client");
+        assertEquals(id, sut.idOf("client"));
+
+        sut.release("client");
+        assertEquals(ClientIds.UNKNOWN, sut.idOf("client"));
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void testFreedIdsAreReusedOldestFirst() {
+        final int first = sut.acquire("first");
+        final int second = sut.acquire("second");
+        sut.acquire("third");
+        sut.release("first");
+        sut.release("second");
+
+        assertEquals(first, sut.acquire("fourth"));
+        assertEquals(second, sut.acquire("fifth"));
+        assertEquals(3, sut.size());
+    }
+
+    @Test
+    public void testReleaseOfUnknownClientIsNoop() {
+        final int id = sut.acquire("client");
+
+        sut.release("never-seen-client-id");
+
+        assertEquals(id, sut.idOf("client"));
+        assertEquals(1, sut.size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PersistentHashMapTest {
+
+    /**
+     * Key with a forced hash, to exercise the collision nodes.
+     */
+    private static final class CollidingKey {
+
+        private final String name;
+        private final int hash;
+
+        CollidingKey(String name, int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Test
+    public void testPutAndGetManyKeys() {
+        PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 10_000; i++) {
+            map = map.put("client" + i, i);
+        }
+
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(Integer.valueOf(i), map.get("client" + i));
+        }
+        assertNull(map.get("missing"));
+        assertThat(map.values()).hasSize(10_000);
+    }
+
+    @Test
+    public void testUpdatesLeaveThePreviousVersionUntouched() {
+        PersistentHashMap<String, Integer> original = PersistentHashMap.empty();
+        for (int i = 0; i < 100; i++) {
+            original = original.put("k" + i, i);
+        }
+
+        final PersistentHashMap<String, Integer> updated = original.put("k0", -1).put("new", 100).remove("k1");
+
+        assertEquals(Integer.valueOf(0), original.get("k0"));
+        assertNull(original.get("new"));
+        assertEquals(Integer.valueOf(1), original.get("k1"));
+        assertEquals(100, original.size());
+
+        assertEquals(Integer.valueOf(-1), updated.get("k0"));
+        assertEquals(Integer.valueOf(100), updated.get("new"));
+        assertNull(updated.get("k1"));
+        assertEquals(100, updated.size());
+    }
+
+    @Test
+    public void testNoopUpdatesReturnSameInstance() {
+        final Integer value = 42;
+        final PersistentHashMap<String, Integer> map = PersistentHashMap.<String, Integer>empty().put("k", value);
+
+        assertSame(map, map.put("k", value));
+        assertSame(map, map.remove("other"));
+    }
+
+    @Test
+    public void testRemoveAllKeysGivesEmptyMap() {
+        PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put("k" + i, i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            map = map.remove("k" + i);
+            assertEquals(999 - i, map.size());
+        }
+
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.values()).isEmpty();
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        final CollidingKey first = new CollidingKey("first", 7);
+        final CollidingKey second = new CollidingKey("second", 7);
+        final CollidingKey other = new CollidingKey("other", 7 + (1 << 20));
+
+        PersistentHashMap<CollidingKey, String> map = PersistentHashMap.empty();
+        map = map.put(first, "1").put(second, "2").put(other, "3");
+
+        assertEquals(3, map.size());
+        assertEquals("1", map.get(first));
+        assertEquals("2", map.get(second));
+        assertEquals("3", map.get(other));
+        assertThat(map.values()).containsOnly("1", "2", "3");
+
+        map = map.remove(first);
+        assertNull(map.get(first));
+        assertEquals("2", map.get(second));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testForEachVisitsAllEntries() {
+        PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 500; i++) {
+            map = map.put("k" + i, i);
+        }
+
+        final Map<String, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+
+        assertEquals(500, visited.size());
+        assertEquals(Integer.valueOf(123), visited.get("k123"));
+    }
+}
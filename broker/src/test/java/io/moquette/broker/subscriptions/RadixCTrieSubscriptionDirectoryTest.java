@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.broker.ISubscriptionsRepository;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+public class RadixCTrieSubscriptionDirectoryTest {
+
+    private RadixCTrieSubscriptionDirectory sut;
+    private ISubscriptionsRepository subscriptionsRepository;
+
+    @Before
+    public void setUp() {
+        sut = new RadixCTrieSubscriptionDirectory();
+        subscriptionsRepository = new MemorySubscriptionsRepository();
+        sut.init(subscriptionsRepository);
+    }
+
+    @Test
+    public void testMatchQosSharpeningSelectsHigherQosPerClient() {
+        final Subscription lowQos = new Subscription("Sensor1", asTopic("org/site/+/floor"), MqttQoS.AT_MOST_ONCE);
+        final Subscription highQos = new Subscription("Sensor1", asTopic("org/site/#"), MqttQoS.EXACTLY_ONCE);
+        final Subscription other = new Subscription("Sensor2", asTopic("org/site/building/floor"),
+                                                    MqttQoS.AT_LEAST_ONCE);
+        sut.add(lowQos);
+        sut.add(highQos);
+        sut.add(other);
+
+        assertThat(sut.matchQosSharpening(asTopic("org/site/building/floor"))).containsOnly(highQos, other);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("org/site/building/floor")))
+            .containsOnly(lowQos, highQos, other);
+    }
+
+    @Test
+    public void testRemoveSubscription() {
+        sut.add(new Subscription("Sensor1", asTopic("org/site/building"), MqttQoS.AT_MOST_ONCE));
+
+        sut.removeSubscription(asTopic("org/site/building"), "Sensor1");
+
+        assertThat(sut.matchQosSharpening(asTopic("org/site/building"))).isEmpty();
+        assertEquals(0, sut.size());
+        assertThat(subscriptionsRepository.listAllSubscriptions()).isEmpty();
+    }
+
+    @Test
+    public void testInitReloadsStoredSubscriptions() {
+        sut.add(new Subscription("Sensor1", asTopic("org/site/building"), MqttQoS.AT_LEAST_ONCE));
+        sut.add(new Subscription("Sensor2", asTopic("org/+/building"), MqttQoS.AT_LEAST_ONCE));
+
+        final RadixCTrieSubscriptionDirectory reloaded = new RadixCTrieSubscriptionDirectory();
+        reloaded.init(subscriptionsRepository);
+
+        assertEquals(2, reloaded.size());
+        assertThat(reloaded.matchQosSharpening(asTopic("org/site/building"))).extracting("clientId")
+            .containsOnly("Sensor1", "Sensor2");
+    }
+}
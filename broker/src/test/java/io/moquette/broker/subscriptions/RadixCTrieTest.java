@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+public class RadixCTrieTest {
+
+    private RadixCTrie sut;
+
+    @Before
+    public void setUp() {
+        sut = new RadixCTrie();
+    }
+
+    @Test
+    public void testLiteralChainIsCompressedInOneNode() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "org/site/building/floor/room/device/sensor"));
+
+        assertThat(sut.recursiveMatch(asTopic("org/site/building/floor/room/device/sensor")))
+            .extracting("clientId").containsOnly("Sensor1");
+        assertThat(sut.recursiveMatch(asTopic("org/site/building/floor/room/device"))).isEmpty();
+        assertThat(sut.recursiveMatch(asTopic("org/site/building/floor/room/device/sensor/more"))).isEmpty();
+        // root and the compressed path
+        assertEquals(2, sut.computeMetrics().nodes());
+    }
+
+    @Test
+    public void testDeepSparseHierarchyTakesFewerNodesThanTheCTrie() {
+        final CTrie ctrie = new CTrie();
+        for (int room = 0; room < 50; room++) {
+            for (int sensor = 0; sensor < 2; sensor++) {
+                final Subscription sub = clientSubOnTopic("Client" + room,
+                    "org/site/building/floor/room" + room + "/device/sensor" + sensor);
+                ctrie.addToTree(sub);
+                sut.addToTree(sub);
+            }
+        }
+
+        // CTrie: root, 4 shared levels, then room, device and 2 sensors per room
+        assertEquals(1 + 4 + 50 * 4, ctrie.computeMetrics().nodes());
+        // radix: root, the shared path, then room/device and 2 sensors per room
+        assertEquals(1 + 1 + 50 * 3, sut.computeMetrics().nodes());
+    }
+
+    @Test
+    public void testDivergingFilterSplitsThePath() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "org/site/building/floor"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "org/site/other"));
+        sut.addToTree(clientSubOnTopic("Sensor3", "org/site"));
+
+        assertThat(sut.recursiveMatch(asTopic("org/site/building/floor"))).extracting("clientId")
+            .containsOnly("Sensor1");
+        assertThat(sut.recursiveMatch(asTopic("org/site/other"))).extracting("clientId").containsOnly("Sensor2");
+        assertThat(sut.recursiveMatch(asTopic("org/site"))).extracting("clientId").containsOnly("Sensor3");
+        assertThat(sut.recursiveMatch(asTopic("org/site/building"))).isEmpty();
+        // root, org/site, building/floor, other
+        assertEquals(4, sut.computeMetrics().nodes());
+    }
+
+    @Test
+    public void testWildcardsAreNodesOnTheirOwn() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "org/+/building/#"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "org/site/building/floor"));
+
+        assertThat(sut.recursiveMatch(asTopic("org/site/building/floor"))).extracting("clientId")
+            .containsOnly("Sensor1", "Sensor2");
+        assertThat(sut.recursiveMatch(asTopic("org/any/building"))).extracting("clientId").containsOnly("Sensor1");
+        assertThat(sut.recursiveMatch(asTopic("org/any/other"))).isEmpty();
+    }
+
+    @Test
+    public void testRemoveLastSubscriptionPrunesTheLeaf() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "org/site/building"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "org/site/other"));
+
+        sut.removeFromTree(asTopic("org/site/building"), "Sensor1");
+
+        assertThat(sut.recursiveMatch(asTopic("org/site/building"))).isEmpty();
+        assertThat(sut.recursiveMatch(asTopic("org/site/other"))).extracting("clientId").containsOnly("Sensor2");
+        final SubscriptionsMetrics metrics = sut.computeMetrics();
+        assertEquals(1, metrics.subscriptions());
+        assertEquals(0, metrics.tombstones());
+        // root, org/site, other
+        assertEquals(3, metrics.nodes());
+    }
+
+    @Test
+    public void testRemoveOfMissingFilterIsNoop() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "org/site/building"));
+
+        sut.removeFromTree(asTopic("org/site"), "Sensor1");
+        sut.removeFromTree(asTopic("org/site/building"), "Sensor2");
+
+        assertEquals(1, sut.size());
+        assertThat(sut.recursiveMatch(asTopic("org/site/building"))).hasSize(1);
+    }
+
+    @Test
+    public void testCompactPrunesTheBranchesLeftEmpty() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/b"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "a/b/c/d"));
+        sut.removeFromTree(asTopic("a/b"), "Sensor1");
+        sut.removeFromTree(asTopic("a/b/c/d"), "Sensor2");
+
+        assertEquals(1, sut.compact(Integer.MAX_VALUE));
+        assertEquals(1, sut.computeMetrics().nodes());
+        assertEquals(0, sut.compact(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testMatchesLikeTheCTrie() {
+        final String[] levels = {"a", "b", "c", "+", "#", ""};
+        final MqttQoS[] qos = {MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE};
+        final Random random = new Random(7);
+        final CTrie reference = new CTrie();
+        for (int i = 0; i < 3000; i++) {
+            final Topic filter = asTopic(randomTopic(random, levels, 6));
+            if (!filter.isValid()) {
+                continue;
+            }
+            final Subscription sub = new Subscription("client" + random.nextInt(50), filter,
+                                                      qos[random.nextInt(qos.length)]);
+            sut.addToTree(sub);
+            reference.addToTree(sub);
+            if (random.nextInt(4) == 0) {
+                sut.removeFromTree(filter, sub.clientId);
+                reference.removeFromTree(filter, sub.clientId);
+            }
+        }
+
+        assertEquals(reference.size(), sut.size());
+        final String[] topicLevels = {"a", "b", "c", ""};
+        for (int i = 0; i < 1000; i++) {
+            final String topicName = randomTopic(random, topicLevels, 6);
+            assertThat(sut.recursiveMatch(asTopic(topicName))).as("matches of " + topicName)
+                .isEqualTo(reference.recursiveMatch(asTopic(topicName)));
+        }
+    }
+
+    @Test
+    public void testConcurrentSubscribesSplittingTheSamePath() throws Exception {
+        final int threads = 8;
+        final int perThread = 500;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        // every thread diverges at a different depth of the same long path
+                        final String filter = "org/site/building/floor/room".substring(0, 3 + thread % 5 * 5)
+                            + "/t" + thread + "/d" + i;
+                        sut.addToTree(clientSubOnTopic("Client" + thread, filter));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(threads * perThread, sut.size());
+        for (int t = 0; t < threads; t++) {
+            final String topic = "org/site/building/floor/room".substring(0, 3 + t % 5 * 5) + "/t" + t + "/d42";
+            assertThat(sut.recursiveMatch(asTopic(topic))).extracting("clientId").containsOnly("Client" + t);
+        }
+    }
+
+    @Test
+    public void testSubscribeRacingASplitOfItsPathIsNotMovedToTheShorterFilter() {
+        final Topic filter = interleavingTopic("r", "a", "b", "c");
+        sut.addToTree(new Subscription("Seed", filter, null));
+        // the seed labels the node with its tokens, the walk of the next subscribe compares them
+        splitWhileComparing(filter);
+
+        sut.addToTree(new Subscription("Joining", interleavingTopic("r", "a", "b", "c"), null));
+
+        assertThat(sut.recursiveMatch(interleavingTopic("r", "a", "b", "c"))).extracting("clientId")
+            .containsOnly("Seed", "Joining");
+        assertThat(sut.recursiveMatch(interleavingTopic("r", "a"))).isEmpty();
+        assertThat(sut.recursiveMatch(interleavingTopic("r", "a", "x"))).extracting("clientId")
+            .containsOnly("Splitter");
+    }
+
+    @Test
+    public void testUnsubscribeRacingASplitOfItsPathIsNotLost() {
+        final Topic filter = interleavingTopic("r", "a", "b", "c");
+        sut.addToTree(new Subscription("Seed", filter, null));
+        sut.addToTree(new Subscription("Leaving", interleavingTopic("r", "a", "b", "c"), null));
+        splitWhileComparing(filter);
+
+        sut.removeFromTree(interleavingTopic("r", "a", "b", "c"), "Leaving");
+
+        assertThat(sut.recursiveMatch(interleavingTopic("r", "a", "b", "c"))).extracting("clientId")
+            .containsOnly("Seed");
+        assertEquals(2, sut.size());
+    }
+
+    /**
+     * Split the node labelled with the filter, the first time its last token is compared by a walk of the tree.
+     */
+    private void splitWhileComparing(Topic filter) {
+        final List<Token> tokens = filter.getTokens();
+        ((InterleavingToken) tokens.get(tokens.size() - 1)).onCompare =
+            () -> sut.addToTree(new Subscription("Splitter", interleavingTopic("r", "a", "x"), null));
+    }
+
+    private static Topic interleavingTopic(String... names) {
+        final List<Token> tokens = new ArrayList<>();
+        for (String name : names) {
+            tokens.add(new InterleavingToken(name));
+        }
+        return new Topic(tokens);
+    }
+
+    /**
+     * Token running a task the first time it's compared, to interleave a concurrent change in the middle of a walk
+     * of the tree, between the read of a node and the next step.
+     */
+    private static final class InterleavingToken extends Token {
+
+        private Runnable onCompare;
+
+        InterleavingToken(String name) {
+            super(name);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            final Runnable task = onCompare;
+            onCompare = null;
+            if (task != null) {
+                task.run();
+            }
+            return super.equals(obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return super.hashCode();
+        }
+    }
+
+    private static String randomTopic(Random random, String[] levels, int maxDepth) {
+        final int depth = 1 + random.nextInt(maxDepth);
+        final StringBuilder topic = new StringBuilder(levels[random.nextInt(levels.length)]);
+        for (int i = 1; i < depth; i++) {
+            topic.append('/').append(levels[random.nextInt(levels.length)]);
+        }
+        return topic.toString();
+    }
+}
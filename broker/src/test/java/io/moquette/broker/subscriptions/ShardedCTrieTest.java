@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+public class ShardedCTrieTest {
+
+    private ShardedCTrie sut;
+
+    @Before
+    public void setUp() {
+        sut = new ShardedCTrie(8);
+    }
+
+    @Test
+    public void testShardsCountIsRoundedToPowerOfTwo() {
+        assertEquals(1, new ShardedCTrie(1).shardsCount());
+        assertEquals(8, new ShardedCTrie(5).shardsCount());
+        assertEquals(8, new ShardedCTrie(8).shardsCount());
+    }
+
+    @Test
+    public void testTopLevelWildcardsMatchEveryShard() {
+        sut.addToTree(clientSubOnTopic("All", "#"));
+        sut.addToTree(clientSubOnTopic("AnyFirst", "+/b"));
+        for (int i = 0; i < 100; i++) {
+            sut.addToTree(clientSubOnTopic("Client" + i, "top" + i + "/+"));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(sut.recursiveMatch(asTopic("top" + i + "/b")))
+                .extracting("clientId").containsOnly("All", "AnyFirst", "Client" + i);
+        }
+        assertThat(sut.recursiveMatch(asTopic("other"))).extracting("clientId").containsOnly("All");
+        assertEquals(102, sut.size());
+    }
+
+    @Test
+    public void testRemoveFromTheOwningShard() {
+        sut.addToTree(clientSubOnTopic("Sensor1", "a/+"));
+        sut.addToTree(clientSubOnTopic("Sensor1", "+/b"));
+
+        sut.removeFromTree(asTopic("a/+"), "Sensor1");
+        sut.removeFromTree(asTopic("+/b"), "Sensor1");
+
+        assertThat(sut.recursiveMatch(asTopic("a/b"))).isEmpty();
+        assertEquals(0, sut.size());
+        assertEquals(0, sut.computeMetrics().tombstones());
+    }
+
+    @Test
+    public void testBulkLoadDistributesOnShards() {
+        sut.bulkLoad(Arrays.asList(clientSubOnTopic("Sensor1", "a/+"), clientSubOnTopic("Sensor2", "b/#"),
+                                   clientSubOnTopic("Sensor3", "#")), false);
+
+        assertThat(sut.recursiveMatch(asTopic("a/x"))).extracting("clientId").containsOnly("Sensor1", "Sensor3");
+        assertThat(sut.recursiveMatch(asTopic("b/x/y"))).extracting("clientId").containsOnly("Sensor2", "Sensor3");
+        // a, +, b, # and the top level #
+        assertEquals(5, sut.computeMetrics().nodes());
+    }
+
+    @Test
+    public void testCompactBudgetIsSharedAmongShards() {
+        for (int i = 0; i < 10; i++) {
+            sut.addToTree(clientSubOnTopic("Sensor1", "top" + i + "/b"));
+            sut.addToTree(clientSubOnTopic("Sensor1", "top" + i + "/b/c"));
+            sut.removeFromTree(asTopic("top" + i + "/b"), "Sensor1");
+            sut.removeFromTree(asTopic("top" + i + "/b/c"), "Sensor1");
+        }
+
+        assertEquals(15, sut.compact(15));
+        assertEquals(5, sut.compact(15));
+        assertEquals(0, sut.computeMetrics().nodes());
+    }
+
+    @Test
+    public void testConcurrentSubscribesOnNewTopLevelTokens() throws Exception {
+        final int threads = 8;
+        final int perThread = 2_000;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        sut.addToTree(clientSubOnTopic("Client" + thread, "t" + thread + "-" + i + "/+"));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(threads * perThread, sut.size());
+        assertThat(sut.recursiveMatch(asTopic("t3-1234/x"))).extracting("clientId").containsOnly("Client3");
+    }
+}
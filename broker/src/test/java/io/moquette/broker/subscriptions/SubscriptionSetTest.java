@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionSetTest {
+
+    private final ClientIds clientIds = new ClientIds();
+
+    private Subscription sub(String clientId, MqttQoS qos) {
+        return new Subscription(new Subscription(clientId, asTopic("a/b"), qos), clientIds.acquire(clientId));
+    }
+
+    private int idOf(String clientId) {
+        return clientIds.idOf(clientId);
+    }
+
+    @Test
+    public void testAddAndRemoveAcrossTheArrayLimit() {
+        CNode.SubscriptionSet set = CNode.SubscriptionSet.EMPTY;
+        for (int i = 0; i < 100; i++) {
+            set = set.with(sub("client" + i, MqttQoS.AT_MOST_ONCE));
+            assertEquals(i + 1, set.size());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(set.containsClient(idOf("client" + i)));
+        }
+
+        for (int i = 0; i < 100; i += 2) {
+            set = set.without(idOf("client" + i));
+        }
+        for (int i = 0; i < 90; i += 2) {
+            set = set.without(idOf("client" + (i + 1)));
+        }
+
+        assertEquals(5, set.size());
+        assertThat(set).extracting("clientId").containsOnly("client91", "client93", "client95", "client97",
+                                                              "client99");
+        assertFalse(set.containsClient(idOf("client0")));
+    }
+
+    @Test
+    public void testKeepsHigherQosPerClient() {
+        final CNode.SubscriptionSet set = CNode.SubscriptionSet.EMPTY
+            .with(sub("client", MqttQoS.AT_LEAST_ONCE));
+
+        assertSame(set, set.with(sub("client", MqttQoS.AT_MOST_ONCE)));
+        assertThat(set.with(sub("client", MqttQoS.EXACTLY_ONCE))).extracting("requestedQos")
+            .containsOnly(MqttQoS.EXACTLY_ONCE);
+    }
+
+    @Test
+    public void testRemoveOfUnknownClientIsNoop() {
+        final CNode.SubscriptionSet set = CNode.SubscriptionSet.EMPTY.with(sub("client", MqttQoS.AT_MOST_ONCE));
+
+        assertSame(set, set.without(idOf("never-seen-client-id")));
+        assertFalse(set.containsClient(idOf("never-seen-client-id")));
+    }
+
+    @Test
+    public void testDeserializedSubscriptionWaitsForTheDirectoryToAssignTheClientIntId() throws Exception {
+        final Subscription original = sub("serialized-client", MqttQoS.AT_LEAST_ONCE);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(original);
+        }
+
+        final Subscription read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (Subscription) in.readObject();
+        }
+
+        assertEquals(original, read);
+        assertEquals(ClientIds.UNKNOWN, read.clientIntId);
+        final Subscription stored = new Subscription(read, clientIds.acquire(read.clientId));
+        assertEquals(original.clientIntId, stored.clientIntId);
+        assertTrue(CNode.SubscriptionSet.EMPTY.with(stored).contains(original));
+    }
+}